@@ -34,6 +34,7 @@ import edu.ucsf.rbvi.structureViz2.internal.model.CyNetworkListener;
 import edu.ucsf.rbvi.structureViz2.internal.model.CySelectionListener;
 import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.AlignCommandTaskFactory;
+import edu.ucsf.rbvi.structureViz2.internal.tasks.AlignPairsTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.AlignStructuresTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.AnnotateStructureNetworkTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.AssociateStructuresTaskFactory;
@@ -50,9 +51,13 @@ import edu.ucsf.rbvi.structureViz2.internal.tasks.OpenStructuresEdgeTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.OpenStructuresTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.OpenUnassociatedStructuresTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.PaintStructureTaskFactory;
+import edu.ucsf.rbvi.structureViz2.internal.tasks.PreindexStructuresTaskFactory;
+import edu.ucsf.rbvi.structureViz2.internal.tasks.RunParallelTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.SelectResiduesTaskFactory;
+import edu.ucsf.rbvi.structureViz2.internal.tasks.SendBatchTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.SendCommandTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.ShowDialogTaskFactory;
+import edu.ucsf.rbvi.structureViz2.internal.tasks.StatsTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.StructureVizSettingsTaskFactory;
 import edu.ucsf.rbvi.structureViz2.internal.tasks.SyncColorsTaskFactory;
 
@@ -368,6 +373,46 @@ public class CyActivator extends AbstractCyActivator {
 		commandProps.setProperty(COMMAND_NAMESPACE, "structureViz");
 		registerService(bc, sendCommandTaskFactory, TaskFactory.class, commandProps);
 
+		TaskFactory sendBatchTaskFactory = new SendBatchTaskFactory(structureManager);
+		Properties batchProps = new Properties();
+		batchProps.setProperty(COMMAND, "sendBatch");
+		batchProps.setProperty(COMMAND_DESCRIPTION,
+				"Send several commands to Chimera and get one reply per command.");
+		batchProps.setProperty(COMMAND_NAMESPACE, "structureViz");
+		registerService(bc, sendBatchTaskFactory, TaskFactory.class, batchProps);
+
+		TaskFactory runParallelTaskFactory = new RunParallelTaskFactory(structureManager);
+		Properties runParallelProps = new Properties();
+		runParallelProps.setProperty(COMMAND, "runParallel");
+		runParallelProps.setProperty(COMMAND_DESCRIPTION,
+				"Open each structure in a headless Chimera worker and run commands on it, in parallel.");
+		runParallelProps.setProperty(COMMAND_NAMESPACE, "structureViz");
+		registerService(bc, runParallelTaskFactory, TaskFactory.class, runParallelProps);
+
+		TaskFactory alignPairsTaskFactory = new AlignPairsTaskFactory(structureManager);
+		Properties alignPairsProps = new Properties();
+		alignPairsProps.setProperty(COMMAND, "alignPairs");
+		alignPairsProps.setProperty(COMMAND_DESCRIPTION,
+				"Match every pair of structures with matchmaker in headless Chimera workers, in parallel.");
+		alignPairsProps.setProperty(COMMAND_NAMESPACE, "structureViz");
+		registerService(bc, alignPairsTaskFactory, TaskFactory.class, alignPairsProps);
+
+		TaskFactory preindexTaskFactory = new PreindexStructuresTaskFactory(structureManager);
+		Properties preindexProps = new Properties();
+		preindexProps.setProperty(COMMAND, "preindex");
+		preindexProps.setProperty(COMMAND_DESCRIPTION,
+				"Read structure files without Chimera and cache their residues, so that they open faster.");
+		preindexProps.setProperty(COMMAND_NAMESPACE, "structureViz");
+		registerService(bc, preindexTaskFactory, TaskFactory.class, preindexProps);
+
+		TaskFactory statsTaskFactory = new StatsTaskFactory(structureManager);
+		Properties statsProps = new Properties();
+		statsProps.setProperty(COMMAND, "stats");
+		statsProps.setProperty(COMMAND_DESCRIPTION,
+				"Report counts, latencies and reply sizes of the commands sent to Chimera.");
+		statsProps.setProperty(COMMAND_NAMESPACE, "structureViz");
+		registerService(bc, statsTaskFactory, TaskFactory.class, statsProps);
+
 		TaskFactory listModelsTaskFactory = new ListModelsTaskFactory(structureManager);
 		Properties listModelsProps = new Properties();
 		listModelsProps.setProperty(COMMAND, "list models");
@@ -383,6 +428,8 @@ public class CyActivator extends AbstractCyActivator {
 		alignTaskProperties.setProperty(COMMAND_NAMESPACE, "structureViz");
 		registerService(bc, alignTaskFactory, TaskFactory.class, alignTaskProperties);
 
+		// Start Chimera in the background if the user asked for it
+		structureManager.prelaunchChimera(null);
 	}
 
 }
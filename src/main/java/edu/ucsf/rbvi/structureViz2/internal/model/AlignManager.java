@@ -39,6 +39,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.cytoscape.model.CyEdge;
 import org.cytoscape.model.CyEdge.Type;
@@ -49,6 +50,10 @@ import org.cytoscape.model.CyTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraJob;
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraWorker;
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraWorkerPool;
+
 /**
  * The Align class provides the interface to Chimera for processing requests to align structures.
  */
@@ -74,6 +79,12 @@ public class AlignManager {
 	 */
 	public static final int PAIRS = 2;
 
+	/**
+	 * The maximum number of structures in a group of {@link #alignAllPairs}, so a job opens at
+	 * most twice as many structures and aligns at most its square of pairs
+	 */
+	public static final int MAX_GROUP_SIZE = 10;
+
 	/**
 	 * The name of the Cytoscape interaction type to use if we're asked to create an edge with the
 	 * results
@@ -208,6 +219,90 @@ public class AlignManager {
 		return chimeraManager.sendChimeraCommand(command, true);
 	}
 
+	/**
+	 * Align every pair of structures in headless Chimera workers, without touching the
+	 * interactive Chimera. The structures are split into groups of at most
+	 * {@link #MAX_GROUP_SIZE}, and there is one job for every group and for every pair of groups:
+	 * it opens the structures of its groups once and matches every structure to the ones after
+	 * it, so all jobs open and align about the same number of structures and run in parallel on
+	 * the workers of the pool.
+	 * 
+	 * @param pool
+	 *            the workers to run the alignments on
+	 * @param structures
+	 *            the PDB IDs or files of the structures
+	 * @return the pending jobs, each with the results of its pairs that could be aligned, by the
+	 *         names of the reference and the match separated by a tab
+	 */
+	public static List<Future<Map<String, float[]>>> alignAllPairs(ChimeraWorkerPool pool,
+			List<String> structures) {
+		List<Future<Map<String, float[]>>> futures = new ArrayList<Future<Map<String, float[]>>>();
+		int count = structures.size();
+		if (count < 2) {
+			return futures;
+		}
+		// Enough groups to keep all workers busy, but no more than needed
+		int groupCount = 1;
+		while (groupCount < count && groupCount * (groupCount + 1) / 2 < pool.getSize()) {
+			groupCount++;
+		}
+		int groupSize = Math.min(MAX_GROUP_SIZE, (count + groupCount - 1) / groupCount);
+		for (int first = 0; first < count; first += groupSize) {
+			for (int second = first; second < count; second += groupSize) {
+				final List<String> opened = new ArrayList<String>();
+				opened.addAll(structures.subList(first, Math.min(first + groupSize, count)));
+				// the first group is matched against itself only within its own job
+				final int firstSize = opened.size();
+				final boolean sameGroup = second == first;
+				if (!sameGroup) {
+					opened.addAll(structures.subList(second, Math.min(second + groupSize, count)));
+				} else if (firstSize < 2) {
+					continue;
+				}
+				futures.add(pool.submit(new ChimeraJob<Map<String, float[]>>() {
+					public Map<String, float[]> run(ChimeraWorker worker) throws Exception {
+						// the worker starts without models, so they are numbered in the order
+						// they open
+						List<String> commands = new ArrayList<String>();
+						List<int[]> pairs = new ArrayList<int[]>();
+						for (String structure : opened) {
+							commands.add("open " + structure);
+						}
+						for (int reference = 0; reference < firstSize; reference++) {
+							int match = sameGroup ? reference + 1 : firstSize;
+							for (; match < opened.size(); match++) {
+								commands.add("matchmaker #" + reference + " #" + match);
+								pairs.add(new int[] { reference, match });
+							}
+						}
+						List<List<String>> replies = worker.sendBatch(commands);
+						// the replies to the matchmaker commands follow those to the open commands
+						Map<String, float[]> results = new HashMap<String, float[]>();
+						for (int i = 0; i < pairs.size(); i++) {
+							List<String> reply = replies.get(opened.size() + i);
+							if (hasAlignment(reply)) {
+								results.put(opened.get(pairs.get(i)[0]) + "\t"
+										+ opened.get(pairs.get(i)[1]), parseResults(reply));
+							}
+						}
+						return results;
+					}
+				}));
+			}
+		}
+		return futures;
+	}
+
+	private static boolean hasAlignment(List<String> reply) {
+		if (reply != null) {
+			for (String line : reply) {
+				if (line.startsWith("RMSD between"))
+					return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Parse the results returned by <b>singleAlign</b> and return an array of 3 floats with the
 	 * results of an alignment.
@@ -216,7 +311,7 @@ public class AlignManager {
 	 *            the iterator over the lines of responses from Chimera
 	 * @return the array of floats containing the results from a single alignment
 	 */
-	private float[] parseResults(List<String> resultsList) {
+	private static float[] parseResults(List<String> resultsList) {
 		float[] results = new float[3];
 		int index = -1;
 		for (String line : resultsList) {
@@ -151,24 +151,25 @@ public abstract class ChimUtils {
 	// atomSpec = #0:1.A or #1:96.B@N
 	public static ChimeraModel getModel(String atomSpec, ChimeraManager chimeraManager) {
 		// System.out.println("getting model for "+atomSpec);
-		String[] split = atomSpec.split(":");
+		int end = atomSpec.indexOf(':');
+		if (end < 0)
+			end = atomSpec.length();
 		// No model specified....
-		if (split[0].length() == 0) {
+		if (end == 0) {
 			logger.info("Unexpected return from Chimera: " + atomSpec);
 			return null;
 		}
-		// System.out.println("model = "+split[0].substring(1));
 		int model = 0;
 		int submodel = 0;
 		try {
-			String[] subSplit = split[0].substring(1).split("\\.");
-			if (subSplit.length > 0)
-				model = Integer.parseInt(subSplit[0]);
-			else
-				model = Integer.parseInt(split[0].substring(1));
-
-			if (subSplit.length > 1)
-				submodel = Integer.parseInt(subSplit[1]);
+			int decimal = indexOf(atomSpec, '.', 1, end);
+			if (decimal < 0) {
+				model = parseInt(atomSpec, 1, end);
+			} else {
+				model = parseInt(atomSpec, 1, decimal);
+				int submodelEnd = indexOf(atomSpec, '.', decimal + 1, end);
+				submodel = parseInt(atomSpec, decimal + 1, submodelEnd < 0 ? end : submodelEnd);
+			}
 		} catch (Exception e) {
 			// ignore
 			logger.warn("Unexpected return from Chimera: " + atomSpec, e);
@@ -191,33 +192,148 @@ public abstract class ChimUtils {
 	// atomSpec = #0:1.A or #1:96.B@N
 	public static ChimeraResidue getResidue(String atomSpec, ChimeraModel model) {
 		// System.out.println("Getting residue from: "+atomSpec);
-		String[] split = atomSpec.split(":|@");
+		// The residue and chain are between the model and the atom
+		int start = residueStart(atomSpec);
+		if (start < 0) {
+			logger.info("Unexpected return from Chimera: " + atomSpec);
+			return null;
+		}
+		int end = residueEnd(atomSpec, start);
 
 		// Split into residue and chain
-		String[] residueChain = split[1].split("\\.");
-
-		if (residueChain[0].length() == 0) {
+		int dot = indexOf(atomSpec, '.', start, end);
+		int residueEnd = dot < 0 ? end : dot;
+		if (residueEnd == start) {
 			logger.info("Unexpected return from Chimera: " + atomSpec);
 			return null;
 		}
-
-		if (residueChain.length == 2 && residueChain[1].length() > 0) {
-			ChimeraChain chain = model.getChain(residueChain[1]);
-			return chain.getResidue(residueChain[0]);
+		String residue = atomSpec.substring(start, residueEnd);
+		if (dot >= 0) {
+			int chainEnd = indexOf(atomSpec, '.', dot + 1, end);
+			// more than one chain is not a chain
+			if (chainEnd < 0 || onlyDots(atomSpec, chainEnd, end)) {
+				if (chainEnd < 0)
+					chainEnd = end;
+				if (chainEnd > dot + 1) {
+					ChimeraChain chain = model.getChain(atomSpec.substring(dot + 1, chainEnd));
+					return chain == null ? null : chain.getResidue(residue);
+				}
+			}
 		}
-		return model.getResidue("_", residueChain[0]);
+		return model.getResidue("_", residue);
 	}
 
 	public static ChimeraChain getChain(String atomSpec, ChimeraModel model) {
-		String[] split = atomSpec.split(":|@");
+		int start = residueStart(atomSpec);
+		int end = start < 0 ? -1 : residueEnd(atomSpec, start);
 
 		// Split into residue and chain
-		String[] residueChain = split[1].split("\\.");
-		if (residueChain.length == 1) {
+		int dot = start < 0 ? -1 : indexOf(atomSpec, '.', start, end);
+		if (dot < 0 || onlyDots(atomSpec, dot, end)) {
 			logger.info("Unexpected return from Chimera: " + atomSpec);
 			return null;
 		}
-		return model.getChain(residueChain[1]);
+		int chainEnd = indexOf(atomSpec, '.', dot + 1, end);
+		return model.getChain(atomSpec.substring(dot + 1, chainEnd < 0 ? end : chainEnd));
+	}
+
+	// The residue and chain of an atom spec start after the first ':' or '@'
+	private static int residueStart(String atomSpec) {
+		for (int i = 0; i < atomSpec.length(); i++) {
+			char c = atomSpec.charAt(i);
+			if (c == ':' || c == '@')
+				return i + 1;
+		}
+		return -1;
+	}
+
+	// ... and end at the next one
+	private static int residueEnd(String atomSpec, int start) {
+		for (int i = start; i < atomSpec.length(); i++) {
+			char c = atomSpec.charAt(i);
+			if (c == ':' || c == '@')
+				return i;
+		}
+		return atomSpec.length();
+	}
+
+	private static int indexOf(String s, char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) == c)
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean onlyDots(String s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) != '.')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a decimal integer in a part of a String without creating a substring
+	 * 
+	 * @param s
+	 *            the String
+	 * @param start
+	 *            the first character of the integer
+	 * @param end
+	 *            the end of the integer
+	 * @return the value of the integer
+	 * @throws NumberFormatException
+	 *             if the part is not an integer
+	 */
+	static int parseInt(String s, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+			negative = s.charAt(i) == '-';
+			i++;
+		}
+		if (i == end || end - i > 9)
+			return Integer.parseInt(s.substring(start, end));
+		int value = 0;
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				throw new NumberFormatException("For input string: \"" + s.substring(start, end)
+						+ "\"");
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	private static boolean isInt(String s, int start, int end) {
+		try {
+			parseInt(s, start, end);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Count the parts {@link String#split(String)} would split a part of a String into at a single
+	 * character, i.e. without trailing empty parts
+	 */
+	private static int countParts(String s, char separator, int start, int end) {
+		int parts = 0;
+		int nonEmptyParts = 0;
+		int partStart = start;
+		boolean found = false;
+		for (int i = start; i <= end; i++) {
+			if (i == end || s.charAt(i) == separator) {
+				found |= i < end;
+				parts++;
+				if (i > partStart)
+					nonEmptyParts = parts;
+				partStart = i + 1;
+			}
+		}
+		return found ? nonEmptyParts : 1;
 	}
 
 	public static String getAtomName(String atomSpec) {
@@ -347,12 +463,14 @@ public abstract class ChimUtils {
 		// [pdbID[.modelNo]#][residueID][.chainID]
 		// pdbID := 4-character code | "URL" | "path"
 		String[] resKeyParts = new String[4];
-		String[] split = resKey.split("#");
-		String resChain = null;
+		int length = resKey.length();
+		int resChainStart = -1;
+		int resChainEnd = length;
+		int hashParts = countParts(resKey, '#', 0, length);
 		// if no "#" then it is either only a pdb id or a residue or a chain
-		if (split.length == 1) {
+		if (hashParts == 1) {
 			// pdb id without model
-			if (resKey.length() == 4 && resKey.indexOf("\\.") < 0) {
+			if (length == 4) {
 				parseModelID(resKey, resKeyParts);
 			}
 			// pdb link or file
@@ -361,64 +479,62 @@ public abstract class ChimUtils {
 			}
 			// chain and residue or model and number
 			else {
-				String[] splitSplit = resKey.split("\\.");
-				if (splitSplit.length == 1) {
+				int dot = resKey.indexOf('.');
+				if (dot < 0 || countParts(resKey, '.', 0, length) < 2) {
 					// only a chain or a residue
-					resChain = resKey;
+					resChainStart = 0;
 				} else {
-					try {
+					int numberEnd = resKey.indexOf('.', dot + 1);
+					if (isInt(resKey, dot + 1, numberEnd < 0 ? length : numberEnd)) {
 						// pdb with a model
-						Integer.parseInt(splitSplit[1]);
 						parseModelID(resKey, resKeyParts);
-					} catch (NumberFormatException ex) {
+					} else {
 						// residue and chain
-						resChain = resKey;
+						resChainStart = 0;
 					}
 				}
 			}
-		} else if (split.length == 2) {
+		} else if (hashParts == 2) {
 			// model and residue+chain
-			parseModelID(split[0], resKeyParts);
-			resChain = split[1];
+			int hash = resKey.indexOf('#');
+			parseModelID(resKey.substring(0, hash), resKeyParts);
+			resChainStart = hash + 1;
+			int nextHash = resKey.indexOf('#', resChainStart);
+			if (nextHash >= 0)
+				resChainEnd = nextHash;
 		} else {
 			// model string with "#"
 			// TODO: [Optional] Are there more possibilities?
-			parseModelID(resKey.substring(0, resKey.lastIndexOf("#")), resKeyParts);
-			resChain = resKey.substring(resKey.lastIndexOf("#") + 1, resKey.length());
+			int hash = resKey.lastIndexOf('#');
+			parseModelID(resKey.substring(0, hash), resKeyParts);
+			resChainStart = hash + 1;
 		}
-		if (resChain != null) {
-			//System.out.println(resChain);
-			String[] resChainSplit = resChain.split("\\.");
-			if (resChainSplit.length == 1) {
+		if (resChainStart >= 0) {
+			int dotParts = countParts(resKey, '.', resChainStart, resChainEnd);
+			int dot = indexOf(resKey, '.', resChainStart, resChainEnd);
+			int firstEnd = dot < 0 ? resChainEnd : dot;
+			if (dotParts == 1) {
 				// TODO: [Optional] Find a better way to distinguish between chain and residue
 				// if only one character and not an int, probably a chain
-				if (resChainSplit[0].length() == 1) {
-					try {
-						Integer.parseInt(resChainSplit[0]);
-						resKeyParts[3] = resChainSplit[0];
-					} catch (NumberFormatException ex) {
-						resKeyParts[2] = resChainSplit[0];
+				String first = resKey.substring(resChainStart, firstEnd);
+				if (first.length() == 1) {
+					if (Character.isDigit(first.charAt(0))) {
+						resKeyParts[3] = first;
+					} else {
+						resKeyParts[2] = first;
 					}
 				} else {
-					resKeyParts[3] = resChainSplit[0];
+					resKeyParts[3] = first;
 				}
-			} else if (resChainSplit.length == 2) {
-				resKeyParts[2] = resChainSplit[0];
-				resKeyParts[3] = resChainSplit[1];
+			} else if (dotParts == 2) {
+				int secondEnd = indexOf(resKey, '.', dot + 1, resChainEnd);
+				resKeyParts[2] = resKey.substring(resChainStart, firstEnd);
+				resKeyParts[3] = resKey.substring(dot + 1, secondEnd < 0 ? resChainEnd : secondEnd);
 			} else {
 				// too many dots?
 				logger.info("Could not parse residue identifier: " + resKey);
 			}
 		}
-		// String print = "";
-		// for (int i = 0; i < resKeyParts.length; i++) {
-		// if (resKeyParts[i] == null) {
-		// print += i + ": null\t";
-		// } else {
-		// print += i + ": " + resKeyParts[i] + ";";
-		// }
-		// }
-		// System.out.println(print);
 		return resKeyParts;
 	}
 
@@ -584,13 +700,46 @@ public abstract class ChimUtils {
 	public static ChimeraStructuralObject fromAttribute(String attrSpec,
 			ChimeraManager chimeraManager) {
 		// TODO: Make sure it is OK to remove this: || attrSpec.indexOf('-') > 0
-		if (attrSpec == null || 
-		    attrSpec.split(splitQuotedCommas).length > 1) {
+		if (attrSpec == null || isList(attrSpec)) {
 			// No support for either lists or ranges
 			// System.out.println("No support for identifier: " + attrSpec);
 			logger.warn("No support for identifier: " + attrSpec);
 			return null;
 		}
+		return chimeraManager.getSpecCache().resolve(attrSpec);
+	}
+
+	/**
+	 * Check whether a spec is a list, i.e. whether splitting it at the commas outside of quotes
+	 * with {@link #splitQuotedCommas} gives more than one part
+	 */
+	private static boolean isList(String attrSpec) {
+		int quotes = 0;
+		for (int i = 0; i < attrSpec.length(); i++) {
+			if (attrSpec.charAt(i) == '"')
+				quotes++;
+		}
+		// a comma is outside of quotes if an even number of quotes follows it
+		boolean comma = false;
+		for (int i = 0; i < attrSpec.length(); i++) {
+			char c = attrSpec.charAt(i);
+			if (c == ',' && quotes % 2 == 0) {
+				comma = true;
+			} else if (comma) {
+				// something follows the comma
+				return true;
+			} else if (c == '"') {
+				quotes--;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the object an attribute specification refers to, see
+	 * {@link #fromAttribute(String, ChimeraManager)}. This does the work for the {@link SpecCache}.
+	 */
+	static ChimeraStructuralObject resolveAttribute(String attrSpec, ChimeraManager chimeraManager) {
 		String[] modelIDNoResChain = getResKeyParts(attrSpec);
 
 		/*
@@ -808,6 +957,9 @@ public abstract class ChimUtils {
 	 * @return the full name of the residue
 	 */
 	public static String toFullName(String aaType) {
+		int code = ResidueTypes.findCode(aaType);
+		if (code >= 0)
+			return ResidueTypes.getFullName((char) code);
 		if (!aaNames.containsKey(aaType))
 			return aaType;
 		String[] ids = ((String) aaNames.get(aaType)).split(" ");
@@ -822,6 +974,9 @@ public abstract class ChimUtils {
 	 * @return the single letter representation of the residue
 	 */
 	public static String toSingleLetter(String aaType) {
+		int code = ResidueTypes.findCode(aaType);
+		if (code >= 0)
+			return ResidueTypes.getSingleLetter((char) code);
 		if (!aaNames.containsKey(aaType))
 			return aaType;
 		String[] ids = ((String) aaNames.get(aaType)).split(" ");
@@ -836,6 +991,9 @@ public abstract class ChimUtils {
 	 * @return the three letter representation of the residue
 	 */
 	public static String toThreeLetter(String aaType) {
+		int code = ResidueTypes.findCode(aaType);
+		if (code >= 0)
+			return ResidueTypes.getThreeLetter((char) code);
 		if (!aaNames.containsKey(aaType))
 			return aaType;
 		String[] ids = ((String) aaNames.get(aaType)).split(" ");
@@ -850,6 +1008,9 @@ public abstract class ChimUtils {
 	 * @return the SMILES representation of the residue
 	 */
 	public static String toSMILES(String aaType) {
+		int code = ResidueTypes.findCode(aaType);
+		if (code >= 0)
+			return ResidueTypes.getSMILES((char) code);
 		if (!aaNames.containsKey(aaType))
 			return null;
 		String[] ids = ((String) aaNames.get(aaType)).split(" ");
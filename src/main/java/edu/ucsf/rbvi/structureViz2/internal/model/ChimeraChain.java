@@ -32,14 +32,22 @@
  */
 package edu.ucsf.rbvi.structureViz2.internal.model;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.Map;
 
 /**
  * This class provides the implementation for the ChimeraChain object
  * 
+ * The residues of a chain are kept in a compact table with one entry per residue: the residue
+ * number, insertion code and type code are stored in primitive arrays, the selection state in a
+ * bit set. {@link ChimeraResidue} objects handed out by the chain are lightweight views on an
+ * entry of this table, so large structures don't need an object per residue.
+ * 
  * @author scooter
  * 
  */
@@ -63,9 +71,30 @@ public class ChimeraChain implements ChimeraStructuralObject {
 	private String chainId;
 
 	/**
-	 * The residues that are part of this chain
+	 * The residue table, entries are never removed, so the entry of a residue doesn't change
+	 */
+	private int residueCount = 0;
+	private int[] residueNumbers = new int[16];
+	private char[] insertionCodes = new char[16];
+	private char[] residueTypes = new char[16];
+	private BitSet selectedResidues = new BitSet();
+	// allocated when the first residue gets user data
+	private Object[] residueUserData = null;
+	// Residue indexes that are not a plain number with an optional insertion code
+	private Map<String, Integer> otherIndexes = null;
+	private Map<Integer, String> otherIndexStrings = null;
+
+	/**
+	 * The entries in residue order, sorted when needed. Models are read by several threads, so a
+	 * sort fills a new array, which replaces the old one; sorted arrays aren't changed anymore.
+	 */
+	private int[] residueOrder = new int[16];
+	private volatile boolean residueOrderSorted = true;
+
+	/**
+	 * Open addressing hash table from residue number and insertion code to entry + 1
 	 */
-	private TreeMap<String, ChimeraResidue> residueMap;
+	private int[] residueLookup = new int[32];
 
 	/**
 	 * userData to associate with this chain
@@ -91,7 +120,6 @@ public class ChimeraChain implements ChimeraStructuralObject {
 		this.modelNumber = model;
 		this.subModelNumber = subModel;
 		this.chainId = chainId;
-		residueMap = new TreeMap<String, ChimeraResidue>();
 	}
 
 	/**
@@ -114,15 +142,7 @@ public class ChimeraChain implements ChimeraStructuralObject {
 	}
 
 	public boolean hasSelectedChildren() {
-		if (selected) {
-			return true;
-		} else {
-			for (ChimeraResidue residue : getResidues()) {
-				if (residue.isSelected())
-					return true;
-			}
-		}
-		return false;
+		return selected || !selectedResidues.isEmpty();
 	}
 
 	/**
@@ -134,25 +154,100 @@ public class ChimeraChain implements ChimeraStructuralObject {
 		List<ChimeraResidue> residueList = new ArrayList<ChimeraResidue>();
 		if (selected) {
 			residueList.addAll(getResidues());
-		} else {
-			for (ChimeraResidue residue : getResidues()) {
-				if (residue.isSelected())
-					residueList.add(residue);
+		} else if (!selectedResidues.isEmpty()) {
+			int[] order = getResidueOrder();
+			for (int i = 0; i < residueCount; i++) {
+				if (selectedResidues.get(order[i]))
+					residueList.add(new ChimeraResidue(this, order[i]));
 			}
 		}
 		return residueList;
 	}
 
 	/**
-	 * Add a residue to the chain.
+	 * Add a residue to the chain. If the chain already has a residue with the same index, that
+	 * residue is replaced. Afterwards the residue is a view on its entry in this chain.
 	 * 
 	 * @param residue
 	 *          the ChimeraResidue to add to the chain.
 	 */
 	public void addResidue(ChimeraResidue residue) {
-		String index = residue.getIndex();
-		// Put it in our map so that we can return it in order
-		residueMap.put(index, residue);
+		if (residue.getChain() == this)
+			return;
+		int entry = addResidue(residue.getIndex(), residue.getTypeCode());
+		selectedResidues.set(entry, residue.isSelected());
+		setResidueUserData(entry, residue.getUserData());
+		residue.attach(this, entry);
+	}
+
+	/**
+	 * Add a residue to the chain without creating a ChimeraResidue for it. If the chain already
+	 * has a residue with the same index, its type is replaced and its selection state and user
+	 * data are cleared.
+	 * 
+	 * @param index
+	 *          the index of the residue, e.g. <code>52</code> or <code>52A</code>
+	 * @param type
+	 *          the residue type
+	 * @return the entry of the residue in this chain
+	 */
+	public int addResidue(String index, String type) {
+		return addResidue(index, ResidueTypes.getCode(type));
+	}
+
+	private int addResidue(String index, char typeCode) {
+		int entry = findResidue(index);
+		if (entry >= 0) {
+			residueTypes[entry] = typeCode;
+			selectedResidues.clear(entry);
+			setResidueUserData(entry, null);
+			return entry;
+		}
+
+		entry = residueCount;
+		if (entry == residueNumbers.length) {
+			int capacity = entry * 2;
+			residueNumbers = copyOf(residueNumbers, capacity);
+			insertionCodes = copyOf(insertionCodes, capacity);
+			residueTypes = copyOf(residueTypes, capacity);
+			if (residueUserData != null) {
+				Object[] largerUserData = new Object[capacity];
+				System.arraycopy(residueUserData, 0, largerUserData, 0, entry);
+				residueUserData = largerUserData;
+			}
+		}
+		residueTypes[entry] = typeCode;
+		if (isPlainIndex(index)) {
+			residueNumbers[entry] = parseNumber(index);
+			insertionCodes[entry] = getInsertionCode(index);
+			residueCount++;
+			if (residueCount * 2 > residueLookup.length)
+				rehash(residueLookup.length * 2);
+			else
+				insertLookup(entry);
+		} else {
+			// Keep the index as it is, sort it by its leading number
+			residueNumbers[entry] = parseNumber(index);
+			insertionCodes[entry] = 0;
+			if (otherIndexes == null) {
+				otherIndexes = new HashMap<String, Integer>();
+				otherIndexStrings = new HashMap<Integer, String>();
+			}
+			otherIndexes.put(index, Integer.valueOf(entry));
+			otherIndexStrings.put(Integer.valueOf(entry), index);
+			residueCount++;
+		}
+
+		// Chimera lists the residues in order, so the order usually stays sorted
+		synchronized (this) {
+			if (entry == residueOrder.length)
+				residueOrder = copyOf(residueOrder, residueNumbers.length);
+			residueOrder[entry] = entry;
+			if (residueOrderSorted && entry > 0
+					&& compareResidues(residueOrder[entry - 1], entry) > 0)
+				residueOrderSorted = false;
+		}
+		return entry;
 	}
 
 	/**
@@ -161,7 +256,17 @@ public class ChimeraChain implements ChimeraStructuralObject {
 	 * @return a Collection of residues in residue order
 	 */
 	public Collection<ChimeraResidue> getResidues() {
-		return residueMap.values();
+		return new AbstractList<ChimeraResidue>() {
+			public ChimeraResidue get(int i) {
+				if (i < 0 || i >= residueCount)
+					throw new IndexOutOfBoundsException("Residue " + i + " of " + residueCount);
+				return new ChimeraResidue(ChimeraChain.this, getResidueOrder()[i]);
+			}
+
+			public int size() {
+				return residueCount;
+			}
+		};
 	}
 
 	/**
@@ -170,7 +275,7 @@ public class ChimeraChain implements ChimeraStructuralObject {
 	 * @return List of residues
 	 */
 	public List<ChimeraStructuralObject> getChildren() {
-		return new ArrayList<ChimeraStructuralObject>(residueMap.values());
+		return new ArrayList<ChimeraStructuralObject>(getResidues());
 	}
 
 	/**
@@ -181,35 +286,301 @@ public class ChimeraChain implements ChimeraStructuralObject {
 	 * @return the ChimeraResidue represented by the residueIndex
 	 */
 	public ChimeraResidue getResidue(String index) {
-		// Integer index = new Integer(residueIndex);
-		if (residueMap.containsKey(index))
-			return residueMap.get(index);
-		return null;
+		int entry = findResidue(index);
+		if (entry < 0)
+			return null;
+		return new ChimeraResidue(this, entry);
+	}
+
+	/**
+	 * Get a specific residue by its number and insertion code
+	 * 
+	 * @param residueNumber
+	 *          the residue number
+	 * @param insertionCode
+	 *          the insertion code or 0 if the residue has none
+	 * @return the residue or <code>null</code> if the chain has no such residue
+	 */
+	public ChimeraResidue getResidue(int residueNumber, char insertionCode) {
+		int entry = lookup(residueNumber, insertionCode);
+		if (entry < 0)
+			return null;
+		return new ChimeraResidue(this, entry);
 	}
 
 	/**
 	 * Get a list of residues as a residue range
 	 * 
 	 * @param residueRange
-	 *          String representation of the residue range
+	 *          String representation of the residue range, e.g. <code>10-20</code> or
+	 *          <code>10A-20.B</code>. A range for another chain is empty.
 	 * @return the List of ChimeraResidues represented by the range
 	 */
 	public List<ChimeraResidue> getResidueRange(String residueRange) {
-		String[] range = residueRange.split("-", 2);
-		if (range[1] == null || range[1].length() == 0) {
-			range[1] = range[0];
+		int end = residueRange.length();
+		int dot = residueRange.lastIndexOf('.');
+		if (dot > 0) {
+			if (!residueRange.substring(dot + 1).equals(chainId))
+				return new ArrayList<ChimeraResidue>();
+			end = dot;
 		}
+		// the first residue may be negative
+		int dash = residueRange.indexOf('-', 1);
+		if (dash < 0 || dash >= end)
+			dash = end;
+		String first = residueRange.substring(0, dash);
+		String last = dash + 1 < end ? residueRange.substring(dash + 1, end) : first;
+		if (!isPlainIndex(first) || !isPlainIndex(last))
+			throw new NumberFormatException("Invalid residue range: " + residueRange);
+		return getResidueRange(parseNumber(first), getInsertionCode(first), parseNumber(last),
+				getInsertionCode(last));
+	}
+
+	/**
+	 * Get the residues between two residues, including the residues with insertion codes in
+	 * between. The residues are found by a binary search in the sorted residue order, so this
+	 * takes time in the order of the log of the chain length plus the length of the range.
+	 * 
+	 * @param firstNumber
+	 *          the number of the first residue
+	 * @param firstInsertionCode
+	 *          the insertion code of the first residue or 0 if it has none
+	 * @param lastNumber
+	 *          the number of the last residue
+	 * @param lastInsertionCode
+	 *          the insertion code of the last residue or 0 if it has none
+	 * @return the residues in residue order
+	 */
+	public List<ChimeraResidue> getResidueRange(int firstNumber, char firstInsertionCode,
+			int lastNumber, char lastInsertionCode) {
+		int[] order = getResidueOrder();
 		List<ChimeraResidue> resultRange = new ArrayList<ChimeraResidue>();
-		int start = Integer.parseInt(range[0]);
-		int end = Integer.parseInt(range[1]);
-		for (int i = start; i <= end; i++) {
-			String index = String.valueOf(i);
-			if (residueMap.containsKey(index))
-				resultRange.add(residueMap.get(index));
+		for (int i = lowerBound(order, firstNumber, firstInsertionCode); i < residueCount; i++) {
+			int entry = order[i];
+			if (compareResidue(entry, lastNumber, lastInsertionCode) > 0)
+				break;
+			resultRange.add(new ChimeraResidue(this, entry));
 		}
 		return resultRange;
 	}
 
+	/**
+	 * Find the position of the first residue in the sorted residue order that is not before a
+	 * residue number and insertion code
+	 */
+	private int lowerBound(int[] order, int residueNumber, char insertionCode) {
+		int low = 0;
+		int high = residueCount;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (compareResidue(order[middle], residueNumber, insertionCode) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private int compareResidue(int entry, int residueNumber, char insertionCode) {
+		if (residueNumbers[entry] != residueNumber)
+			return residueNumbers[entry] < residueNumber ? -1 : 1;
+		return insertionCodes[entry] - insertionCode;
+	}
+
+	private static char getInsertionCode(String index) {
+		char insertionCode = index.charAt(index.length() - 1);
+		return Character.isDigit(insertionCode) ? 0 : insertionCode;
+	}
+
+	/**
+	 * Find the entry of a residue
+	 * 
+	 * @param index
+	 *          the index of the residue
+	 * @return the entry or -1 if the chain has no such residue
+	 */
+	private int findResidue(String index) {
+		if (isPlainIndex(index)) {
+			return lookup(parseNumber(index), getInsertionCode(index));
+		} else if (otherIndexes != null && otherIndexes.containsKey(index)) {
+			return otherIndexes.get(index).intValue();
+		}
+		return -1;
+	}
+
+	/**
+	 * Check whether an index consists of a number without leading zeros and at most one letter
+	 * as insertion code, i.e. whether it can be rebuilt from the residue number and insertion
+	 * code.
+	 */
+	private static boolean isPlainIndex(String index) {
+		int length = index.length();
+		int i = 0;
+		if (i < length && index.charAt(i) == '-')
+			i++;
+		int digits = 0;
+		while (i < length && Character.isDigit(index.charAt(i))) {
+			if (digits == 0 && index.charAt(i) == '0' && i + 1 < length
+					&& Character.isDigit(index.charAt(i + 1)))
+				return false;
+			digits++;
+			i++;
+		}
+		if (digits == 0 || digits > 9 || (index.charAt(0) == '-' && index.charAt(1) == '0'))
+			return false;
+		return i == length || (i == length - 1 && Character.isLetter(index.charAt(i)));
+	}
+
+	private static int parseNumber(String index) {
+		int length = index.length();
+		int i = 0;
+		boolean negative = false;
+		if (i < length && index.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+		int number = 0;
+		for (int digits = 0; i < length && digits < 9 && Character.isDigit(index.charAt(i)); i++) {
+			number = number * 10 + (index.charAt(i) - '0');
+			digits++;
+		}
+		return negative ? -number : number;
+	}
+
+	private int lookup(int residueNumber, char insertionCode) {
+		int mask = residueLookup.length - 1;
+		for (int i = hash(residueNumber, insertionCode) & mask; residueLookup[i] != 0; i = (i + 1)
+				& mask) {
+			int entry = residueLookup[i] - 1;
+			if (residueNumbers[entry] == residueNumber && insertionCodes[entry] == insertionCode)
+				return entry;
+		}
+		return -1;
+	}
+
+	private void insertLookup(int entry) {
+		int mask = residueLookup.length - 1;
+		int i = hash(residueNumbers[entry], insertionCodes[entry]) & mask;
+		while (residueLookup[i] != 0)
+			i = (i + 1) & mask;
+		residueLookup[i] = entry + 1;
+	}
+
+	private void rehash(int capacity) {
+		residueLookup = new int[capacity];
+		for (int entry = 0; entry < residueCount; entry++) {
+			if (otherIndexStrings == null || !otherIndexStrings.containsKey(Integer.valueOf(entry)))
+				insertLookup(entry);
+		}
+	}
+
+	private static int hash(int residueNumber, char insertionCode) {
+		int h = residueNumber * 31 + insertionCode;
+		return h ^ (h >>> 16) ^ (h >>> 7);
+	}
+
+	private int compareResidues(int entry1, int entry2) {
+		return compareResidue(entry1, residueNumbers[entry2], insertionCodes[entry2]);
+	}
+
+	/**
+	 * Get the entries in residue order, sorting them first if residues have been added out of
+	 * order
+	 */
+	private int[] getResidueOrder() {
+		if (!residueOrderSorted)
+			sortResidues();
+		return residueOrder;
+	}
+
+	private synchronized void sortResidues() {
+		if (residueOrderSorted)
+			return;
+		int[] order = copyOf(residueOrder, residueOrder.length);
+		mergeSort(order, new int[residueCount], 0, residueCount);
+		residueOrder = order;
+		residueOrderSorted = true;
+	}
+
+	private void mergeSort(int[] order, int[] buffer, int from, int to) {
+		if (to - from < 2)
+			return;
+		int middle = (from + to) >>> 1;
+		mergeSort(order, buffer, from, middle);
+		mergeSort(order, buffer, middle, to);
+		if (compareResidues(order[middle - 1], order[middle]) <= 0)
+			return;
+		System.arraycopy(order, from, buffer, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < middle && compareResidues(buffer[left], buffer[right]) <= 0))
+				order[i] = buffer[left++];
+			else
+				order[i] = buffer[right++];
+		}
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private static char[] copyOf(char[] array, int length) {
+		char[] copy = new char[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	/*
+	 * Access to the residue table for the residue views
+	 */
+
+	String getResidueIndex(int entry) {
+		if (otherIndexStrings != null) {
+			String index = otherIndexStrings.get(Integer.valueOf(entry));
+			if (index != null)
+				return index;
+		}
+		if (insertionCodes[entry] == 0)
+			return Integer.toString(residueNumbers[entry]);
+		return Integer.toString(residueNumbers[entry]) + insertionCodes[entry];
+	}
+
+	int getResidueNumber(int entry) {
+		return residueNumbers[entry];
+	}
+
+	char getInsertionCode(int entry) {
+		return insertionCodes[entry];
+	}
+
+	char getResidueTypeCode(int entry) {
+		return residueTypes[entry];
+	}
+
+	boolean isResidueSelected(int entry) {
+		return selectedResidues.get(entry);
+	}
+
+	void setResidueSelected(int entry, boolean selected) {
+		selectedResidues.set(entry, selected);
+	}
+
+	Object getResidueUserData(int entry) {
+		return residueUserData == null ? null : residueUserData[entry];
+	}
+
+	void setResidueUserData(int entry, Object data) {
+		if (residueUserData == null) {
+			if (data == null)
+				return;
+			residueUserData = new Object[residueNumbers.length];
+		}
+		residueUserData[entry] = data;
+	}
+
 	/**
 	 * Get the ID for this chain
 	 * 
@@ -287,7 +658,7 @@ public class ChimeraChain implements ChimeraStructuralObject {
 	 * @return integer number of residues
 	 */
 	public int getResidueCount() {
-		return residueMap.size();
+		return residueCount;
 	}
 
 	/**
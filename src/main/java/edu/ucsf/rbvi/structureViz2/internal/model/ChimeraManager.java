@@ -2,38 +2,107 @@ package edu.ucsf.rbvi.structureViz2.internal.model;
 
 import java.awt.Color;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager.ModelType;
+import edu.ucsf.rbvi.structureViz2.internal.port.AtomData;
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraTransport;
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraWorkerPool;
+import edu.ucsf.rbvi.structureViz2.internal.port.CommandStats;
+import edu.ucsf.rbvi.structureViz2.internal.port.LineTokenizer;
 import edu.ucsf.rbvi.structureViz2.internal.port.ListenerThreads;
+import edu.ucsf.rbvi.structureViz2.internal.port.PipeTransport;
+import edu.ucsf.rbvi.structureViz2.internal.port.ReplyCache;
+import edu.ucsf.rbvi.structureViz2.internal.port.ReplyFuture;
+import edu.ucsf.rbvi.structureViz2.internal.port.ReplyStream;
+import edu.ucsf.rbvi.structureViz2.internal.port.RestTransport;
+import edu.ucsf.rbvi.structureViz2.internal.port.SessionRecorder;
+import edu.ucsf.rbvi.structureViz2.internal.port.SessionReplay;
 
 /**
  * This object maintains the Chimera communication information.
  */
 public class ChimeraManager {
+	public static final String TRANSPORT_PIPE = "pipe";
+	public static final String TRANSPORT_REST = "rest";
+	public static final String PRELAUNCH_NONE = "none";
+	public static final String PRELAUNCH_STARTUP = "startup";
+	public static final String PRELAUNCH_NETWORK = "network";
+	// Seconds to wait for Chimera to report the port of its REST server
+	private static final int REST_TIMEOUT = 60;
+	// Writes atom coordinates or distances as packed little-endian floats, see AtomData
+	private static final String BULK_DATA_SCRIPT = "import sys, struct, urllib\n"
+			+ "from chimera.specifier import evalSpec\n"
+			+ "mode, out, spec = sys.argv[1], urllib.unquote_plus(sys.argv[2]), ' '.join(sys.argv[3:])\n"
+			+ "atoms = evalSpec(spec).atoms()\n"
+			+ "crds = [a.xformCoord() for a in atoms]\n"
+			+ "data = open(out, 'wb')\n"
+			+ "if mode == 'coords':\n"
+			+ "\tfor c in crds:\n"
+			+ "\t\tdata.write(struct.pack('<3f', c.x, c.y, c.z))\n"
+			+ "else:\n"
+			+ "\tfor i in range(len(crds)):\n"
+			+ "\t\trow = [crds[i].distance(crds[j]) for j in range(i + 1, len(crds))]\n"
+			+ "\t\tdata.write(struct.pack('<%df' % len(row), *row))\n"
+			+ "data.close()\n"
+			+ "index = open(out + '.idx', 'w')\n"
+			+ "index.write(''.join([a.oslIdent() + '\\n' for a in atoms]))\n"
+			+ "index.close()\n";
 
 	static private Process chimera;
 	static private ListenerThreads chimeraListenerThreads;
-	static private Map<Integer, ChimeraModel> currentModelsMap;
+	static private ChimeraTransport chimeraTransport;
+	static private ModelRegistry currentModels;
 
 	private static Logger logger = LoggerFactory
 			.getLogger(edu.ucsf.rbvi.structureViz2.internal.model.ChimeraManager.class);
 
 	private StructureManager structureManager;
+	private File bulkDataScript = null;
+	private volatile long commandTimeout = 0;
+	// Kept across Chimera sessions, reset on request
+	private final CommandStats commandStats = new CommandStats();
+	// Replies to read-only queries, only used while we listen to changes in Chimera
+	private final ReplyCache replyCache = new ReplyCache();
+	private final SpecCache specCache = new SpecCache(this);
+	private ModelInfoCache modelInfoCache = null;
+	// The launch of Chimera in the background, if any
+	private final Object launchLock = new Object();
+	private FutureTask<Boolean> pendingLaunch = null;
+	// Headless Chimeras for batch jobs, separate from the interactive one
+	private ChimeraWorkerPool workerPool = null;
+	// The replies the threads sending commands are waiting for, so they can be cancelled
+	private final Map<Thread, List<ReplyFuture>> activeReplies = Collections
+			.synchronizedMap(new WeakHashMap<Thread, List<ReplyFuture>>());
 
 	public ChimeraManager(StructureManager structureManager) {
 		this.structureManager = structureManager;
 		chimera = null;
 		chimeraListenerThreads = null;
-		currentModelsMap = new HashMap<Integer, ChimeraModel>();
+		chimeraTransport = null;
+		currentModels = new ModelRegistry();
 	}
 
 	public List<ChimeraModel> getChimeraModels(String modelName) {
@@ -43,59 +112,40 @@ public class ChimeraManager {
 	}
 
 	public List<ChimeraModel> getChimeraModels(String modelName, ModelType modelType) {
-		List<ChimeraModel> models = new ArrayList<ChimeraModel>();
-		for (ChimeraModel model : currentModelsMap.values()) {
-			if (modelName.equals(model.getModelName()) && modelType.equals(model.getModelType())) {
-				models.add(model);
-			}
-		}
-		return models;
+		return currentModels.getSnapshot().getModels(modelName, modelType);
 	}
 
 	public Map<String, List<ChimeraModel>> getChimeraModelsMap() {
-		Map<String, List<ChimeraModel>> models = new HashMap<String, List<ChimeraModel>>();
-		for (ChimeraModel model : currentModelsMap.values()) {
-			String modelName = model.getModelName();
-			if (!models.containsKey(modelName)) {
-				models.put(modelName, new ArrayList<ChimeraModel>());
-			}
-			if (!models.get(modelName).contains(model)) {
-				models.get(modelName).add(model);
-			}
-		}
-		return models;
+		return currentModels.getSnapshot().getModelsByName();
 	}
 
 	public ChimeraModel getChimeraModel(Integer modelNumber, Integer subModelNumber) {
-		Integer key = ChimUtils.makeModelKey(modelNumber, subModelNumber);
-		if (currentModelsMap.containsKey(key)) {
-			return currentModelsMap.get(key);
-		}
-		return null;
+		return currentModels.getSnapshot().getModel(
+				ChimUtils.makeModelKey(modelNumber, subModelNumber));
 	}
 
 	public ChimeraModel getChimeraModel() {
-		return currentModelsMap.values().iterator().next();
+		return currentModels.getSnapshot().getModels().iterator().next();
 	}
 
 	public Collection<ChimeraModel> getChimeraModels() {
 		// this method is invoked by the model navigator dialog
-		return currentModelsMap.values();
+		return currentModels.getSnapshot().getModels();
+	}
+
+	/**
+	 * Get the models that are open now. The snapshot doesn't change when models are opened or
+	 * closed later, so it can be read from any thread.
+	 * 
+	 * @return the snapshot of the open models
+	 */
+	public ModelRegistry.Snapshot getModelSnapshot() {
+		return currentModels.getSnapshot();
 	}
 
 	public int getChimeraModelsCount(boolean smiles) {
 		// this method is invokes by the model navigator dialog
-		int counter = currentModelsMap.size();
-		if (smiles) {
-			return counter;
-		}
-
-		for (ChimeraModel model : currentModelsMap.values()) {
-			if (model.getModelType() == ModelType.SMILES) {
-				counter--;
-			}
-		}
-		return counter;
+		return currentModels.getSnapshot().getModelCount(smiles);
 	}
 
 	public boolean hasChimeraModel(Integer modelNubmer) {
@@ -103,58 +153,112 @@ public class ChimeraManager {
 	}
 
 	public boolean hasChimeraModel(Integer modelNubmer, Integer subModelNumber) {
-		return currentModelsMap.containsKey(ChimUtils.makeModelKey(modelNubmer, subModelNumber));
+		return currentModels.getSnapshot().containsModel(
+				ChimUtils.makeModelKey(modelNubmer, subModelNumber));
 	}
 
 	public void addChimeraModel(Integer modelNumber, Integer subModelNumber, ChimeraModel model) {
-		currentModelsMap.put(ChimUtils.makeModelKey(modelNumber, subModelNumber), model);
+		currentModels.put(model);
+		specCache.invalidate();
+	}
+
+	/**
+	 * Add several models at once, so that no other thread sees only some of them
+	 * 
+	 * @param models
+	 *            the models
+	 */
+	public void addChimeraModels(Collection<ChimeraModel> models) {
+		currentModels.putAll(models);
+		specCache.invalidate();
 	}
 
 	public void removeChimeraModel(Integer modelNumber, Integer subModelNumber) {
 		int modelKey = ChimUtils.makeModelKey(modelNumber, subModelNumber);
-		if (currentModelsMap.containsKey(modelKey)) {
-			currentModelsMap.remove(modelKey);
+		if (currentModels.remove(modelKey) != null) {
+			specCache.invalidate();
 		}
 	}
 
 	public List<ChimeraModel> openModel(String modelPath, ModelType type) {
 		logger.info("chimera open " + modelPath);
 		stopListening();
-		List<String> response = null;
-
-		// Get the current list of open models
-		List<ChimeraModel> modelList = getModelList();
-
+		// Send the open command together with the model queries around it
+		String openCommand = null;
 		// TODO: [Optional] Handle modbase models
 		if (type == ModelType.MODBASE_MODEL) {
-			response = sendChimeraCommand("open modbase:" + modelPath, true);
+			openCommand = "open modbase:" + modelPath;
 			// } else if (type == ModelType.SMILES) {
-			// response = sendChimeraCommand("open smiles:" + modelName, true);
+			// openCommand = "open smiles:" + modelName;
 			// modelName = "smiles:" + modelName;
 		} else {
-			response = sendChimeraCommand("open " + modelPath, true);
+			openCommand = "open " + modelPath;
 		}
-		if (response == null) {
+		// Structures that have been opened before don't need their residues listed again
+		String cacheKey = getModelInfoCache().getKey(modelPath, type);
+		List<ReplyFuture> pendingReplies = submitChimeraCommands(Arrays.asList(
+				"list models type molecule", openCommand, "list models type molecule",
+				"list models type molecule attribute numResidues"));
+		if (pendingReplies == null || getReply(pendingReplies.get(1)) == null) {
 			// something went wrong
 			logger.warn("Could not open " + modelPath);
+			startListening();
 			return null;
 		}
 
-		List<ChimeraModel> models = new ArrayList<ChimeraModel>();
+		// Get the models that were open before
+		Set<Integer> oldModelKeys = new HashSet<Integer>();
+		for (ChimeraModel oldModel : parseModelList(getReply(pendingReplies.get(0)))) {
+			oldModelKeys.add(ChimUtils.makeModelKey(oldModel.getModelNumber(),
+					oldModel.getSubModelNumber()));
+		}
 
-		for (ChimeraModel model: getModelList()) {
-			for (ChimeraModel oldModel: modelList) {
-				if (model.getModelNumber() != oldModel.getModelNumber())
-					break;
+		// Keep only the models the open command added
+		List<ChimeraModel> models = new ArrayList<ChimeraModel>();
+		for (ChimeraModel model : parseModelList(getReply(pendingReplies.get(2)))) {
+			if (!oldModelKeys.contains(ChimUtils.makeModelKey(model.getModelNumber(),
+					model.getSubModelNumber())))
+				models.add(model);
+		}
+		// Residue counts to check cache entries that were not listed by Chimera
+		Map<Integer, Integer> residueCounts = new HashMap<Integer, Integer>();
+		List<String> countReply = getReply(pendingReplies.get(3));
+		if (countReply != null) {
+			for (Map.Entry<Integer, String> count : parseModelAttribute(countReply, "numResidues")
+					.entrySet()) {
+				try {
+					residueCounts.put(count.getKey(), Integer.valueOf(count.getValue()));
+				} catch (NumberFormatException e) {
+					// not a count, such an entry isn't used
+				}
 			}
-			models.add(model);
-			addChimeraModel(model.getModelNumber(), model.getSubModelNumber(), model);
 		}
+		boolean listResidues = type != ModelType.SMILES
+				&& (cacheKey == null || !getModelInfoCache().hydrate(cacheKey, models,
+						residueCounts));
 
-		// assign color and residues to open models
+		// assign color and residues to open models: query all models at once and
+		// collect the replies afterwards
+		List<String> commands = new ArrayList<String>();
+		for (ChimeraModel newModel : models) {
+			commands.add(getModelColorCommand(newModel));
+			// Create the information we need for the navigator
+			if (listResidues) {
+				commands.add(getResiduesCommand(newModel));
+			}
+		}
+		commands.add("focus");
+		pendingReplies = submitChimeraCommands(commands);
+		if (pendingReplies == null) {
+			addChimeraModels(models);
+			startListening();
+			return models;
+		}
+		int reply = 0;
+		boolean complete = true;
 		for (ChimeraModel newModel : models) {
 			// get model color
-			Color modelColor = getModelColor(newModel);
+			Color modelColor = parseModelColor(getReply(pendingReplies.get(reply++)));
 			if (modelColor != null) {
 				newModel.setModelColor(modelColor);
 			}
@@ -163,13 +267,18 @@ public class ChimeraManager {
 			// Make the molecule look decent
 			// chimeraSend("repr stick "+newModel.toSpec());
 
-			// Create the information we need for the navigator
-			if (type != ModelType.SMILES) {
-				addResidues(newModel);
+			if (listResidues) {
+				List<String> residues = getReply(pendingReplies.get(reply++));
+				complete &= residues != null;
+				addResidues(newModel, residues);
 			}
 		}
+		if (listResidues && complete && cacheKey != null) {
+			getModelInfoCache().store(cacheKey, models);
+		}
+		// publish the models once they are complete
+		addChimeraModels(models);
 
-		sendChimeraCommand("focus", false);
 		startListening();
 		return models;
 	}
@@ -180,12 +289,10 @@ public class ChimeraManager {
 		// Integer modelKey = makeModelKey(model, subModel);
 		stopListening();
 		logger.info("chimera close model " + model.getModelName());
-		if (currentModelsMap.containsKey(ChimUtils.makeModelKey(model.getModelNumber(),
-				model.getSubModelNumber()))) {
+		if (hasChimeraModel(model.getModelNumber(), model.getSubModelNumber())) {
 			sendChimeraCommand("close " + model.toSpec(), false);
 			// currentModelNamesMap.remove(model.getModelName());
-			currentModelsMap.remove(ChimUtils.makeModelKey(model.getModelNumber(),
-					model.getSubModelNumber()));
+			removeChimeraModel(model.getModelNumber(), model.getSubModelNumber());
 			// selectionList.remove(chimeraModel);
 		} else {
 			logger.warn("Could not find model " + model.getModelName() + " to close.");
@@ -195,9 +302,12 @@ public class ChimeraManager {
 
 	public void startListening() {
 		sendChimeraCommand("listen start models; listen start select", false);
+		replyCache.setEnabled(true);
 	}
 
 	public void stopListening() {
+		// We won't hear about changes anymore
+		replyCache.setEnabled(false);
 		sendChimeraCommand("listen stop models; listen stop select", false);
 	}
 
@@ -216,15 +326,58 @@ public class ChimeraManager {
 	}
 
 	public void clearOnChimeraExit() {
+		if (chimeraTransport != null) {
+			chimeraTransport.close();
+		}
+		chimeraTransport = null;
 		chimera = null;
-		currentModelsMap.clear();
+		replyCache.setEnabled(false);
+		currentModels.clear();
+		specCache.invalidate();
 		chimeraListenerThreads = null;
 		structureManager.clearOnChimeraExit();
 	}
 
+	/**
+	 * Get the pool of headless Chimera workers that batch jobs can be spread over. The workers
+	 * are separate from the interactive Chimera and are started when the first job needs them.
+	 * 
+	 * @return the worker pool
+	 */
+	public synchronized ChimeraWorkerPool getWorkerPool() {
+		if (workerPool == null) {
+			workerPool = new ChimeraWorkerPool(structureManager.getChimeraPaths(null),
+					structureManager.getChimeraWorkersProperty());
+		}
+		workerPool.setCommandTimeout(commandTimeout);
+		return workerPool;
+	}
+
+	/**
+	 * Get the statistics of the commands sent to the headless Chimera workers
+	 * 
+	 * @return the statistics or <code>null</code> if no worker pool has been created
+	 */
+	public synchronized CommandStats getWorkerCommandStats() {
+		return workerPool == null ? null : workerPool.getCommandStats();
+	}
+
+	/**
+	 * Stop all headless Chimera workers
+	 */
+	public synchronized void closeWorkerPool() {
+		if (workerPool != null) {
+			workerPool.close();
+			workerPool = null;
+		}
+	}
+
 	public void exitChimera() {
-		if (isChimeraLaunched() && chimera != null) {
-			sendChimeraCommand("stop really", false);
+		closeWorkerPool();
+		if (chimera != null) {
+			if (isChimeraLaunched()) {
+				sendChimeraCommand("stop really", false);
+			}
 			try {
 				chimera.destroy();
 			} catch (Exception ex) {
@@ -236,7 +389,7 @@ public class ChimeraManager {
 
 	public Map<Integer, ChimeraModel> getSelectedModels() {
 		Map<Integer, ChimeraModel> selectedModelsMap = new HashMap<Integer, ChimeraModel>();
-		List<String> chimeraReply = sendChimeraCommand("list selection level molecule", true);
+		List<String> chimeraReply = sendChimeraQuery("list selection level molecule", true);
 		if (chimeraReply != null) {
 			for (String modelLine : chimeraReply) {
 				ChimeraModel chimeraModel = new ChimeraModel(modelLine);
@@ -250,12 +403,12 @@ public class ChimeraManager {
 
 	public List<String> getSelectedResidueSpecs() {
 		List<String> selectedResidues = new ArrayList<String>();
-		List<String> chimeraReply = sendChimeraCommand("list selection level residue", true);
+		List<String> chimeraReply = sendChimeraQuery("list selection level residue", true);
 		if (chimeraReply != null) {
+			LineTokenizer tokens = new LineTokenizer();
 			for (String inputLine : chimeraReply) {
-				String[] inputLineParts = inputLine.split("\\s+");
-				if (inputLineParts.length == 5) {
-					selectedResidues.add(inputLineParts[2]);
+				if (tokens.reset(inputLine) == 5) {
+					selectedResidues.add(tokens.getString(2));
 				}
 			}
 		}
@@ -263,7 +416,7 @@ public class ChimeraManager {
 	}
 
 	public void getSelectedResidues(Map<Integer, ChimeraModel> selectedModelsMap) {
-		List<String> chimeraReply = sendChimeraCommand("list selection level residue", true);
+		List<String> chimeraReply = sendChimeraQuery("list selection level residue", true);
 		if (chimeraReply != null) {
 			for (String inputLine : chimeraReply) {
 				ChimeraResidue r = new ChimeraResidue(inputLine);
@@ -282,12 +435,64 @@ public class ChimeraManager {
 	 * part of it with "..." is printed.
 	 * 
 	 * 
-	 * @return List of ChimeraModel's
+	 * @return List of ChimeraModel's or <code>null</code> if Chimera did not answer
 	 */
 	// TODO: [Optional] Handle smiles names in a better way in Chimera?
 	public List<ChimeraModel> getModelList() {
+		List<String> reply = sendChimeraQuery("list models type molecule", false);
+		if (reply == null) {
+			return null;
+		}
+		return parseModelList(reply);
+	}
+
+	/**
+	 * Get model attributes of all open molecule models. The queries for all attributes are sent
+	 * at once, so this costs a single round trip to Chimera however many models are open.
+	 * 
+	 * @param attributes
+	 *            the names of the model attributes
+	 * @return a map from attribute name to the values by model key (see
+	 *         {@link ChimUtils#makeModelKey}), or <code>null</code> if Chimera did not answer
+	 */
+	public Map<String, Map<Integer, String>> getModelAttributes(List<String> attributes) {
+		List<String> commands = new ArrayList<String>();
+		for (String attribute : attributes) {
+			commands.add("list models type molecule attribute " + attribute);
+		}
+		List<ReplyFuture> pendingReplies = submitChimeraCommands(commands);
+		if (pendingReplies == null) {
+			return null;
+		}
+		Map<String, Map<Integer, String>> values = new HashMap<String, Map<Integer, String>>();
+		for (int i = 0; i < attributes.size(); i++) {
+			List<String> reply = getReply(pendingReplies.get(i));
+			if (reply == null) {
+				return null;
+			}
+			values.put(attributes.get(i), parseModelAttribute(reply, attributes.get(i)));
+		}
+		return values;
+	}
+
+	private Map<Integer, String> parseModelAttribute(List<String> reply, String attribute) {
+		// line = model id #0 type Molecule color 0.8,0.7,0.6,1
+		String separated = " " + attribute + " ";
+		Map<Integer, String> modelValues = new HashMap<Integer, String>();
+		for (String line : reply) {
+			int start = line.indexOf(separated);
+			if (!line.startsWith("model id #") || start < 0) {
+				continue;
+			}
+			int[] modelNumbers = ChimUtils.parseModelNumber(line);
+			modelValues.put(ChimUtils.makeModelKey(modelNumbers[0], modelNumbers[1]), line
+					.substring(start + separated.length()).trim());
+		}
+		return modelValues;
+	}
+
+	private List<ChimeraModel> parseModelList(List<String> list) {
 		List<ChimeraModel> modelList = new ArrayList<ChimeraModel>();
-		List<String> list = sendChimeraCommand("list models type molecule", true);
 		if (list != null) {
 			for (String modelLine : list) {
 				ChimeraModel chimeraModel = new ChimeraModel(modelLine);
@@ -305,7 +510,7 @@ public class ChimeraManager {
 	 */
 	public List<String> getPresets() {
 		ArrayList<String> presetList = new ArrayList<String>();
-		List<String> output = sendChimeraCommand("preset list", true);
+		List<String> output = sendChimeraQuery("preset list", false);
 		if (output != null) {
 			for (String preset : output) {
 				preset = preset.substring(7); // Skip over the "Preset"
@@ -318,25 +523,115 @@ public class ChimeraManager {
 		return presetList;
 	}
 
+	/**
+	 * Check whether Chimera is running and we can talk to it. This is <code>false</code> while
+	 * Chimera is still being launched, and as soon as the Chimera process has exited.
+	 * 
+	 * @return <code>true</code> if commands can be sent to Chimera
+	 */
 	public boolean isChimeraLaunched() {
-		// TODO: [Optional] What is the best way to test if chimera is launched?
-
-		// sendChimeraCommand("test", true) !=null
-		if (chimera != null) {
+		Process process = chimera;
+		if (process == null || chimeraTransport == null) {
+			return false;
+		}
+		try {
+			process.exitValue();
+			// Chimera went away, e.g. because the user closed it
+			return false;
+		} catch (IllegalThreadStateException e) {
 			return true;
 		}
-		return false;
 	}
 
+	/**
+	 * Launch Chimera and wait until it is ready. If Chimera is already being launched in the
+	 * background, wait for that launch instead of starting a second Chimera.
+	 * 
+	 * @param chimeraPaths
+	 *            the paths to try to start Chimera from
+	 * @return <code>true</code> if Chimera is ready
+	 */
 	public boolean launchChimera(List<String> chimeraPaths) {
 		// Do nothing if Chimera is already launched
 		if (isChimeraLaunched()) {
 			return true;
 		}
+		launchChimeraAsync(chimeraPaths);
+		return awaitChimera();
+	}
+
+	/**
+	 * Launch Chimera in the background, e.g. at startup so that it is ready by the time the first
+	 * structure is opened. Does nothing if Chimera is already running or being launched.
+	 * 
+	 * @param chimeraPaths
+	 *            the paths to try to start Chimera from
+	 * @return the result of the launch, <code>true</code> once Chimera is ready
+	 */
+	public Future<Boolean> launchChimeraAsync(final List<String> chimeraPaths) {
+		synchronized (launchLock) {
+			if (pendingLaunch == null || pendingLaunch.isDone()) {
+				pendingLaunch = new FutureTask<Boolean>(new Callable<Boolean>() {
+					public Boolean call() {
+						return startChimera(chimeraPaths);
+					}
+				});
+				Thread launcher = new Thread(pendingLaunch, "Chimera launcher");
+				launcher.setDaemon(true);
+				launcher.start();
+			}
+			return pendingLaunch;
+		}
+	}
+
+	/**
+	 * Wait for Chimera to be launched if a launch is under way
+	 * 
+	 * @return <code>true</code> if Chimera is ready
+	 */
+	public boolean awaitChimera() {
+		Future<Boolean> launch;
+		synchronized (launchLock) {
+			launch = pendingLaunch;
+		}
+		if (launch != null) {
+			try {
+				launch.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				logger.warn("Could not launch Chimera", e.getCause());
+			}
+		}
+		return isChimeraLaunched();
+	}
+
+	private boolean startChimera(List<String> chimeraPaths) {
+		if (isChimeraLaunched()) {
+			return true;
+		}
+		if (chimera != null) {
+			// Clean up after a Chimera that has exited
+			clearOnChimeraExit();
+		}
+
+		// Play back a recorded session instead of launching Chimera
+		File replay = structureManager.getChimeraReplayProperty();
+		if (replay != null) {
+			try {
+				logger.info("Replaying Chimera session " + replay);
+				return connectChimera(new SessionReplay(replay, true).start());
+			} catch (IOException e) {
+				logger.warn("Could not read Chimera session " + replay + ": " + e.getMessage());
+				return false;
+			}
+		}
 
 		// Try to launch Chimera (eventually using one of the possible paths)
 		String error = "Error message: ";
 		String workingPath = "";
+		boolean useRest = TRANSPORT_REST.equals(structureManager.getChimeraTransportProperty());
 		// iterate over possible paths for starting Chimera
 		for (String chimeraPath : chimeraPaths) {
 			File path = new File(chimeraPath);
@@ -348,9 +643,14 @@ public class ChimeraManager {
 				List<String> args = new ArrayList<String>();
 				args.add(chimeraPath);
 				args.add("--start");
-				args.add("ReadStdin");
+				args.add(useRest ? "RESTServer" : "ReadStdin");
 				ProcessBuilder pb = new ProcessBuilder(args);
 				chimera = pb.start();
+				File record = structureManager.getChimeraRecordProperty();
+				if (record != null && !useRest) {
+					logger.info("Recording Chimera session to " + record);
+					chimera = new SessionRecorder(chimera, record);
+				}
 				error = "";
 				workingPath = chimeraPath;
 				logger.info("Strarting " + chimeraPath);
@@ -363,8 +663,16 @@ public class ChimeraManager {
 		// If no error, then Chimera was launched successfully
 		if (error.length() == 0) {
 			// Initialize the listener threads
-			chimeraListenerThreads = new ListenerThreads(chimera, structureManager);
+			chimeraListenerThreads = new ListenerThreads(chimera, structureManager, commandStats,
+				replyCache);
 			chimeraListenerThreads.start();
+			chimeraTransport = createTransport(useRest);
+			if (chimeraTransport == null) {
+				logger.warn("Could not connect to the Chimera REST server");
+				exitChimera();
+				return false;
+			}
+			logger.info("Chimera is ready");
 			// structureManager.initChimTable();
 			structureManager.setChimeraPathProperty(workingPath);
 			// TODO: [Optional] Check Chimera version and show a warning if below 1.8
@@ -378,6 +686,44 @@ public class ChimeraManager {
 		return false;
 	}
 
+	/**
+	 * Use an already running Chimera process that speaks the ReadStdin protocol, e.g. a
+	 * {@link edu.ucsf.rbvi.structureViz2.internal.port.SessionReplay} or a mock Chimera in tests.
+	 * 
+	 * @param process
+	 *            the Chimera process
+	 * @return <code>true</code> if the process is used, <code>false</code> if Chimera is already
+	 *         launched
+	 */
+	public boolean connectChimera(Process process) {
+		if (isChimeraLaunched()) {
+			return false;
+		}
+		chimera = process;
+		chimeraListenerThreads = new ListenerThreads(chimera, structureManager, commandStats,
+				replyCache);
+		chimeraListenerThreads.start();
+		chimeraTransport = new PipeTransport(chimera, chimeraListenerThreads);
+		// Ask Chimera to give us updates
+		startListening();
+		return true;
+	}
+
+	private ChimeraTransport createTransport(boolean useRest) {
+		if (!useRest) {
+			return new PipeTransport(chimera, chimeraListenerThreads);
+		}
+		try {
+			int port = chimeraListenerThreads.getRestPort(REST_TIMEOUT, TimeUnit.SECONDS);
+			if (port > 0) {
+				return new RestTransport("localhost", port, chimeraListenerThreads);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
 	/**
 	 * Determine the color that Chimera is using for this model.
 	 * 
@@ -386,8 +732,15 @@ public class ChimeraManager {
 	 * @return the default model Color for this model in Chimera
 	 */
 	public Color getModelColor(ChimeraModel model) {
-		List<String> colorLines = sendChimeraCommand("list model spec " + model.toSpec()
-				+ " attribute color", true);
+		// Not cached: recoloring in Chimera's own UI doesn't send a notification we could use
+		return parseModelColor(sendChimeraCommand(getModelColorCommand(model), true));
+	}
+
+	private String getModelColorCommand(ChimeraModel model) {
+		return "list model spec " + model.toSpec() + " attribute color";
+	}
+
+	private Color parseModelColor(List<String> colorLines) {
 		if (colorLines == null || colorLines.size() == 0) {
 			return null;
 		}
@@ -404,10 +757,56 @@ public class ChimeraManager {
 	 * 
 	 */
 	public void addResidues(ChimeraModel model) {
+		// Get the list -- it will be in the reply log
+		addResidues(model, sendChimeraQuery(getResiduesCommand(model), false));
+	}
+
+	/**
+	 * Get the color and the residues of several models. The queries for all models are sent at
+	 * once, so this costs a single round trip to Chimera.
+	 * 
+	 * @param models
+	 *            the models to get the information for
+	 * @return <code>true</code> if Chimera listed the residues of all models
+	 */
+	public boolean addModelInfo(List<ChimeraModel> models) {
+		List<String> commands = new ArrayList<String>();
+		for (ChimeraModel model : models) {
+			commands.add(getModelColorCommand(model));
+			if (model.getModelType() != ModelType.SMILES) {
+				commands.add(getResiduesCommand(model));
+			}
+		}
+		if (commands.size() == 0) {
+			return true;
+		}
+		List<ReplyFuture> pendingReplies = submitChimeraCommands(commands);
+		if (pendingReplies == null) {
+			return false;
+		}
+		int reply = 0;
+		boolean complete = true;
+		for (ChimeraModel model : models) {
+			Color modelColor = parseModelColor(getReply(pendingReplies.get(reply++)));
+			if (modelColor != null) {
+				model.setModelColor(modelColor);
+			}
+			if (model.getModelType() != ModelType.SMILES) {
+				List<String> residues = getReply(pendingReplies.get(reply++));
+				complete &= residues != null;
+				addResidues(model, residues);
+			}
+		}
+		return complete;
+	}
+
+	private String getResiduesCommand(ChimeraModel model) {
+		return "list residues spec " + model.toSpec();
+	}
+
+	private void addResidues(ChimeraModel model, List<String> reply) {
 		int modelNumber = model.getModelNumber();
 		int subModelNumber = model.getSubModelNumber();
-		// Get the list -- it will be in the reply log
-		List<String> reply = sendChimeraCommand("list residues spec " + model.toSpec(), true);
 		if (reply == null) {
 			return;
 		}
@@ -417,11 +816,78 @@ public class ChimeraManager {
 				model.addResidue(r);
 			}
 		}
+		// specs of the new residues may have been cached as not found
+		specCache.invalidate();
+	}
+
+	/**
+	 * Get the coordinates of atoms through a binary file instead of the text output of getcrd.
+	 * 
+	 * @param spec
+	 *            the atoms to get the coordinates for
+	 * @return the coordinates or <code>null</code> if Chimera could not provide them this way
+	 */
+	public AtomData getAtomCoordinates(String spec) {
+		return getAtomData("coords", spec);
+	}
+
+	/**
+	 * Get the distances between atoms through a binary file instead of the text output of list
+	 * distmat.
+	 * 
+	 * @param spec
+	 *            the atoms to get the distances for
+	 * @return the distances or <code>null</code> if Chimera could not provide them this way
+	 */
+	public AtomData getAtomDistances(String spec) {
+		return getAtomData("distances", spec);
+	}
+
+	private AtomData getAtomData(String mode, String spec) {
+		File dataFile = null;
+		File indexFile = null;
+		try {
+			File script = getBulkDataScript();
+			dataFile = File.createTempFile("structureViz", ".bin");
+			indexFile = AtomData.getIndexFile(dataFile);
+			List<String> reply = sendChimeraCommand(AtomData.getCommand(script, mode, dataFile,
+					spec), true);
+			if (reply == null || !indexFile.exists()) {
+				return null;
+			}
+			return AtomData.read(dataFile, indexFile, mode.equals("coords"));
+		} catch (IOException e) {
+			logger.warn("Could not get " + mode + " for " + spec + ": " + e.getMessage());
+			return null;
+		} finally {
+			// A mapped file can't be deleted on every platform
+			if (dataFile != null && !dataFile.delete()) {
+				dataFile.deleteOnExit();
+			}
+			if (indexFile != null) {
+				indexFile.delete();
+			}
+		}
+	}
+
+	private synchronized File getBulkDataScript() throws IOException {
+		if (bulkDataScript == null || !bulkDataScript.exists()) {
+			File script = File.createTempFile("structureViz", ".py");
+			script.deleteOnExit();
+			Writer writer = new FileWriter(script);
+			try {
+				writer.write(BULK_DATA_SCRIPT);
+			} finally {
+				writer.close();
+			}
+			bulkDataScript = script;
+		}
+		return bulkDataScript;
 	}
 
 	public List<String> getAttrList() {
 		List<String> attributes = new ArrayList<String>();
-		final List<String> reply = sendChimeraCommand("list resattr", true);
+		final List<String> reply = sendChimeraQuery("list resattr", false);
 		if (reply != null) {
 			for (String inputLine : reply) {
 				String[] lineParts = inputLine.split("\\s");
@@ -434,9 +900,40 @@ public class ChimeraManager {
 	}
 
 	public Map<ChimeraResidue, Object> getAttrValues(String aCommand, ChimeraModel model) {
+		return parseAttrValues(sendChimeraCommand(getAttrValuesCommand(aCommand, model), true),
+				model);
+	}
+
+	/**
+	 * Get the values of several residue attributes of a model in a single exchange with Chimera.
+	 * 
+	 * @param attributes
+	 *            the names of the residue attributes
+	 * @param model
+	 *            the model to get the values for
+	 * @return a map from attribute name to the residue values of that attribute
+	 */
+	public Map<String, Map<ChimeraResidue, Object>> getAttrValues(List<String> attributes,
+			ChimeraModel model) {
+		Map<String, Map<ChimeraResidue, Object>> values = new HashMap<String, Map<ChimeraResidue, Object>>();
+		List<String> commands = new ArrayList<String>();
+		for (String attribute : attributes) {
+			commands.add(getAttrValuesCommand(attribute, model));
+		}
+		List<List<String>> replies = sendChimeraBatch(commands);
+		for (int i = 0; i < attributes.size(); i++) {
+			values.put(attributes.get(i),
+					parseAttrValues(replies == null ? null : replies.get(i), model));
+		}
+		return values;
+	}
+
+	private String getAttrValuesCommand(String aCommand, ChimeraModel model) {
+		return "list residue spec " + model.toSpec() + " attribute " + aCommand;
+	}
+
+	private Map<ChimeraResidue, Object> parseAttrValues(List<String> reply, ChimeraModel model) {
 		Map<ChimeraResidue, Object> values = new HashMap<ChimeraResidue, Object>();
-		final List<String> reply = sendChimeraCommand("list residue spec " + model.toSpec()
-				+ " attribute " + aCommand, true);
 		if (reply != null) {
 			for (String inputLine : reply) {
 				String[] lineParts = inputLine.split("\\s");
@@ -475,29 +972,280 @@ public class ChimeraManager {
 	 * @return List of Strings corresponding to the lines in the Chimera reply or <code>null</code>.
 	 */
 	public List<String> sendChimeraCommand(String command, boolean reply) {
-		if (!isChimeraLaunched()) {
+		ReplyFuture pendingReply = submitChimeraCommand(command);
+		if (pendingReply == null || !reply) {
+			return null;
+		}
+		return getReply(pendingReply);
+	}
+
+	/**
+	 * Send a read-only query to Chimera, or answer it from the replies to earlier queries if
+	 * nothing has changed since.
+	 * 
+	 * @param command
+	 *            the query, which must not change anything in Chimera
+	 * @param selection
+	 *            <code>true</code> if the reply depends on the current selection
+	 * @return List of Strings corresponding to the lines in the Chimera reply or <code>null</code>.
+	 *         The list can't be modified.
+	 */
+	public List<String> sendChimeraQuery(String command, boolean selection) {
+		List<String> reply = replyCache.get(command);
+		if (reply != null) {
+			return reply;
+		}
+		long generation = replyCache.getGeneration();
+		reply = sendChimeraCommand(command, true);
+		if (reply == null) {
+			return null;
+		}
+		return replyCache.put(command, reply, generation, selection);
+	}
+
+	/**
+	 * Send several commands to Chimera in a single exchange and wait for all replies.
+	 * 
+	 * @param commands
+	 *            the commands to send
+	 * @return one reply per command, in the same order as the commands, or <code>null</code> if
+	 *         the commands could not be sent. The reply to a single command may be
+	 *         <code>null</code> if Chimera did not answer it.
+	 */
+	public List<List<String>> sendChimeraBatch(List<String> commands) {
+		List<ReplyFuture> pendingReplies = submitChimeraCommands(commands);
+		if (pendingReplies == null) {
+			return null;
+		}
+		List<List<String>> replies = new ArrayList<List<String>>(pendingReplies.size());
+		for (ReplyFuture pendingReply : pendingReplies) {
+			replies.add(getReply(pendingReply));
+		}
+		return replies;
+	}
+
+	/**
+	 * Send a command to Chimera without waiting for the reply.
+	 * 
+	 * @param command
+	 *            Command string to be send.
+	 * @return the pending reply or <code>null</code> if the command could not be sent.
+	 */
+	public ReplyFuture submitChimeraCommand(String command) {
+		List<ReplyFuture> pendingReplies = submitChimeraCommands(Collections.singletonList(command));
+		if (pendingReplies == null) {
 			return null;
 		}
+		return pendingReplies.get(0);
+	}
 
-		chimeraListenerThreads.clearResponse(command);
-		String text = command.concat("\n");
-		// System.out.println("send command to chimera: " + text);
+	/**
+	 * Send a command to Chimera and read the reply while it arrives. This keeps the memory use
+	 * constant for very long replies. The caller must not wait for the reply to another Chimera
+	 * command while reading the stream, and should close the stream if it stops reading early.
+	 * 
+	 * @param command
+	 *            Command string to be send.
+	 * @return the lines of the reply or <code>null</code> if the command could not be sent.
+	 */
+	public ReplyStream streamChimeraCommand(String command) {
+		ChimeraTransport transport = chimeraTransport;
+		if (transport == null) {
+			return null;
+		}
+		ReplyStream stream = new ReplyStream();
+		stream.setTimeout(commandTimeout);
+		if (!ReplyCache.isReadOnly(command)) {
+			replyCache.invalidate();
+		}
 		try {
-			// send the command
-			chimera.getOutputStream().write(text.getBytes());
-			chimera.getOutputStream().flush();
+			addActiveReplies(Collections.singletonList(transport.submit(command, stream)));
 		} catch (IOException e) {
-			// logger.info("Unable to execute command: " + text);
-			// logger.info("Exiting...");
-			logger.warn("Unable to execute command: " + text);
+			logger.warn("Unable to execute command: " + command);
 			logger.warn("Exiting...");
 			clearOnChimeraExit();
 			return null;
 		}
-		if (!reply) {
+		return stream;
+	}
+
+	/**
+	 * Send several commands to Chimera back to back without waiting for the replies in between.
+	 * Chimera answers the commands in order, so the total time is bound by the time Chimera needs
+	 * to execute the commands rather than by one round trip per command.
+	 * 
+	 * @param commands
+	 *            the commands to send
+	 * @return the pending replies, in the same order as the commands, or <code>null</code> if
+	 *         the commands could not be sent.
+	 */
+	public List<ReplyFuture> submitChimeraCommands(List<String> commands) {
+		ChimeraTransport transport = chimeraTransport;
+		if (transport == null) {
+			return null;
+		}
+		// Whatever the commands change, the cached replies may not be valid anymore
+		for (String command : commands) {
+			if (!ReplyCache.isReadOnly(command)) {
+				replyCache.invalidate();
+				break;
+			}
+		}
+		try {
+			List<ReplyFuture> pendingReplies = transport.submit(commands);
+			addActiveReplies(pendingReplies);
+			return pendingReplies;
+		} catch (IOException e) {
+			logger.warn("Unable to execute commands: " + commands);
+			logger.warn("Exiting...");
+			clearOnChimeraExit();
+			return null;
+		}
+	}
+
+	/**
+	 * Wait for the reply to a command that has been submitted to Chimera.
+	 * 
+	 * @param pendingReply
+	 *            the pending reply as returned by {@link #submitChimeraCommand(String)}
+	 * @return List of Strings corresponding to the lines in the Chimera reply or <code>null</code>.
+	 */
+	public List<String> getReply(ReplyFuture pendingReply) {
+		return getReply(pendingReply, commandTimeout);
+	}
+
+	/**
+	 * Wait for the reply to a command that has been submitted to Chimera, but not longer than the
+	 * given time. A command that times out is cancelled; its reply is skipped when it arrives.
+	 * 
+	 * @param pendingReply
+	 *            the pending reply as returned by {@link #submitChimeraCommand(String)}
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds, 0 to wait as long as it takes
+	 * @return List of Strings corresponding to the lines in the Chimera reply or <code>null</code>.
+	 */
+	public List<String> getReply(ReplyFuture pendingReply, long timeout) {
+		if (pendingReply == null) {
 			return null;
 		}
-		return chimeraListenerThreads.getResponse(command);
+		long start = System.nanoTime();
+		try {
+			if (timeout > 0) {
+				return pendingReply.get(timeout, TimeUnit.MILLISECONDS);
+			}
+			return pendingReply.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.warn("Unable to get reply for command: " + pendingReply.getCommand(), e);
+		} catch (TimeoutException e) {
+			logger.warn(e.getMessage());
+			pendingReply.cancel(false);
+		} finally {
+			commandStats.callerWaited(System.nanoTime() - start);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the statistics about the commands sent to Chimera: counts, latencies and reply sizes per
+	 * command verb, the number of commands waiting for a reply, and the time spent on model and
+	 * selection updates.
+	 * 
+	 * @return the statistics
+	 */
+	public CommandStats getCommandStats() {
+		return commandStats;
+	}
+
+	/**
+	 * Get the cache for the replies to read-only queries
+	 * 
+	 * @return the cache
+	 */
+	public ReplyCache getReplyCache() {
+		return replyCache;
+	}
+
+	/**
+	 * Get the cache for the chains and residues of structures that have been opened before
+	 * 
+	 * @return the cache
+	 */
+	public synchronized ModelInfoCache getModelInfoCache() {
+		if (modelInfoCache == null) {
+			modelInfoCache = new ModelInfoCache(new File(structureManager.getConfigurationDirectory(),
+					"models"));
+		}
+		return modelInfoCache;
+	}
+
+	/**
+	 * Get the cache for the objects attribute specifications refer to
+	 * 
+	 * @return the cache
+	 */
+	public SpecCache getSpecCache() {
+		return specCache;
+	}
+
+	/**
+	 * Set the time to wait for the reply to a command before giving up on it
+	 * 
+	 * @param timeout
+	 *            the timeout in milliseconds, 0 to wait as long as it takes
+	 */
+	public void setCommandTimeout(long timeout) {
+		this.commandTimeout = timeout;
+	}
+
+	/**
+	 * Get the time to wait for the reply to a command before giving up on it
+	 * 
+	 * @return the timeout in milliseconds, 0 means no timeout
+	 */
+	public long getCommandTimeout() {
+		return commandTimeout;
+	}
+
+	/**
+	 * Cancel all commands a thread is waiting for, e.g. because the user cancelled the task
+	 * running in that thread. The thread gets <code>null</code> instead of the replies, and
+	 * streamed replies end. Chimera still executes the commands, their replies are skipped.
+	 * 
+	 * @param thread
+	 *            the thread that sent the commands
+	 */
+	public void cancelCommands(Thread thread) {
+		if (thread == null) {
+			return;
+		}
+		List<ReplyFuture> pendingReplies = activeReplies.remove(thread);
+		if (pendingReplies == null) {
+			return;
+		}
+		for (ReplyFuture pendingReply : pendingReplies) {
+			pendingReply.cancel(false);
+		}
+	}
+
+	private void addActiveReplies(List<ReplyFuture> pendingReplies) {
+		Thread thread = Thread.currentThread();
+		synchronized (activeReplies) {
+			List<ReplyFuture> threadReplies = activeReplies.get(thread);
+			if (threadReplies == null) {
+				threadReplies = new ArrayList<ReplyFuture>();
+				activeReplies.put(thread, threadReplies);
+			}
+			// forget about the replies that have arrived
+			Iterator<ReplyFuture> iter = threadReplies.iterator();
+			while (iter.hasNext()) {
+				if (iter.next().isDone()) {
+					iter.remove();
+				}
+			}
+			threadReplies.addAll(pendingReplies);
+		}
 	}
 
 }
@@ -117,15 +117,24 @@ public class ChimeraModel implements ChimeraStructuralObject {
 	 *            to add to the chain
 	 */
 	public void addResidue(String chainId, ChimeraResidue residue) {
-		ChimeraChain chain = null;
-		if (!chainMap.containsKey(chainId)) {
+		addChain(chainId).addResidue(residue);
+	}
+
+	/**
+	 * Get a chain of this model, creating it if it doesn't exist
+	 * 
+	 * @param chainId
+	 *            the chain
+	 * @return the chain
+	 */
+	ChimeraChain addChain(String chainId) {
+		ChimeraChain chain = chainMap.get(chainId);
+		if (chain == null) {
 			chain = new ChimeraChain(this.modelNumber, this.subModelNumber, chainId);
 			chain.setChimeraModel(this);
 			chainMap.put(chainId, chain);
-		} else {
-			chain = chainMap.get(chainId);
 		}
-		chain.addResidue(residue);
+		return chain;
 	}
 
 	/**
@@ -228,11 +237,25 @@ public class ChimeraModel implements ChimeraStructuralObject {
 	public void setFuncResidues(List<String> residues) {
 		for (String residue : residues) {
 			for (ChimeraChain chain : getChains()) {
-				if (residue.indexOf("-") > 0) {
-					funcResidues.addAll(chain.getResidueRange(residue));
-				} else {
-					funcResidues.add(chain.getResidue(residue));
+				if (residue.indexOf("-", 1) > 0) {
+					try {
+						funcResidues.addAll(chain.getResidueRange(residue));
+					} catch (NumberFormatException e) {
+						// not a range of residue numbers, ignore
+					}
+					continue;
+				}
+				// a residue may name its chain
+				String index = residue;
+				int dot = residue.lastIndexOf('.');
+				if (dot > 0) {
+					if (!residue.substring(dot + 1).equals(chain.getChainId()))
+						continue;
+					index = residue.substring(0, dot);
 				}
+				ChimeraResidue funcResidue = chain.getResidue(index);
+				if (funcResidue != null)
+					funcResidues.add(funcResidue);
 			}
 		}
 	}
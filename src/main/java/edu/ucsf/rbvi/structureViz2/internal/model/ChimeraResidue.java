@@ -34,14 +34,17 @@ package edu.ucsf.rbvi.structureViz2.internal.model;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.slf4j.LoggerFactory;
 
 /**
  * This class provides the implementation for the ChimeraResidue, object
  * 
+ * Once a residue has been added to a {@link ChimeraChain}, it is a view on the entry of the
+ * residue in the residue table of the chain, and the chain hands out new views whenever residues
+ * are asked for. Two residues are equal if they are views on the same entry, so residues should
+ * be added to their chain before they are put into sets or used as keys.
+ * 
  * @author scooter
  * 
  */
@@ -54,7 +57,13 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	public static final int THREE_LETTER = 1; // Display residues as three letters
 	public static final int FULL_NAME = 2; // Display full residue names
 
-	private String type; // Residue type
+
+	// The chain and entry in its residue table, once the residue has been added to a chain
+	private ChimeraChain chain = null;
+	private int entry = -1;
+
+	// The residue information until the residue is added to a chain
+	private char typeCode; // Residue type, see ResidueTypes
 	private String index; // Residue index
 	private String chainId; // ChainID for this residue
 	private int modelNumber; // model number for this residue
@@ -95,7 +104,7 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 *          the sub-model number this residue is part of
 	 */
 	public ChimeraResidue(String type, String index, int modelNumber, int subModelNumber) {
-		this.type = type;
+		this.typeCode = ResidueTypes.getCode(type);
 		this.index = index;
 		this.modelNumber = modelNumber;
 		this.subModelNumber = subModelNumber;
@@ -105,6 +114,19 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 		// }
 	}
 
+	/**
+	 * Constructor to create a view on an entry in the residue table of a chain
+	 * 
+	 * @param chain
+	 *          the chain the residue is part of
+	 * @param entry
+	 *          the entry of the residue in the chain
+	 */
+	ChimeraResidue(ChimeraChain chain, int entry) {
+		this.chain = chain;
+		this.entry = entry;
+	}
+
 	/**
 	 * Constructor to create a new ChimeraResidue from an input line
 	 * 
@@ -115,41 +137,51 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	// Line: residue id #0:37.A type MET
 	public ChimeraResidue(String chimeraInputLine) {
 		// initNames();
-		String[] split1 = chimeraInputLine.split(":");
+		int colon = chimeraInputLine.indexOf(':');
+		int residueEnd = chimeraInputLine.indexOf(':', colon + 1);
+		if (residueEnd < 0)
+			residueEnd = chimeraInputLine.length();
 
 		// First half has model number -- get the number
-		int numberOffset = split1[0].indexOf('#');
-		String model = split1[0].substring(numberOffset + 1);
-		int decimalOffset = model.indexOf('.'); // Do we have a sub-model?
+		int numberOffset = chimeraInputLine.lastIndexOf('#', colon);
+		int decimalOffset = chimeraInputLine.indexOf('.', numberOffset + 1); // Do we have a sub-model?
 		try {
 			this.subModelNumber = 0;
-			if (decimalOffset > 0) {
-				this.subModelNumber = Integer.parseInt(model.substring(decimalOffset + 1));
-				this.modelNumber = Integer.parseInt(model.substring(0, decimalOffset));
+			if (decimalOffset > numberOffset + 1 && decimalOffset < colon) {
+				this.subModelNumber = ChimUtils.parseInt(chimeraInputLine, decimalOffset + 1, colon);
+				this.modelNumber = ChimUtils.parseInt(chimeraInputLine, numberOffset + 1, decimalOffset);
 			} else {
-				this.modelNumber = Integer.parseInt(model);
+				this.modelNumber = ChimUtils.parseInt(chimeraInputLine, numberOffset + 1, colon);
 			}
 		} catch (Exception e) {
 			LoggerFactory.getLogger(edu.ucsf.rbvi.structureViz2.internal.model.ChimeraResidue.class)
-					.error("Unexpected return from Chimera: " + model);
+					.error("Unexpected return from Chimera: "
+							+ chimeraInputLine.substring(numberOffset + 1, colon));
 			this.modelNumber = -1;
 		}
 
 		// Second half has residue info: index & type
-		String[] rTokens = split1[1].split(" ");
-		this.type = rTokens[2];
-
-		String[] iTokens = rTokens[0].split("\\.");
-		if (iTokens.length > 0) {
-			this.index = iTokens[0];
-
-			// Careful, might or might not have a chainID
-			if (iTokens.length > 1)
-				this.chainId = iTokens[1];
-			else
-				this.chainId = "_";
-		} else
-			this.index = rTokens[0];
+		int indexEnd = chimeraInputLine.indexOf(' ', colon + 1);
+		if (indexEnd < 0 || indexEnd > residueEnd)
+			indexEnd = residueEnd;
+		int typeStart = chimeraInputLine.indexOf(' ', indexEnd + 1) + 1;
+		int typeEnd = chimeraInputLine.indexOf(' ', typeStart);
+		if (typeEnd < 0 || typeEnd > residueEnd)
+			typeEnd = residueEnd;
+		this.typeCode = ResidueTypes.getCode(chimeraInputLine.substring(typeStart, typeEnd));
+
+		// Careful, might or might not have a chainID
+		int dot = chimeraInputLine.indexOf('.', colon + 1);
+		if (dot < 0 || dot > indexEnd) {
+			this.index = chimeraInputLine.substring(colon + 1, indexEnd);
+			this.chainId = "_";
+		} else {
+			int chainEnd = chimeraInputLine.indexOf('.', dot + 1);
+			if (chainEnd < 0 || chainEnd > indexEnd)
+				chainEnd = indexEnd;
+			this.index = chimeraInputLine.substring(colon + 1, dot);
+			this.chainId = chainEnd > dot + 1 ? chimeraInputLine.substring(dot + 1, chainEnd) : "_";
+		}
 
 		splitInsertionCode(this.index);
 	}
@@ -161,7 +193,10 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 *          the selection state to set
 	 */
 	public void setSelected(boolean selected) {
-		this.selected = selected;
+		if (chain != null)
+			chain.setResidueSelected(entry, selected);
+		else
+			this.selected = selected;
 	}
 
 	/**
@@ -170,6 +205,8 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return the selected state
 	 */
 	public boolean isSelected() {
+		if (chain != null)
+			return chain.isResidueSelected(entry);
 		return selected;
 	}
 
@@ -203,14 +240,16 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return the string representation
 	 */
 	public String toString() {
+		char typeCode = getTypeCode();
+		String index = getIndex();
 		if (displayType == FULL_NAME) {
-			return (ChimUtils.toFullName(type) + " " + index);
+			return (ResidueTypes.getFullName(typeCode) + " " + index);
 		} else if (displayType == SINGLE_LETTER) {
-			return (ChimUtils.toSingleLetter(type) + " " + index);
+			return (ResidueTypes.getSingleLetter(typeCode) + " " + index);
 		} else if (displayType == THREE_LETTER) {
-			return (ChimUtils.toThreeLetter(type) + " " + index);
+			return (ResidueTypes.getThreeLetter(typeCode) + " " + index);
 		} else {
-			return (type + " " + index);
+			return (ResidueTypes.getType(typeCode) + " " + index);
 		}
 	}
 
@@ -220,6 +259,9 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return Chimera specification
 	 */
 	public String toSpec() {
+		String chainId = getChainId();
+		int modelNumber = getModelNumber();
+		String index = getIndex();
 		if (!chainId.equals("_"))
 			return ("#" + modelNumber + ":" + index + "." + chainId);
 		else
@@ -232,6 +274,8 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return residue index
 	 */
 	public String getIndex() {
+		if (chain != null)
+			return chain.getResidueIndex(entry);
 		return this.index;
 	}
 
@@ -241,6 +285,8 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return String value of the chainId
 	 */
 	public String getChainId() {
+		if (chain != null)
+			return chain.getChainId();
 		return this.chainId;
 	}
 
@@ -250,7 +296,19 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return residue type
 	 */
 	public String getType() {
-		return this.type;
+		return ResidueTypes.getType(getTypeCode());
+	}
+
+	/**
+	 * Get the code of the type of this residue, which can be used to look up the names of the
+	 * type in {@link ResidueTypes}
+	 * 
+	 * @return residue type code
+	 */
+	public char getTypeCode() {
+		if (chain != null)
+			return chain.getResidueTypeCode(entry);
+		return this.typeCode;
 	}
 
 	/**
@@ -259,6 +317,8 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return the model number
 	 */
 	public int getModelNumber() {
+		if (chain != null)
+			return chain.getModelNumber();
 		return this.modelNumber;
 	}
 
@@ -268,6 +328,8 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return the sub-model number
 	 */
 	public int getSubModelNumber() {
+		if (chain != null)
+			return chain.getSubModelNumber();
 		return this.subModelNumber;
 	}
 
@@ -277,11 +339,14 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 * @return the ChimeraModel
 	 */
 	public ChimeraModel getChimeraModel() {
+		if (chain != null)
+			return chain.getChimeraModel();
 		return this.chimeraModel;
 	}
 
 	/**
-	 * Set the model this residue is part of
+	 * Set the model this residue is part of. Once the residue has been added to a chain, it is
+	 * part of the model of the chain.
 	 * 
 	 * @param chimeraModel
 	 *          the ChimeraModel this model is part of
@@ -290,12 +355,66 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 		this.chimeraModel = chimeraModel;
 	}
 
+	/**
+	 * Get the residue number, i.e. the index without the insertion code
+	 * 
+	 * @return the residue number
+	 */
+	public int getResidueNumber() {
+		if (chain != null)
+			return chain.getResidueNumber(entry);
+		return residueNumber;
+	}
+
+	/**
+	 * Get the insertion code of this residue
+	 * 
+	 * @return the insertion code, an empty String if the residue has none
+	 */
+	public String getInsertionCode() {
+		if (chain != null) {
+			char code = chain.getInsertionCode(entry);
+			return code == 0 ? "" : String.valueOf(code);
+		}
+		return insertionCode;
+	}
+
+	/**
+	 * Get the chain this residue has been added to
+	 * 
+	 * @return the chain or <code>null</code> if the residue is not part of a chain yet
+	 */
+	ChimeraChain getChain() {
+		return chain;
+	}
+
+	/**
+	 * Turn this residue into a view on its entry in a chain
+	 * 
+	 * @param chain
+	 *          the chain the residue has been added to
+	 * @param entry
+	 *          the entry of the residue in the chain
+	 */
+	void attach(ChimeraChain chain, int entry) {
+		this.chain = chain;
+		this.entry = entry;
+		// all of this is kept by the chain now
+		this.index = null;
+		this.chainId = null;
+		this.insertionCode = null;
+		this.chimeraModel = null;
+		this.userData = null;
+	}
+
 	/**
 	 * Get the user data for this residue
 	 * 
 	 * @return user data
 	 */
 	public Object getUserData() {
+		if (chain != null)
+			return chain.getResidueUserData(entry);
 		return userData;
 	}
 
@@ -306,34 +425,60 @@ public class ChimeraResidue implements ChimeraStructuralObject, Comparable<Chime
 	 *          the user data to associate with this residue
 	 */
 	public void setUserData(Object data) {
-		this.userData = data;
+		if (chain != null)
+			chain.setResidueUserData(entry, data);
+		else
+			this.userData = data;
+	}
+
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (chain == null || !(o instanceof ChimeraResidue))
+			return false;
+		ChimeraResidue other = (ChimeraResidue) o;
+		return chain == other.chain && entry == other.entry;
+	}
+
+	public int hashCode() {
+		if (chain == null)
+			return System.identityHashCode(this);
+		return System.identityHashCode(chain) * 31 + entry;
 	}
 
 	public int compareTo(ChimeraResidue c2) {
-		if (residueNumber < c2.residueNumber)
+		int residueNumber = getResidueNumber();
+		int otherNumber = c2.getResidueNumber();
+		if (residueNumber < otherNumber)
 			return -1;
-		else if (residueNumber == c2.residueNumber) {
-			if (insertionCode == null && c2.insertionCode == null)
+		else if (residueNumber == otherNumber) {
+			String insertionCode = getInsertionCode();
+			String otherCode = c2.getInsertionCode();
+			if (insertionCode == null && otherCode == null)
 				return 0;
 			else if (insertionCode == null)
 				return -1;
-			else if (c2.insertionCode == null)
+			else if (otherCode == null)
 				return 1;
-			return (insertionCode.compareTo(c2.insertionCode));
+			return (insertionCode.compareTo(otherCode));
 		}
 		return 1;
 	}
 
 	public void splitInsertionCode(String residue) {
-		// OK, split the index into number and insertion code
-		Pattern p = Pattern.compile("(\\d*)([A-Z]?)");
-		Matcher m = p.matcher(residue);
-		if (m.matches()) {
-			this.residueNumber = Integer.parseInt(m.group(1));
-			if (m.groupCount() > 1)
-				this.insertionCode = m.group(2);
-			else
-				this.insertionCode = null;
+		// OK, split the index into number and insertion code, i.e. digits and an optional
+		// upper case letter
+		int length = residue.length();
+		int digits = 0;
+		while (digits < length && residue.charAt(digits) >= '0' && residue.charAt(digits) <= '9')
+			digits++;
+		if (digits == length) {
+			this.residueNumber = ChimUtils.parseInt(residue, 0, length);
+			this.insertionCode = "";
+		} else if (digits == length - 1 && residue.charAt(digits) >= 'A'
+				&& residue.charAt(digits) <= 'Z') {
+			this.residueNumber = ChimUtils.parseInt(residue, 0, digits);
+			this.insertionCode = residue.substring(digits);
 		}
 	}
 
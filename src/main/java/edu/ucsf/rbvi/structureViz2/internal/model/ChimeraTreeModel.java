@@ -33,10 +33,7 @@
 package edu.ucsf.rbvi.structureViz2.internal.model;
 
 // System imports
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
 
 import javax.swing.JTree;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -117,7 +114,9 @@ public class ChimeraTreeModel extends DefaultTreeModel {
 	 * @return DefaultMutableTreeNode that represents the currently loaded Chimera models
 	 */
 	private DefaultMutableTreeNode buildTree() {
-		int modelCount = chimeraManager.getChimeraModelsCount(true);
+		// count and list the same models, even if models are opened or closed meanwhile
+		ModelRegistry.Snapshot models = chimeraManager.getModelSnapshot();
+		int modelCount = models.getModelCount(true);
 		DefaultMutableTreeNode rootNode = new DefaultMutableTreeNode(modelCount+" Open Chimera Models");
 		TreePath rootPath = new TreePath(rootNode);
 
@@ -125,7 +124,7 @@ public class ChimeraTreeModel extends DefaultTreeModel {
 		DefaultMutableTreeNode model = null;
 
 		// Add all of the Chimera models
-		for (ChimeraModel chimeraModel: chimeraManager.getChimeraModels()) {
+		for (ChimeraModel chimeraModel: models.getModels()) {
 			model = new DefaultMutableTreeNode(chimeraModel);
 			path = rootPath.pathByAddingChild(model);
 			chimeraModel.setUserData(path);
@@ -181,11 +180,8 @@ public class ChimeraTreeModel extends DefaultTreeModel {
 		DefaultMutableTreeNode residue = null;
 		TreePath residuePath = null;
 
-		List<ChimeraResidue> sortedResidues = new ArrayList<ChimeraResidue>(residues);
-		Collections.sort(sortedResidues);
-
-		// Iterate over all residues & add them to the tree
-		for (ChimeraResidue res: sortedResidues) {
+		// Iterate over all residues & add them to the tree, chains return them in residue order
+		for (ChimeraResidue res: residues) {
 			res.setDisplayType(this.residueDisplay);
 			residue = new DefaultMutableTreeNode(res);
 			residuePath = treePath.pathByAddingChild(residue);
@@ -22,6 +22,8 @@ public class CyNetworkListener implements NetworkAboutToBeDestroyedListener, Net
 	public void handleEvent(NetworkAddedEvent e) {
 		if (structureManager.getChimeraManager().isChimeraLaunched()) {
 			structureManager.associate(e.getNetwork());
+		} else {
+			structureManager.prelaunchChimera(e.getNetwork());
 		}
 	}
 
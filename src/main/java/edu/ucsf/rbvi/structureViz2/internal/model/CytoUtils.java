@@ -140,12 +140,24 @@ public abstract class CytoUtils {
 
 	public static String getDefaultChimeraPath(CyServiceRegistrar registrar, 
 		                                         String chimeraPathPropertyKey) {
+		return getProperty(registrar, chimeraPathPropertyKey);
+	}
+
+	/**
+	 * Get a structureViz configuration property
+	 *
+	 * @param registrar
+	 *            the service registrar
+	 * @param key
+	 *            the property key
+	 * @return the value or <code>null</code> if the property isn't set
+	 */
+	public static String getProperty(CyServiceRegistrar registrar, String key) {
 		if (configProperties == null) {
 			configProperties = getPropertyService(registrar, SavePolicy.CONFIG_DIR);
 		}
 		Properties p = configProperties.getProperties();
-		String path = p.getProperty(chimeraPathPropertyKey); 
-		return path;
+		return p.getProperty(key);
 	}
 
 	public static void setDefaultColumns(CyServiceRegistrar registrar, 
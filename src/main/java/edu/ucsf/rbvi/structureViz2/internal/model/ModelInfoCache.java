@@ -0,0 +1,405 @@
+package edu.ucsf.rbvi.structureViz2.internal.model;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager.ModelType;
+
+/**
+ * Keeps the chains and residues of opened structures on disk, so that a structure that has been
+ * opened before doesn't have to be listed residue by residue by Chimera again. A structure file
+ * is identified by its path and the SHA-1 hash of its content, so an entry is never used for a
+ * file that has changed since. A structure fetched from the PDB is identified by its PDB ID.
+ * Modbase and SMILES models are not cached.
+ *
+ * Every entry is a small text file in the cache directory, named after the hash of its key:
+ *
+ * <pre>
+ * # structureViz model cache 2
+ * key file:/data/1crn.pdb:3f786850e387550fdab836ed7e6dc881de23001b
+ * source chimera
+ * model 0 1crn.pdb
+ * A 1 THR
+ * A 2 THR
+ * </pre>
+ *
+ * There is one <code>model</code> line for every model Chimera opened from the structure, with its
+ * sub-model number and name, followed by the chain, index and type of each of its residues. The
+ * <code>source</code> line tells whether Chimera listed the residues or the
+ * {@link StructureFileReader} read them from the file (<code>source reader</code>, see
+ * {@link #preindex(List, int)}). The reader may not number or group every residue the way
+ * Chimera does, so its entries are only used if Chimera reports the same number of residues for
+ * every model, and are replaced by Chimera's listing otherwise.
+ * Entries are written to a temporary file first and renamed, so a crash never leaves a partial
+ * entry behind. Entries that can't be read are ignored.
+ */
+public class ModelInfoCache {
+	static final String HEADER = "# structureViz model cache 2";
+	private static final String SOURCE_CHIMERA = "chimera";
+	private static final String SOURCE_READER = "reader";
+	private static final Pattern PDB_ID = Pattern.compile("[0-9][A-Za-z0-9]{3}");
+
+	private final File directory;
+	// content hashes by path, size and modification time, so files are only hashed once
+	private final Map<String, String> contentHashes = new HashMap<String, String>();
+	private int hits = 0;
+	private int misses = 0;
+
+	private static Logger logger = LoggerFactory
+			.getLogger(edu.ucsf.rbvi.structureViz2.internal.model.ModelInfoCache.class);
+
+	/**
+	 * Create a cache
+	 *
+	 * @param directory
+	 *            the directory to keep the entries in, created when the first entry is written
+	 */
+	public ModelInfoCache(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the key of the structure Chimera opens for a path
+	 *
+	 * @param modelPath
+	 *            the path, URL or PDB ID that is passed to the Chimera open command
+	 * @param type
+	 *            the type of the structure
+	 * @return the key or <code>null</code> if the structure can't be cached
+	 */
+	public String getKey(String modelPath, ModelType type) {
+		if (modelPath == null || type == ModelType.MODBASE_MODEL || type == ModelType.SMILES)
+			return null;
+		String path = modelPath.trim();
+		if (path.length() > 1 && path.startsWith("\"") && path.endsWith("\""))
+			path = path.substring(1, path.length() - 1);
+		File file = new File(path);
+		if (file.isFile()) {
+			try {
+				String hash = getContentHash(file.getCanonicalFile());
+				return hash == null ? null : "file:" + file.getCanonicalPath() + ":" + hash;
+			} catch (IOException e) {
+				logger.debug("Could not hash " + path + ": " + e.getMessage());
+				return null;
+			}
+		}
+		if (PDB_ID.matcher(path).matches())
+			return "pdb:" + path.toLowerCase();
+		return null;
+	}
+
+	private String getContentHash(File file) throws IOException {
+		String fileKey = file.getPath() + ":" + file.length() + ":" + file.lastModified();
+		synchronized (contentHashes) {
+			if (contentHashes.containsKey(fileKey))
+				return contentHashes.get(fileKey);
+		}
+		String hash = hash(file);
+		synchronized (contentHashes) {
+			contentHashes.put(fileKey, hash);
+		}
+		return hash;
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private File getEntryFile(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return new File(directory, toHex(digest.digest(key.getBytes("UTF-8"))) + ".txt");
+		} catch (Exception e) {
+			// SHA-1 and UTF-8 are always there
+			return new File(directory, Integer.toHexString(key.hashCode()) + ".txt");
+		}
+	}
+
+	/**
+	 * Fill models with the chains and residues cached for a structure. Nothing is changed unless
+	 * the entry has exactly the models Chimera opened, with the same sub-model numbers and names.
+	 * Entries the structure file reader wrote must also have the number of residues Chimera
+	 * reports for every model.
+	 *
+	 * @param key
+	 *            the key of the structure, see {@link #getKey(String, ModelType)}
+	 * @param models
+	 *            the models Chimera opened for the structure, in the order it listed them
+	 * @param residueCounts
+	 *            the number of residues of the models according to Chimera, by model key (see
+	 *            {@link ChimUtils#makeModelKey}), or <code>null</code> if they are not known
+	 * @return <code>true</code> if the models have been filled
+	 */
+	public boolean hydrate(String key, List<ChimeraModel> models,
+			Map<Integer, Integer> residueCounts) {
+		CachedEntry entry = read(key);
+		if (entry == null || entry.models.size() != models.size()) {
+			countMiss();
+			return false;
+		}
+		List<CachedModel> cachedModels = entry.models;
+		for (int i = 0; i < models.size(); i++) {
+			ChimeraModel model = models.get(i);
+			CachedModel cachedModel = cachedModels.get(i);
+			if (model.getSubModelNumber() != cachedModel.subModelNumber
+					|| !model.getModelName().equals(cachedModel.name)) {
+				countMiss();
+				return false;
+			}
+			if (entry.fromReader) {
+				Integer residueCount = residueCounts == null ? null : residueCounts.get(ChimUtils
+						.makeModelKey(model.getModelNumber(), model.getSubModelNumber()));
+				if (residueCount == null
+						|| residueCount.intValue() != cachedModel.residues.size()) {
+					countMiss();
+					return false;
+				}
+			}
+		}
+		for (int i = 0; i < models.size(); i++) {
+			ChimeraModel model = models.get(i);
+			CachedModel cachedModel = cachedModels.get(i);
+			ChimeraChain chain = null;
+			for (String[] residue : cachedModel.residues) {
+				if (chain == null || !chain.getChainId().equals(residue[0]))
+					chain = model.addChain(residue[0]);
+				chain.addResidue(residue[1], residue[2]);
+			}
+		}
+		synchronized (this) {
+			hits++;
+		}
+		return true;
+	}
+
+	private synchronized void countMiss() {
+		misses++;
+	}
+
+	private CachedEntry read(String key) {
+		File entryFile = getEntryFile(key);
+		if (!entryFile.isFile())
+			return null;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+					entryFile), "UTF-8"));
+			try {
+				if (!HEADER.equals(reader.readLine()) || !("key " + key).equals(reader.readLine()))
+					return null;
+				String source = reader.readLine();
+				if (!("source " + SOURCE_CHIMERA).equals(source)
+						&& !("source " + SOURCE_READER).equals(source))
+					return null;
+				CachedEntry entry = new CachedEntry(source.endsWith(SOURCE_READER));
+				List<CachedModel> models = entry.models;
+				CachedModel model = null;
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("model ")) {
+						int space = line.indexOf(' ', 6);
+						model = new CachedModel(Integer.parseInt(line.substring(6, space)),
+								line.substring(space + 1));
+						models.add(model);
+					} else if (model != null) {
+						int first = line.indexOf(' ');
+						int second = line.indexOf(' ', first + 1);
+						model.residues.add(new String[] { line.substring(0, first),
+								line.substring(first + 1, second), line.substring(second + 1) });
+					} else {
+						return null;
+					}
+				}
+				return entry;
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			logger.debug("Ignoring unreadable model cache entry " + entryFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Remember the chains and residues of the models Chimera opened for a structure
+	 *
+	 * @param key
+	 *            the key of the structure, see {@link #getKey(String, ModelType)}
+	 * @param models
+	 *            the models, with the residues Chimera listed
+	 */
+	public void store(String key, List<ChimeraModel> models) {
+		store(key, models, SOURCE_CHIMERA);
+	}
+
+	private void store(String key, List<ChimeraModel> models, String source) {
+		File entryFile = getEntryFile(key);
+		File tempFile = new File(directory, entryFile.getName() + ".tmp");
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Could not create " + directory);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(tempFile), "UTF-8"));
+			try {
+				writer.write(HEADER + "\n");
+				writer.write("key " + key + "\n");
+				writer.write("source " + source + "\n");
+				for (ChimeraModel model : models) {
+					writer.write("model " + model.getSubModelNumber() + " " + model.getModelName()
+							+ "\n");
+					for (ChimeraChain chain : model.getChains()) {
+						for (ChimeraResidue residue : chain.getResidues()) {
+							writer.write(chain.getChainId() + " " + residue.getIndex() + " "
+									+ residue.getType() + "\n");
+						}
+					}
+				}
+			} finally {
+				writer.close();
+			}
+			if (!tempFile.renameTo(entryFile)) {
+				// Windows doesn't replace files when renaming
+				entryFile.delete();
+				if (!tempFile.renameTo(entryFile))
+					throw new IOException("Could not rename " + tempFile);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not write model cache entry for " + key + ": " + e.getMessage());
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Read structure files without Chimera and store their residues, so that opening them in
+	 * Chimera later doesn't need to list them. The files are read in parallel, and every file is
+	 * dropped as soon as its entry has been written, so only as many structures as there are
+	 * threads are in memory at the same time.
+	 *
+	 * @param files
+	 *            the PDB or mmCIF files
+	 * @param threads
+	 *            the number of files to read at the same time
+	 * @return the number of files that have been stored
+	 */
+	public int preindex(List<File> files, int threads) throws InterruptedException {
+		final AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Structure indexer "
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			List<Callable<Boolean>> jobs = new ArrayList<Callable<Boolean>>();
+			for (final File file : files) {
+				jobs.add(new Callable<Boolean>() {
+					public Boolean call() throws IOException {
+						String key = getKey(file.getPath(), ModelType.PDB_MODEL);
+						if (key == null)
+							return false;
+						store(key, StructureFileReader.read(file, 0).getModels(), SOURCE_READER);
+						return true;
+					}
+				});
+			}
+			int stored = 0;
+			List<Future<Boolean>> futures = executor.invokeAll(jobs);
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					if (futures.get(i).get())
+						stored++;
+				} catch (ExecutionException e) {
+					logger.warn("Could not read " + files.get(i) + ": " + e.getCause().getMessage());
+				}
+			}
+			return stored;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reset the hit and miss counts
+	 */
+	public synchronized void resetStats() {
+		hits = 0;
+		misses = 0;
+	}
+
+	public synchronized String toString() {
+		return "model cache: " + hits + " structures read from " + directory + ", " + misses
+				+ " misses";
+	}
+
+	private static class CachedEntry {
+		final boolean fromReader;
+		final List<CachedModel> models = new ArrayList<CachedModel>();
+
+		CachedEntry(boolean fromReader) {
+			this.fromReader = fromReader;
+		}
+	}
+
+	private static class CachedModel {
+		final int subModelNumber;
+		final String name;
+		final List<String[]> residues = new ArrayList<String[]>();
+
+		CachedModel(int subModelNumber, String name) {
+			this.subModelNumber = subModelNumber;
+			this.name = name;
+		}
+	}
+}
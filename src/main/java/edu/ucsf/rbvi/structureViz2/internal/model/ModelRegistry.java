@@ -0,0 +1,225 @@
+package edu.ucsf.rbvi.structureViz2.internal.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager.ModelType;
+
+/**
+ * The models open in Chimera, shared between the Swing thread, the threads handling Chimera
+ * notifications and Cytoscape tasks. The registry publishes immutable snapshots: every change
+ * copies the current snapshot, applies the change to the copy and replaces the snapshot in one
+ * step. Readers never lock and always see a consistent set of models together with the indexes
+ * by name and type, even while an update runs. Changes are serialized with each other.
+ *
+ * Code that reads the registry more than once, e.g. to count the models and then iterate over
+ * them, should take a {@link Snapshot} and use it for all reads.
+ */
+public class ModelRegistry {
+	private volatile Snapshot snapshot = new Snapshot();
+
+	/**
+	 * Get the current models
+	 *
+	 * @return the snapshot of the models, which never changes
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Add a model, replacing the model with the same number and sub-model number
+	 *
+	 * @param model
+	 *            the model
+	 * @return the model that has been replaced or <code>null</code>
+	 */
+	public synchronized ChimeraModel put(ChimeraModel model) {
+		Map<Integer, ChimeraModel> models = snapshot.copyModels();
+		ChimeraModel oldModel = models.put(getKey(model), model);
+		snapshot = new Snapshot(snapshot, models);
+		return oldModel;
+	}
+
+	/**
+	 * Add several models at once, so that readers see either none or all of them
+	 *
+	 * @param newModels
+	 *            the models
+	 */
+	public synchronized void putAll(Collection<ChimeraModel> newModels) {
+		if (newModels.isEmpty())
+			return;
+		Map<Integer, ChimeraModel> models = snapshot.copyModels();
+		for (ChimeraModel model : newModels) {
+			models.put(getKey(model), model);
+		}
+		snapshot = new Snapshot(snapshot, models);
+	}
+
+	/**
+	 * Remove a model
+	 *
+	 * @param modelKey
+	 *            the key of the model, see {@link ChimUtils#makeModelKey(int, int)}
+	 * @return the model that has been removed or <code>null</code>
+	 */
+	public synchronized ChimeraModel remove(int modelKey) {
+		if (!snapshot.containsModel(modelKey))
+			return null;
+		Map<Integer, ChimeraModel> models = snapshot.copyModels();
+		ChimeraModel oldModel = models.remove(modelKey);
+		snapshot = new Snapshot(snapshot, models);
+		return oldModel;
+	}
+
+	/**
+	 * Remove all models
+	 */
+	public synchronized void clear() {
+		snapshot = new Snapshot(snapshot, new LinkedHashMap<Integer, ChimeraModel>());
+	}
+
+	private static int getKey(ChimeraModel model) {
+		return ChimUtils.makeModelKey(model.getModelNumber(), model.getSubModelNumber());
+	}
+
+	/**
+	 * The models that were open at one point in time, indexed by key, name and type
+	 */
+	public static class Snapshot {
+		private final long version;
+		private final Map<Integer, ChimeraModel> models;
+		private final Map<String, List<ChimeraModel>> modelsByName;
+		private final Map<ModelType, Map<String, List<ChimeraModel>>> modelsByType;
+		private final int smilesCount;
+
+		private Snapshot() {
+			this.version = 0;
+			this.models = Collections.emptyMap();
+			this.modelsByName = Collections.emptyMap();
+			this.modelsByType = Collections.emptyMap();
+			this.smilesCount = 0;
+		}
+
+		private Snapshot(Snapshot previous, Map<Integer, ChimeraModel> models) {
+			this.version = previous.version + 1;
+			this.models = Collections.unmodifiableMap(models);
+			Map<String, List<ChimeraModel>> byName = new HashMap<String, List<ChimeraModel>>();
+			Map<ModelType, Map<String, List<ChimeraModel>>> byType = new EnumMap<ModelType, Map<String, List<ChimeraModel>>>(
+					ModelType.class);
+			int smiles = 0;
+			for (ChimeraModel model : models.values()) {
+				addToIndex(byName, model);
+				Map<String, List<ChimeraModel>> typeModels = byType.get(model.getModelType());
+				if (typeModels == null) {
+					typeModels = new HashMap<String, List<ChimeraModel>>();
+					byType.put(model.getModelType(), typeModels);
+				}
+				addToIndex(typeModels, model);
+				if (model.getModelType() == ModelType.SMILES)
+					smiles++;
+			}
+			this.modelsByName = byName;
+			this.modelsByType = byType;
+			this.smilesCount = smiles;
+		}
+
+		private static void addToIndex(Map<String, List<ChimeraModel>> index, ChimeraModel model) {
+			List<ChimeraModel> models = index.get(model.getModelName());
+			if (models == null) {
+				// most names belong to a single model
+				models = new ArrayList<ChimeraModel>(1);
+				index.put(model.getModelName(), models);
+			}
+			if (!models.contains(model)) {
+				models.add(model);
+			}
+		}
+
+		private Map<Integer, ChimeraModel> copyModels() {
+			return new LinkedHashMap<Integer, ChimeraModel>(models);
+		}
+
+		/**
+		 * Get the version of the snapshot, which increases with every change of the registry
+		 *
+		 * @return the version
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Get a model by its key
+		 *
+		 * @param modelKey
+		 *            the key of the model, see {@link ChimUtils#makeModelKey(int, int)}
+		 * @return the model or <code>null</code> if there is none
+		 */
+		public ChimeraModel getModel(int modelKey) {
+			return models.get(modelKey);
+		}
+
+		public boolean containsModel(int modelKey) {
+			return models.containsKey(modelKey);
+		}
+
+		/**
+		 * Get all models in the order they have been added
+		 *
+		 * @return the models, which can't be modified
+		 */
+		public Collection<ChimeraModel> getModels() {
+			return models.values();
+		}
+
+		/**
+		 * Get the models with a name and type
+		 *
+		 * @param modelName
+		 *            the name of the models
+		 * @param modelType
+		 *            the type of the models
+		 * @return a new list of the models
+		 */
+		public List<ChimeraModel> getModels(String modelName, ModelType modelType) {
+			List<ChimeraModel> result = new ArrayList<ChimeraModel>();
+			Map<String, List<ChimeraModel>> typeModels = modelsByType.get(modelType);
+			if (typeModels != null && typeModels.containsKey(modelName)) {
+				result.addAll(typeModels.get(modelName));
+			}
+			return result;
+		}
+
+		/**
+		 * Get the models by name
+		 *
+		 * @return a new map from the names to new lists of the models
+		 */
+		public Map<String, List<ChimeraModel>> getModelsByName() {
+			Map<String, List<ChimeraModel>> result = new HashMap<String, List<ChimeraModel>>();
+			for (Map.Entry<String, List<ChimeraModel>> entry : modelsByName.entrySet()) {
+				result.put(entry.getKey(), new ArrayList<ChimeraModel>(entry.getValue()));
+			}
+			return result;
+		}
+
+		/**
+		 * Get the number of models
+		 *
+		 * @param smiles
+		 *            <code>true</code> to count the SMILES models, too
+		 * @return the number of models
+		 */
+		public int getModelCount(boolean smiles) {
+			return smiles ? models.size() : models.size() - smilesCount;
+		}
+	}
+}
@@ -3,9 +3,12 @@ package edu.ucsf.rbvi.structureViz2.internal.model;
 import java.awt.Color;
 import java.awt.Paint;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,6 +30,10 @@ import org.cytoscape.view.vizmap.mappings.DiscreteMapping;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.ucsf.rbvi.structureViz2.internal.port.AtomData;
+import edu.ucsf.rbvi.structureViz2.internal.port.LineTokenizer;
+import edu.ucsf.rbvi.structureViz2.internal.port.ReplyStream;
+
 // TODO: [Optional] No dist edges between ligands and others since we only consider distance between C_alphas
 //TODO: [Optional] Self edges (hydrogen bonds) are allowed
 public class RINManager {
@@ -76,12 +83,15 @@ public class RINManager {
 			int includeInteractions, boolean ignoreWater, boolean removeRedContacts,
 			double overlapCutoff, double hbondAllowance, int bondSep) {
 		// System.out.println("Getting contacts");
-		List<String> replyList = chimeraManager.sendChimeraCommand(
-				getContactCommand(includeInteractions, overlapCutoff, hbondAllowance, bondSep),
-				true);
-		if (replyList != null) {
-			parseContactReplies(replyList, rin, nodeMap, ignoreWater, removeRedContacts,
-					CONTACTEDGE);
+		ReplyStream reply = chimeraManager.streamChimeraCommand(getContactCommand(
+				includeInteractions, overlapCutoff, hbondAllowance, bondSep));
+		if (reply != null) {
+			try {
+				parseContactReplies(reply, rin, nodeMap, ignoreWater, removeRedContacts, CONTACTEDGE);
+			} finally {
+				// let the reader skip whatever we did not read
+				reply.close();
+			}
 		}
 	}
 
@@ -89,11 +99,15 @@ public class RINManager {
 			boolean ignoreWater, boolean removeRedContacts, double overlapCutoff,
 			double hbondAllowance, int bondSep) {
 		// System.out.println("Getting clashes");
-		List<String> replyList = chimeraManager.sendChimeraCommand(
-				getContactCommand(includeInteractions, overlapCutoff, hbondAllowance, bondSep),
-				true);
-		if (replyList != null) {
-			parseContactReplies(replyList, rin, nodeMap, ignoreWater, removeRedContacts, CLASHEDGE);
+		ReplyStream reply = chimeraManager.streamChimeraCommand(getContactCommand(
+				includeInteractions, overlapCutoff, hbondAllowance, bondSep));
+		if (reply != null) {
+			try {
+				parseContactReplies(reply, rin, nodeMap, ignoreWater, removeRedContacts, CLASHEDGE);
+			} finally {
+				// let the reader skip whatever we did not read
+				reply.close();
+			}
 		}
 	}
 
@@ -101,10 +115,15 @@ public class RINManager {
 			boolean ignoreWater, boolean removeRedContacts, boolean addHydrogens,
 			boolean relaxHBonds, double angleSlop, double distSlop) {
 		// System.out.println("Getting hydrogen bonds");
-		List<String> replyList = chimeraManager.sendChimeraCommand(
-				getHBondCommand(includeInteractions, relaxHBonds, angleSlop, distSlop), true);
-		if (replyList != null) {
-			parseHBondReplies(replyList, rin, nodeMap, ignoreWater, removeRedContacts, addHydrogens);
+		ReplyStream reply = chimeraManager.streamChimeraCommand(getHBondCommand(
+				includeInteractions, relaxHBonds, angleSlop, distSlop));
+		if (reply != null) {
+			try {
+				parseHBondReplies(reply, rin, nodeMap, ignoreWater, removeRedContacts, addHydrogens);
+			} finally {
+				// let the reader skip whatever we did not read
+				reply.close();
+			}
 		}
 	}
 
@@ -120,11 +139,26 @@ public class RINManager {
 			int includeInteractions, boolean ignoreWater, boolean removeRedContacts,
 			double distCutoff) {
 		// System.out.println("Getting distances");
-		List<String> replyList = chimeraManager.sendChimeraCommand(
-				getDistanceCommand(includeInteractions), true);
-		if (replyList != null) {
-			parseDistanceReplies(replyList, rin, nodeMap, ignoreWater, removeRedContacts,
-					distCutoff, includeInteractions);
+		// Get the selection first, no other commands can be sent while the reply is streamed
+		Set<String> selectedResidues = new HashSet<String>(
+				chimeraManager.getSelectedResidueSpecs());
+		// Prefer the binary distance matrix, fall back to the text output of list distmat
+		AtomData distances = chimeraManager.getAtomDistances(getDistanceSpec(includeInteractions));
+		if (distances != null) {
+			parseDistances(distances, rin, nodeMap, ignoreWater, removeRedContacts, distCutoff,
+					includeInteractions, selectedResidues);
+			return;
+		}
+		ReplyStream reply = chimeraManager.streamChimeraCommand(
+				getDistanceCommand(includeInteractions));
+		if (reply != null) {
+			try {
+				parseDistanceReplies(reply, rin, nodeMap, ignoreWater, removeRedContacts,
+						distCutoff, includeInteractions, selectedResidues);
+			} finally {
+				// let the reader skip whatever we did not read
+				reply.close();
+			}
 		}
 	}
 
@@ -252,6 +286,12 @@ public class RINManager {
 	}
 
 	private String getDistanceCommand(int includeInteractions) {
+		// Create the command
+		String command = "list distmat " + getDistanceSpec(includeInteractions);
+		return command;
+	}
+
+	private String getDistanceSpec(int includeInteractions) {
 		String atomspec = "";
 		// "Within selection"
 		if (includeInteractions == 0) {
@@ -263,10 +303,7 @@ public class RINManager {
 			// between the specified atoms and all other atoms
 			atomspec = "@CA";
 		}
-
-		// Create the command
-		String command = "list distmat " + atomspec;
-		return command;
+		return atomspec;
 	}
 
 	/**
@@ -275,14 +312,13 @@ public class RINManager {
 	 * or less Ignore intra-residue contacts 44 contacts and the header line is: atom1 atom2 overlap
 	 * distance and the clash lines look like: :2470.A@N :323.A@OD2 -0.394 3.454
 	 */
-	private List<CyEdge> parseContactReplies(List<String> replyLog, CyNetwork rin,
+	private List<CyEdge> parseContactReplies(Iterator<String> replyLog, CyNetwork rin,
 			Map<String, CyNode> nodeMap, boolean ignoreWater, boolean removeRedContacts,
 			String edgeType) {
 		// Scan for our header line
 		boolean foundHeader = false;
-		int index = 0;
-		for (index = 0; index < replyLog.size(); index++) {
-			String str = replyLog.get(index);
+		while (replyLog.hasNext()) {
+			String str = replyLog.next();
 
 			if (str.trim().startsWith("atom1")) {
 				foundHeader = true;
@@ -294,21 +330,21 @@ public class RINManager {
 
 		Map<CyEdge, Double> distanceMap = new HashMap<CyEdge, Double>();
 		Map<CyEdge, Double> overlapMap = new HashMap<CyEdge, Double>();
-		for (++index; index < replyLog.size(); index++) {
+		LineTokenizer line = new LineTokenizer();
+		while (replyLog.hasNext()) {
 			// System.out.println(replyLog.get(index));
-			String[] line = replyLog.get(index).trim().split("\\s+");
-			if (line.length != 4)
+			if (line.reset(replyLog.next()) != 4)
 				continue;
-			CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, line[0],
-					line[1], edgeType);
+			CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts,
+					line.getString(0), line.getString(1), edgeType);
 			if (edge == null) {
 				continue;
 			}
 
 			// We want the smallest distance
-			updateMap(distanceMap, edge, line[3], -1);
+			updateMap(distanceMap, edge, line.getDouble(3), -1);
 			// We want the largest overlap
-			updateMap(overlapMap, edge, line[2], 1);
+			updateMap(overlapMap, edge, line.getDouble(2), 1);
 		}
 		// OK, now update the edge attributes we want
 		for (CyEdge edge : distanceMap.keySet()) {
@@ -333,15 +369,14 @@ public class RINManager {
 	 * 2471.A N SER 296.A O no hydrogen 2.698 N/A HOH 2541.A O GLU 2471.A OE1 no hydrogen 2.746 N/A
 	 * HOH 2577.A O GLU 2471.A O no hydrogen 2.989 N/A
 	 */
-	private List<CyEdge> parseHBondReplies(List<String> replyLog, CyNetwork rin,
+	private List<CyEdge> parseHBondReplies(Iterator<String> replyLog, CyNetwork rin,
 			Map<String, CyNode> nodeMap, boolean ignoreWater, boolean removeRedContacts,
 			boolean addHydrogens) {
 		// Scan for our header line
 		boolean foundHeader = false;
-		int index = 0;
-		for (index = 0; index < replyLog.size(); index++) {
-			String str = replyLog.get(index);
-			System.out.println("parseHBondReplies: "+str);
+		while (replyLog.hasNext()) {
+			String str = replyLog.next();
+			// System.out.println("parseHBondReplies: "+str);
 			if (str.trim().startsWith("H-bonds")) {
 				foundHeader = true;
 				break;
@@ -352,23 +387,25 @@ public class RINManager {
 		}
 
 		Map<CyEdge, Double> distanceMap = new HashMap<CyEdge, Double>();
-		for (++index; index < replyLog.size(); index++) {
-			System.out.println("parseHBondReplies: "+replyLog.get(index));
-			String[] line = replyLog.get(index).trim().split("\\s+");
-			if (line.length != 5 && line.length != 6)
+		LineTokenizer line = new LineTokenizer();
+		while (replyLog.hasNext()) {
+			String str = replyLog.next();
+			// System.out.println("parseHBondReplies: "+str);
+			int tokens = line.reset(str);
+			if (tokens != 5 && tokens != 6)
 				continue;
 
-			CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, line[0],
-					line[1], HBONDEDGE);
+			CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts,
+					line.getString(0), line.getString(1), HBONDEDGE);
 			if (edge == null) {
 				continue;
 			}
-			String distance = line[3];
-			if ((line[2].equals("no") && line[3].equals("hydrogen")) || addHydrogens) {
-				distance = line[4];
+			int distance = 3;
+			if ((line.equals(2, "no") && line.equals(3, "hydrogen")) || addHydrogens) {
+				distance = 4;
 			}
-			updateMap(distanceMap, edge, distance, -1); // We want the smallest
-														// distance
+			updateMap(distanceMap, edge, line.getDouble(distance), -1); // We want the smallest
+																		// distance
 		}
 
 		// OK, now update the edge attributes we want
@@ -437,45 +474,28 @@ public class RINManager {
 	 * @param nodeMap
 	 * @return
 	 */
-	private List<CyEdge> parseDistanceReplies(List<String> replyLog, CyNetwork rin,
+	private List<CyEdge> parseDistanceReplies(Iterator<String> replyLog, CyNetwork rin,
 			Map<String, CyNode> nodeMap, boolean ignoreWater, boolean removeRedContacts,
-			double distCutoff, int includeInteractions) {
-		List<String> selectedResidues = chimeraManager.getSelectedResidueSpecs();
+			double distCutoff, int includeInteractions, Set<String> selectedResidues) {
 		List<CyEdge> distEdges = new ArrayList<CyEdge>();
-		for (int index = 0; index < replyLog.size(); index++) {
+		LineTokenizer line = new LineTokenizer();
+		while (replyLog.hasNext()) {
 			// System.out.println(replyLog.get(index));
-			String[] line = replyLog.get(index).trim().split("\\s+");
-			if (line.length != 4)
+			if (line.reset(replyLog.next()) != 4)
 				continue;
 
-			String distance = line[3];
 			// try to read distance and create an edge if distance between atoms smaller than cutoff
 			// special case of cutoff = 0: create all edges
 			try {
-				Double distNum = Double.parseDouble(distance);
-				String res1 = line[1].substring(0, line[1].indexOf("@"));
-				String res2 = line[2].substring(0, line[2].indexOf("@"));
-				// continue
-				// if distance is below cutoff or if cutoff is not set, i.e. equal to 0 (to retrieve
-				// all distance) and
-				// 1) if retrieve only for selected residues
-				// 2) if retrieve for selected and neighbors and the first residue is selected and
-				// the second is not
-				// 3) if retrieve for both selected and neighbors and the first residue is selected
-				if ((distCutoff == 0.0 || distNum <= distCutoff)
-						&& (includeInteractions == 0
-								|| (includeInteractions == 1
-										&& ((selectedResidues.contains(res1) && !selectedResidues
-												.contains(res2))) || (selectedResidues
-										.contains(res2) && !selectedResidues.contains(res1))) || (includeInteractions == 2 && (selectedResidues
-								.contains(res1) || selectedResidues.contains(res2))))) {
-					CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, line[1],
-							line[2], DISTEDGE);
-					if (edge == null) {
-						continue;
-					}
+				double distNum = line.getDouble(3);
+				// Don't bother with the atom specs unless the distance is in range
+				if (distCutoff != 0.0 && distNum > distCutoff)
+					continue;
+				CyEdge edge = createDistanceEdge(rin, nodeMap, ignoreWater, removeRedContacts,
+						distCutoff, includeInteractions, selectedResidues, line.getString(1),
+						line.getString(2), distNum);
+				if (edge != null) {
 					distEdges.add(edge);
-					rin.getRow(edge).set(DISTANCE_ATTR, distNum);
 				}
 			} catch (Exception ex) {
 				// ignore
@@ -484,6 +504,66 @@ public class RINManager {
 		return distEdges;
 	}
 
+	/**
+	 * Same as parseDistanceReplies, but for distances Chimera wrote to a binary file
+	 */
+	private List<CyEdge> parseDistances(AtomData distances, CyNetwork rin,
+			Map<String, CyNode> nodeMap, boolean ignoreWater, boolean removeRedContacts,
+			double distCutoff, int includeInteractions, Set<String> selectedResidues) {
+		List<CyEdge> distEdges = new ArrayList<CyEdge>();
+		List<String> atoms = distances.getAtomSpecs();
+		for (int i = 0; i < atoms.size(); i++) {
+			for (int j = i + 1; j < atoms.size(); j++) {
+				double distNum = distances.getDistance(i, j);
+				// Don't bother with the residues unless the distance is in range
+				if (distCutoff != 0.0 && distNum > distCutoff)
+					continue;
+				try {
+					CyEdge edge = createDistanceEdge(rin, nodeMap, ignoreWater,
+							removeRedContacts, distCutoff, includeInteractions, selectedResidues,
+							atoms.get(i), atoms.get(j), distNum);
+					if (edge != null) {
+						distEdges.add(edge);
+					}
+				} catch (Exception ex) {
+					// ignore
+				}
+			}
+		}
+		return distEdges;
+	}
+
+	private CyEdge createDistanceEdge(CyNetwork rin, Map<String, CyNode> nodeMap,
+			boolean ignoreWater, boolean removeRedContacts, double distCutoff,
+			int includeInteractions, Set<String> selectedResidues, String atom1, String atom2,
+			Double distNum) {
+		String res1 = atom1.substring(0, atom1.indexOf("@"));
+		String res2 = atom2.substring(0, atom2.indexOf("@"));
+		// continue
+		// if distance is below cutoff or if cutoff is not set, i.e. equal to 0 (to retrieve
+		// all distance) and
+		// 1) if retrieve only for selected residues
+		// 2) if retrieve for selected and neighbors and the first residue is selected and
+		// the second is not
+		// 3) if retrieve for both selected and neighbors and the first residue is selected
+		if ((distCutoff == 0.0 || distNum <= distCutoff)
+				&& (includeInteractions == 0
+						|| (includeInteractions == 1
+								&& ((selectedResidues.contains(res1) && !selectedResidues
+										.contains(res2))) || (selectedResidues
+								.contains(res2) && !selectedResidues.contains(res1))) || (includeInteractions == 2 && (selectedResidues
+						.contains(res1) || selectedResidues.contains(res2))))) {
+			CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, atom1,
+					atom2, DISTEDGE);
+			if (edge == null) {
+				return null;
+			}
+			rin.getRow(edge).set(DISTANCE_ATTR, distNum);
+			return edge;
+		}
+		return null;
+	}
+
 	private CyEdge createEdge(CyNetwork rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
 			boolean removeRedContacts, String sourceAlias, String targetAlias, String type) {
 		// Create our two nodes. Note that makeResidueNode also adds three
@@ -633,9 +713,10 @@ public class RINManager {
 			}
 			rin.getRow(node).set(ChimUtils.DEFAULT_STRUCTURE_KEY, chimRes);
 			// add rinalyzer id
-			String rinalyzerID = residue.getChainId() + ":" + residue.residueNumber + ":";
-			if (residue.insertionCode != null && residue.insertionCode.length() == 1) {
-				rinalyzerID += residue.insertionCode;
+			String rinalyzerID = residue.getChainId() + ":" + residue.getResidueNumber() + ":";
+			String insertionCode = residue.getInsertionCode();
+			if (insertionCode != null && insertionCode.length() == 1) {
+				rinalyzerID += insertionCode;
 			} else {
 				rinalyzerID += "_";
 			}
@@ -644,10 +725,10 @@ public class RINManager {
 			rin.getRow(node).set(SEED_ATTR, Boolean.valueOf(residue.isSelected()));
 			rin.getRow(node).set(CHAIN_ATTR, residue.getChainId());
 			rin.getRow(node).set(TYPE_ATTR, residue.getType());
-			rin.getRow(node).set(RESINDEX_ATTR, Integer.valueOf(residue.residueNumber));
+			rin.getRow(node).set(RESINDEX_ATTR, Integer.valueOf(residue.getResidueNumber()));
 
 			// Add structureViz attributes
-			String smiles = ChimUtils.toSMILES(residue.getType());
+			String smiles = ResidueTypes.getSMILES(residue.getTypeCode());
 			if (smiles != null) {
 				rin.getRow(node).set(SMILES_ATTR, smiles);
 			}
@@ -657,7 +738,7 @@ public class RINManager {
 		return node;
 	}
 
-	private void updateMap(Map<CyEdge, Double> map, CyEdge edge, String value, int comparison) {
+	private void updateMap(Map<CyEdge, Double> map, CyEdge edge, double value, int comparison) {
 		// Save the minimum distance between atoms
 		Double v = Double.valueOf(value);
 		if (map.containsKey(edge)) {
@@ -698,9 +779,9 @@ public class RINManager {
 			return false;
 		}
 
-		int startIndex = range[0].residueNumber;
-		int endIndex = range[1].residueNumber;
-		int residueIndex = residue.residueNumber;
+		int startIndex = range[0].getResidueNumber();
+		int endIndex = range[1].getResidueNumber();
+		int residueIndex = residue.getResidueNumber();
 
 		if (endIndex < startIndex) {
 			if (endIndex <= residueIndex && residueIndex <= startIndex)
@@ -736,10 +817,10 @@ public class RINManager {
 			return false;
 		}
 
-		int startIndex = range[0].residueNumber;
-		int endIndex = range[1].residueNumber;
-		int residueIndex1 = residue1.residueNumber;
-		int residueIndex2 = residue2.residueNumber;
+		int startIndex = range[0].getResidueNumber();
+		int endIndex = range[1].getResidueNumber();
+		int residueIndex1 = residue1.getResidueNumber();
+		int residueIndex2 = residue2.getResidueNumber();
 		int diff = Math.abs(residueIndex1 - residueIndex2);
 
 		if (endIndex < startIndex) {
@@ -820,11 +901,27 @@ public class RINManager {
 	}
 
 	public void annotate(CyNetwork network, String resAttr, String command) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put(command, resAttr);
+		annotate(network, attributes);
+	}
+
+	/**
+	 * Annotate the nodes of a network with several residue attributes. The values of all
+	 * attributes are retrieved from Chimera in a single batch per model.
+	 * 
+	 * @param network
+	 *            the network to annotate
+	 * @param attributes
+	 *            a map from the Chimera attribute to the name of the node column to store it in
+	 */
+	public void annotate(CyNetwork network, Map<String, String> attributes) {
 		// get models
 		Set<ChimeraStructuralObject> chimObjs = structureManager.getAssociatedChimObjs(network);
 		if (chimObjs == null) {
 			return;
 		}
+		List<String> commands = new ArrayList<String>(attributes.keySet());
 		// System.out.println("Annotate from " + chimObjs.size() + " chimera objects.");
 		// TODO: [Optional] What to do if there are two open models associated with the same
 		// network?
@@ -832,34 +929,41 @@ public class RINManager {
 		for (ChimeraStructuralObject chimObj : chimObjs) {
 			if (chimObj instanceof ChimeraModel) {
 				// get attribute values
-				Map<ChimeraResidue, Object> resValues = chimeraManager.getAttrValues(command,
-						chimObj.getChimeraModel());
-				if (resValues.size() == 0) {
-					continue;
-				}
-				Object testObj = resValues.values().iterator().next();
-				if (testObj == null) {
-					continue;
-				}
-				// create attribute
-				if (network.getDefaultNodeTable().getColumn(resAttr) != null
-						&& network.getDefaultNodeTable().getColumn(resAttr).getType() != testObj
-								.getClass()) {
-					network.getDefaultNodeTable().deleteColumn(resAttr);
-				} else if (network.getDefaultNodeTable().getColumn(resAttr) == null) {
-					network.getDefaultNodeTable().createColumn(resAttr, testObj.getClass(), false);
+				Map<String, Map<ChimeraResidue, Object>> attrValues = chimeraManager.getAttrValues(
+						commands, chimObj.getChimeraModel());
+				for (String command : commands) {
+					saveAttrValues(network, attributes.get(command), attrValues.get(command));
 				}
-				// save all the values
-				for (ChimeraResidue res : resValues.keySet()) {
-					Set<CyIdentifiable> cyObjs = structureManager.getAssociatedCyObjs(res);
-					if (cyObjs == null) {
-						continue;
-					}
-					for (CyIdentifiable cyId : cyObjs) {
-						if (cyId instanceof CyNode && network.containsNode((CyNode) cyId)) {
-							network.getRow(cyId).set(resAttr, resValues.get(res));
-						}
-					}
+			}
+		}
+	}
+
+	private void saveAttrValues(CyNetwork network, String resAttr,
+			Map<ChimeraResidue, Object> resValues) {
+		if (resValues.size() == 0) {
+			return;
+		}
+		Object testObj = resValues.values().iterator().next();
+		if (testObj == null) {
+			return;
+		}
+		// create attribute
+		if (network.getDefaultNodeTable().getColumn(resAttr) != null
+				&& network.getDefaultNodeTable().getColumn(resAttr).getType() != testObj
+						.getClass()) {
+			network.getDefaultNodeTable().deleteColumn(resAttr);
+		} else if (network.getDefaultNodeTable().getColumn(resAttr) == null) {
+			network.getDefaultNodeTable().createColumn(resAttr, testObj.getClass(), false);
+		}
+		// save all the values
+		for (ChimeraResidue res : resValues.keySet()) {
+			Set<CyIdentifiable> cyObjs = structureManager.getAssociatedCyObjs(res);
+			if (cyObjs == null) {
+				continue;
+			}
+			for (CyIdentifiable cyId : cyObjs) {
+				if (cyId instanceof CyNode && network.containsNode((CyNode) cyId)) {
+					network.getRow(cyId).set(resAttr, resValues.get(res));
 				}
 			}
 		}
@@ -878,10 +982,10 @@ public class RINManager {
 		for (ChimeraStructuralObject chimObj : chimObjs) {
 			if (chimObj instanceof ChimeraModel) {
 				chimeraManager.sendChimeraCommand("ksdssp", false);
-				Map<ChimeraResidue, Object> hResidues = chimeraManager.getAttrValues("isHelix",
-						chimObj.getChimeraModel());
-				Map<ChimeraResidue, Object> sResidues = chimeraManager.getAttrValues("isSheet",
-						chimObj.getChimeraModel());
+				Map<String, Map<ChimeraResidue, Object>> ssValues = chimeraManager.getAttrValues(
+						Arrays.asList("isHelix", "isSheet"), chimObj.getChimeraModel());
+				Map<ChimeraResidue, Object> hResidues = ssValues.get("isHelix");
+				Map<ChimeraResidue, Object> sResidues = ssValues.get("isSheet");
 				for (ChimeraResidue res : hResidues.keySet()) {
 					Set<CyIdentifiable> cyObjs = structureManager.getAssociatedCyObjs(res);
 					if (cyObjs == null) {
@@ -922,6 +1026,28 @@ public class RINManager {
 		Map<ChimeraResidue, Double[]> resCoords = new HashMap<ChimeraResidue, Double[]>();
 		for (ChimeraStructuralObject model : chimObjs) {
 			if (model instanceof ChimeraModel) {
+				// Prefer the binary coordinates, fall back to the text output of getcrd
+				AtomData coords = chimeraManager.getAtomCoordinates(model.getChimeraModel()
+						.toSpec());
+				if (coords != null) {
+					List<String> atoms = coords.getAtomSpecs();
+					for (int atomIndex = 0; atomIndex < atoms.size(); atomIndex++) {
+						ChimeraResidue residue = ChimUtils.getResidue(atoms.get(atomIndex),
+								model.getChimeraModel());
+						if (residue == null) {
+							continue;
+						}
+						String atom = ChimUtils.getAtomName(atoms.get(atomIndex));
+						if (!resCoords.containsKey(residue) || atom.equals("CA")) {
+							Double[] coord = new Double[3];
+							for (int i = 0; i < 3; i++) {
+								coord[i] = Double.valueOf(coords.getCoordinate(atomIndex, i));
+							}
+							resCoords.put(residue, coord);
+						}
+					}
+					continue;
+				}
 				List<String> reply = chimeraManager.sendChimeraCommand("getcrd xf "
 						+ model.getChimeraModel().toSpec(), true);
 				if (reply == null) {
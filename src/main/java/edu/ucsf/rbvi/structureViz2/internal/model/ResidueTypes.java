@@ -0,0 +1,165 @@
+package edu.ucsf.rbvi.structureViz2.internal.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns residue type names like <code>ALA</code> or <code>HOH</code> as small integer codes,
+ * so that residue tables can store the type of a residue in a <code>char</code> instead of a
+ * reference to a String. Codes are never reused, and there are only as many as distinct residue
+ * types have been seen.
+ *
+ * The single letter, three letter and full names and the SMILES string of every type are
+ * computed from {@link ChimUtils#aaNames} once, when the type gets its code, and looked up by code
+ * afterwards. Types that are not amino acids are their own names and have no SMILES string.
+ */
+public class ResidueTypes {
+	// Replaced, never modified, when a type is added, so it can be read without locking
+	private static volatile Table table = new Table();
+
+	private ResidueTypes() {
+	}
+
+	/**
+	 * Get the code of a residue type, assigning a new one if the type has not been seen before
+	 *
+	 * @param type
+	 *            the residue type
+	 * @return the code of the type
+	 */
+	public static char getCode(String type) {
+		Integer code = table.codes.get(type);
+		if (code != null)
+			return (char) code.intValue();
+		return addType(type);
+	}
+
+	/**
+	 * Get the code of a residue type without assigning one, so that looking up arbitrary text
+	 * doesn't make the table grow
+	 *
+	 * @param type
+	 *            the residue type
+	 * @return the code of the type or -1 if the type has no code
+	 */
+	public static int findCode(String type) {
+		Integer code = table.codes.get(type);
+		return code == null ? -1 : code.intValue();
+	}
+
+	private static synchronized char addType(String type) {
+		Table oldTable = table;
+		Integer code = oldTable.codes.get(type);
+		if (code == null) {
+			if (oldTable.types.length > Character.MAX_VALUE)
+				throw new IllegalStateException("Too many residue types");
+			Table newTable = new Table(oldTable, type);
+			code = newTable.codes.get(type);
+			table = newTable;
+		}
+		return (char) code.intValue();
+	}
+
+	/**
+	 * Get the residue type of a code
+	 *
+	 * @param code
+	 *            a code returned by {@link #getCode(String)}
+	 * @return the residue type
+	 */
+	public static String getType(char code) {
+		return table.types[code];
+	}
+
+	/**
+	 * Get the single letter name of a residue type
+	 *
+	 * @param code
+	 *            the code of the residue type
+	 * @return the single letter name, e.g. <code>A</code> for alanine
+	 */
+	public static String getSingleLetter(char code) {
+		return table.singleLetters[code];
+	}
+
+	/**
+	 * Get the three letter name of a residue type
+	 *
+	 * @param code
+	 *            the code of the residue type
+	 * @return the three letter name, e.g. <code>Ala</code> for alanine
+	 */
+	public static String getThreeLetter(char code) {
+		return table.threeLetters[code];
+	}
+
+	/**
+	 * Get the full name of a residue type
+	 *
+	 * @param code
+	 *            the code of the residue type
+	 * @return the full name, e.g. <code>Alanine</code>
+	 */
+	public static String getFullName(char code) {
+		return table.fullNames[code];
+	}
+
+	/**
+	 * Get the SMILES string of a residue type
+	 *
+	 * @param code
+	 *            the code of the residue type
+	 * @return the SMILES string or <code>null</code> if the type has none
+	 */
+	public static String getSMILES(char code) {
+		return table.smiles[code];
+	}
+
+	/**
+	 * The types and their names, indexed by code
+	 */
+	private static class Table {
+		final Map<String, Integer> codes;
+		final String[] types;
+		final String[] singleLetters;
+		final String[] threeLetters;
+		final String[] fullNames;
+		final String[] smiles;
+
+		Table() {
+			codes = new HashMap<String, Integer>();
+			types = new String[0];
+			singleLetters = types;
+			threeLetters = types;
+			fullNames = types;
+			smiles = types;
+		}
+
+		Table(Table table, String type) {
+			int code = table.types.length;
+			codes = new HashMap<String, Integer>(table.codes);
+			codes.put(type, Integer.valueOf(code));
+			types = append(table.types, type);
+			String names = ChimUtils.aaNames.get(type);
+			if (names == null) {
+				singleLetters = append(table.singleLetters, type);
+				threeLetters = append(table.threeLetters, type);
+				fullNames = append(table.fullNames, type);
+				smiles = append(table.smiles, null);
+			} else {
+				String[] ids = names.split(" ");
+				singleLetters = append(table.singleLetters, ids[0]);
+				threeLetters = append(table.threeLetters, ids[1]);
+				fullNames = append(table.fullNames, ids[2].replace('_', ' '));
+				smiles = append(table.smiles, ids.length < 4 ? null : ids[3]);
+			}
+		}
+
+		private static String[] append(String[] array, String value) {
+			String[] larger = new String[array.length + 1];
+			System.arraycopy(array, 0, larger, 0, array.length);
+			larger[array.length] = value;
+			return larger;
+		}
+	}
+}
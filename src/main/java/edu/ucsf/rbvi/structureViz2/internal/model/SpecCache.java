@@ -0,0 +1,101 @@
+package edu.ucsf.rbvi.structureViz2.internal.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which structural object a Cytoscape attribute specification like
+ * <code>1abc#123.A</code> refers to, so that the same spec is parsed and looked up only once. The
+ * cache holds the most recently used specs, including the ones that don't refer to anything, and
+ * is cleared whenever models or residues are added or removed.
+ *
+ * Every invalidation starts a new generation. An object is only stored if no invalidation
+ * happened while it was resolved, so a lookup that raced with a model change is never cached.
+ */
+public class SpecCache {
+	private static final int DEFAULT_SIZE = 16384;
+
+	private final ChimeraManager chimeraManager;
+	private final Map<String, ChimeraStructuralObject> objects;
+	private long generation = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long invalidations = 0;
+
+	/**
+	 * Create a new cache
+	 *
+	 * @param chimeraManager
+	 *            the manager of the models the specs refer to
+	 */
+	public SpecCache(ChimeraManager chimeraManager) {
+		this(chimeraManager, DEFAULT_SIZE);
+	}
+
+	/**
+	 * Create a new cache
+	 *
+	 * @param chimeraManager
+	 *            the manager of the models the specs refer to
+	 * @param size
+	 *            the maximum number of specs to remember
+	 */
+	public SpecCache(ChimeraManager chimeraManager, final int size) {
+		this.chimeraManager = chimeraManager;
+		this.objects = new LinkedHashMap<String, ChimeraStructuralObject>(256, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, ChimeraStructuralObject> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Get the object a spec refers to, resolving it if it is not cached
+	 *
+	 * @param spec
+	 *            the attribute specification
+	 * @return the lowest-level object the spec refers to or <code>null</code>
+	 */
+	public ChimeraStructuralObject resolve(String spec) {
+		long specGeneration;
+		synchronized (this) {
+			if (objects.containsKey(spec)) {
+				hits++;
+				return objects.get(spec);
+			}
+			misses++;
+			specGeneration = generation;
+		}
+		ChimeraStructuralObject object = ChimUtils.resolveAttribute(spec, chimeraManager);
+		synchronized (this) {
+			if (specGeneration == generation)
+				objects.put(spec, object);
+		}
+		return object;
+	}
+
+	/**
+	 * Forget all specs, e.g. because models have been opened or closed
+	 */
+	public synchronized void invalidate() {
+		generation++;
+		invalidations++;
+		objects.clear();
+	}
+
+	/**
+	 * Reset the hit and miss counts
+	 */
+	public synchronized void resetStats() {
+		hits = 0;
+		misses = 0;
+		invalidations = 0;
+	}
+
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return String.format("spec cache: %d hits, %d misses (%.1f%% hits), %d invalidations, "
+				+ "%d specs cached", hits, misses, lookups > 0 ? 100.0 * hits / lookups : 0.0,
+				invalidations, objects.size());
+	}
+}
@@ -0,0 +1,664 @@
+package edu.ucsf.rbvi.structureViz2.internal.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager.ModelType;
+
+/**
+ * Reads the residues and atom coordinates of PDB and mmCIF files without Chimera, so that large
+ * sets of structures can be indexed without launching it. Files are memory-mapped and parsed in
+ * place; only residue indexes, residue types and atom names become Strings.
+ *
+ * The models are built the way Chimera opens a file: a file with a single model becomes model
+ * <code>#n</code>, an ensemble becomes the sub-models <code>#n.1</code>, <code>#n.2</code>, ...
+ * named after the file. Residues are identified by the author chain ID, residue number and
+ * insertion code. Of alternate locations, only the unlabeled and the first ('A') are read.
+ */
+public class StructureFileReader {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final double[] POWERS_OF_TEN = new double[] { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5,
+			1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+	private final ByteBuffer buffer;
+	private final int length;
+	// the structure being built
+	private final List<ModelBuilder> models = new ArrayList<ModelBuilder>();
+	private ModelBuilder model = null;
+	private int atomCount = 0;
+	private float[] coordinates = new float[3 * 1024];
+	private String[] atomNames = new String[1024];
+	private int[] atomModels = new int[1024];
+	private int[] atomResidues = new int[1024];
+	// atom names of up to four characters, packed into an int
+	private final Map<Integer, String> names = new HashMap<Integer, String>();
+	private int lineNumber = 0;
+
+	private static Logger logger = LoggerFactory
+			.getLogger(edu.ucsf.rbvi.structureViz2.internal.model.StructureFileReader.class);
+
+	private StructureFileReader(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.length = buffer.limit();
+	}
+
+	/**
+	 * Read a PDB or mmCIF file. Files whose name ends with <code>.cif</code> or whose first
+	 * line starts with <code>data_</code> are read as mmCIF.
+	 *
+	 * @param file
+	 *            the file, which must not be compressed
+	 * @param modelNumber
+	 *            the model number to give the structure
+	 * @return the structure
+	 */
+	public static StructureFile read(File file, int modelNumber) throws IOException {
+		if (file.getName().endsWith(".gz") || file.getName().endsWith(".Z"))
+			throw new IOException("Compressed structure files are not supported: " + file);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			// A single mapping can't be larger than 2GB
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Structure file too large: " + file);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the file is closed
+			randomAccessFile.close();
+		}
+		StructureFileReader reader = new StructureFileReader(buffer);
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".cif") || name.endsWith(".mmcif") || reader.startsWith(0, "data_")) {
+			reader.readCIF();
+		} else {
+			reader.readPDB();
+		}
+		return reader.build(file, modelNumber);
+	}
+
+	/**
+	 * Read several files at the same time. The files get consecutive model numbers.
+	 *
+	 * @param files
+	 *            the files
+	 * @param firstModelNumber
+	 *            the model number of the first file
+	 * @param threads
+	 *            the number of files to read at the same time
+	 * @return the structures in the order of the files, <code>null</code> for the files that
+	 *         could not be read
+	 */
+	public static List<StructureFile> read(List<File> files, final int firstModelNumber,
+			int threads) throws InterruptedException {
+		final AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Structure reader "
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			List<Callable<StructureFile>> jobs = new ArrayList<Callable<StructureFile>>();
+			for (int i = 0; i < files.size(); i++) {
+				final File file = files.get(i);
+				final int modelNumber = firstModelNumber + i;
+				jobs.add(new Callable<StructureFile>() {
+					public StructureFile call() throws IOException {
+						return read(file, modelNumber);
+					}
+				});
+			}
+			List<StructureFile> structures = new ArrayList<StructureFile>(files.size());
+			List<Future<StructureFile>> futures = executor.invokeAll(jobs);
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					structures.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					logger.warn("Could not read " + files.get(i) + ": " + e.getCause().getMessage());
+					structures.add(null);
+				}
+			}
+			return structures;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**********************************************
+	 * PDB
+	 *********************************************/
+
+	private void readPDB() throws IOException {
+		int models = 0;
+		int previousAtom = -1;
+		for (int start = 0; start < length; start = nextLine(start)) {
+			lineNumber++;
+			int end = lineEnd(start);
+			if (startsWith(start, "MODEL ")) {
+				models++;
+				previousAtom = -1;
+			} else if (startsWith(start, "ATOM  ") || startsWith(start, "HETATM")) {
+				byte altLoc = column(start, end, 16);
+				if (altLoc != ' ' && altLoc != 'A')
+					continue;
+				if (model == null || model.ordinal != Math.max(0, models - 1))
+					startModel(Math.max(0, models - 1));
+				// residue name, chain, number and insertion code are columns 18 to 27
+				if (previousAtom < 0 || !sameColumns(previousAtom, start, end, 17, 27)) {
+					String type = columnString(start, end, 17, 20);
+					byte chain = column(start, end, 21);
+					String index = columnString(start, end, 22, 27);
+					model.addResidue(chain == ' ' ? "_" : String.valueOf((char) chain), index, type);
+				}
+				previousAtom = start;
+				try {
+					addAtom(atomName(start, Math.min(end, start + 16), start + 12),
+							parseFloat(start + 30, Math.min(end, start + 38)),
+							parseFloat(start + 38, Math.min(end, start + 46)),
+							parseFloat(start + 46, Math.min(end, start + 54)));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid coordinates in line " + lineNumber);
+				}
+			}
+		}
+	}
+
+	private byte column(int start, int end, int column) {
+		return start + column < end ? buffer.get(start + column) : (byte) ' ';
+	}
+
+	private String columnString(int start, int end, int from, int to) {
+		return string(start + from, Math.min(end, start + to));
+	}
+
+	private boolean sameColumns(int line1, int line2, int end2, int from, int to) {
+		int end1 = lineEnd(line1);
+		for (int i = from; i < to; i++) {
+			if (column(line1, end1, i) != column(line2, end2, i))
+				return false;
+		}
+		return true;
+	}
+
+	/**********************************************
+	 * mmCIF
+	 *********************************************/
+
+	private void readCIF() throws IOException {
+		int start = 0;
+		while (start < length) {
+			lineNumber++;
+			if (startsWith(start, "loop_")) {
+				start = nextLine(start);
+				List<String> columns = new ArrayList<String>();
+				while (start < length && startsWith(start, "_")) {
+					lineNumber++;
+					columns.add(string(start, trimEnd(start, lineEnd(start))));
+					start = nextLine(start);
+				}
+				if (columns.size() > 0 && columns.get(0).startsWith("_atom_site.")) {
+					start = readAtomSite(start, columns);
+				}
+			} else {
+				start = nextLine(start);
+			}
+		}
+	}
+
+	private int readAtomSite(int start, List<String> columns) throws IOException {
+		int group = columns.indexOf("_atom_site.group_PDB");
+		int atom = column(columns, "auth_atom_id", "label_atom_id");
+		int altLoc = columns.indexOf("_atom_site.label_alt_id");
+		int type = column(columns, "auth_comp_id", "label_comp_id");
+		int chain = column(columns, "auth_asym_id", "label_asym_id");
+		int number = column(columns, "auth_seq_id", "label_seq_id");
+		int insertionCode = columns.indexOf("_atom_site.pdbx_PDB_ins_code");
+		int x = columns.indexOf("_atom_site.Cartn_x");
+		int y = columns.indexOf("_atom_site.Cartn_y");
+		int z = columns.indexOf("_atom_site.Cartn_z");
+		int modelNumber = columns.indexOf("_atom_site.pdbx_PDB_model_num");
+		if (atom < 0 || type < 0 || chain < 0 || number < 0 || x < 0 || y < 0 || z < 0)
+			throw new IOException("Incomplete atom_site table in line " + lineNumber);
+
+		int[] tokenStarts = new int[columns.size()];
+		int[] tokenEnds = new int[columns.size()];
+		int[] previousStarts = null;
+		int[] previousEnds = null;
+		int token = 0;
+		int modelOrdinal = -1;
+		while (start < length) {
+			int end = lineEnd(start);
+			byte first = end > start ? buffer.get(start) : (byte) ' ';
+			if (first == '_' || first == '#' || startsWith(start, "loop_")
+					|| startsWith(start, "data_")) {
+				break;
+			}
+			lineNumber++;
+			// values are separated by white space, rows may span several lines
+			int i = start;
+			while (i < end) {
+				byte b = buffer.get(i);
+				if (b == ' ' || b == '\t') {
+					i++;
+					continue;
+				}
+				int tokenStart = i;
+				int tokenEnd;
+				if (b == '\'' || b == '"') {
+					// quoted values end at the quote that is followed by white space
+					int j = i + 1;
+					while (j < end && !(buffer.get(j) == b && (j + 1 == end || isSpace(j + 1))))
+						j++;
+					tokenStart = i + 1;
+					tokenEnd = j;
+					i = Math.min(end, j + 1);
+				} else {
+					while (i < end && !isSpace(i))
+						i++;
+					tokenEnd = i;
+				}
+				tokenStarts[token] = tokenStart;
+				tokenEnds[token++] = tokenEnd;
+				if (token < tokenStarts.length)
+					continue;
+				token = 0;
+
+				// a complete row
+				if (group >= 0 && !equals(tokenStarts[group], tokenEnds[group], "ATOM")
+						&& !equals(tokenStarts[group], tokenEnds[group], "HETATM"))
+					continue;
+				if (altLoc >= 0) {
+					int altLength = tokenEnds[altLoc] - tokenStarts[altLoc];
+					byte alt = buffer.get(tokenStarts[altLoc]);
+					if (altLength != 1 || (alt != '.' && alt != '?' && alt != 'A'))
+						continue;
+				}
+				if (modelNumber >= 0
+						&& (previousStarts == null || !sameToken(modelNumber, tokenStarts,
+								tokenEnds, previousStarts, previousEnds))) {
+					modelOrdinal++;
+					previousStarts = null;
+				} else if (modelNumber < 0) {
+					modelOrdinal = 0;
+				}
+				if (model == null || model.ordinal != modelOrdinal)
+					startModel(modelOrdinal);
+				if (previousStarts == null
+						|| !sameToken(chain, tokenStarts, tokenEnds, previousStarts, previousEnds)
+						|| !sameToken(number, tokenStarts, tokenEnds, previousStarts, previousEnds)
+						|| !sameToken(type, tokenStarts, tokenEnds, previousStarts, previousEnds)
+						|| (insertionCode >= 0 && !sameToken(insertionCode, tokenStarts, tokenEnds,
+								previousStarts, previousEnds))) {
+					String index = string(tokenStarts[number], tokenEnds[number]);
+					if (insertionCode >= 0)
+						index += value(tokenStarts[insertionCode], tokenEnds[insertionCode]);
+					String chainId = value(tokenStarts[chain], tokenEnds[chain]);
+					model.addResidue(chainId.length() == 0 ? "_" : chainId, index,
+							string(tokenStarts[type], tokenEnds[type]));
+				}
+				try {
+					addAtom(atomName(tokenStarts[atom], tokenEnds[atom], tokenStarts[atom]),
+							parseFloat(tokenStarts[x], tokenEnds[x]),
+							parseFloat(tokenStarts[y], tokenEnds[y]),
+							parseFloat(tokenStarts[z], tokenEnds[z]));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid coordinates in line " + lineNumber);
+				}
+				// the row is kept until the next one is complete
+				int[] swap = previousStarts == null ? new int[tokenStarts.length] : previousStarts;
+				previousStarts = tokenStarts;
+				tokenStarts = swap;
+				swap = previousEnds == null ? new int[tokenEnds.length] : previousEnds;
+				previousEnds = tokenEnds;
+				tokenEnds = swap;
+			}
+			start = nextLine(end);
+		}
+		return start;
+	}
+
+	private static int column(List<String> columns, String name, String fallback) {
+		int column = columns.indexOf("_atom_site." + name);
+		return column >= 0 ? column : columns.indexOf("_atom_site." + fallback);
+	}
+
+	private boolean sameToken(int column, int[] starts, int[] ends, int[] previousStarts,
+			int[] previousEnds) {
+		int tokenLength = ends[column] - starts[column];
+		if (tokenLength != previousEnds[column] - previousStarts[column])
+			return false;
+		for (int i = 0; i < tokenLength; i++) {
+			if (buffer.get(starts[column] + i) != buffer.get(previousStarts[column] + i))
+				return false;
+		}
+		return true;
+	}
+
+	// '.' and '?' are missing values
+	private String value(int start, int end) {
+		if (end - start == 1 && (buffer.get(start) == '.' || buffer.get(start) == '?'))
+			return "";
+		return string(start, end);
+	}
+
+	/**********************************************
+	 * Building the structure
+	 *********************************************/
+
+	private void startModel(int ordinal) {
+		model = new ModelBuilder(ordinal);
+		models.add(model);
+	}
+
+	private void addAtom(String name, float x, float y, float z) {
+		if (atomCount == atomNames.length) {
+			int capacity = atomCount * 2;
+			float[] largerCoordinates = new float[3 * capacity];
+			System.arraycopy(coordinates, 0, largerCoordinates, 0, 3 * atomCount);
+			coordinates = largerCoordinates;
+			String[] largerNames = new String[capacity];
+			System.arraycopy(atomNames, 0, largerNames, 0, atomCount);
+			atomNames = largerNames;
+			atomModels = copyOf(atomModels, capacity);
+			atomResidues = copyOf(atomResidues, capacity);
+		}
+		coordinates[3 * atomCount] = x;
+		coordinates[3 * atomCount + 1] = y;
+		coordinates[3 * atomCount + 2] = z;
+		atomNames[atomCount] = name;
+		atomModels[atomCount] = models.size() - 1;
+		atomResidues[atomCount] = model.residueCount - 1;
+		atomCount++;
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private StructureFile build(File file, int modelNumber) {
+		List<ChimeraModel> chimeraModels = new ArrayList<ChimeraModel>(models.size());
+		ChimeraResidue[][] residues = new ChimeraResidue[models.size()][];
+		for (int i = 0; i < models.size(); i++) {
+			ModelBuilder builder = models.get(i);
+			ChimeraModel chimeraModel = new ChimeraModel(file.getName(), ModelType.PDB_MODEL,
+					modelNumber, models.size() > 1 ? i + 1 : 0);
+			residues[i] = new ChimeraResidue[builder.residueCount];
+			ChimeraChain chain = null;
+			for (int r = 0; r < builder.residueCount; r++) {
+				String chainId = builder.chainIds.get(r);
+				if (chain == null || !chain.getChainId().equals(chainId))
+					chain = chimeraModel.addChain(chainId);
+				int entry = chain.addResidue(builder.indexes.get(r), builder.types.get(r));
+				residues[i][r] = new ChimeraResidue(chain, entry);
+			}
+			chimeraModels.add(chimeraModel);
+		}
+		ChimeraResidue[] atomResidueViews = new ChimeraResidue[atomCount];
+		for (int atom = 0; atom < atomCount; atom++) {
+			atomResidueViews[atom] = residues[atomModels[atom]][atomResidues[atom]];
+		}
+		float[] atomCoordinates = new float[3 * atomCount];
+		System.arraycopy(coordinates, 0, atomCoordinates, 0, 3 * atomCount);
+		String[] names = new String[atomCount];
+		System.arraycopy(atomNames, 0, names, 0, atomCount);
+		return new StructureFile(file, chimeraModels, names, atomResidueViews, atomCoordinates);
+	}
+
+	/**
+	 * The residues of one model, in file order
+	 */
+	private static class ModelBuilder {
+		final int ordinal;
+		final List<String> chainIds = new ArrayList<String>();
+		final List<String> indexes = new ArrayList<String>();
+		final List<String> types = new ArrayList<String>();
+		int residueCount = 0;
+
+		ModelBuilder(int ordinal) {
+			this.ordinal = ordinal;
+		}
+
+		void addResidue(String chainId, String index, String type) {
+			chainIds.add(chainId);
+			indexes.add(index);
+			types.add(type);
+			residueCount++;
+		}
+	}
+
+	/**********************************************
+	 * Scanning the buffer
+	 *********************************************/
+
+	private int lineEnd(int start) {
+		int end = start;
+		while (end < length && buffer.get(end) != '\n')
+			end++;
+		if (end > start && buffer.get(end - 1) == '\r')
+			end--;
+		return end;
+	}
+
+	private int nextLine(int start) {
+		int i = start;
+		while (i < length && buffer.get(i) != '\n')
+			i++;
+		return i + 1;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && isSpace(end - 1))
+			end--;
+		return end;
+	}
+
+	private boolean isSpace(int i) {
+		byte b = buffer.get(i);
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private boolean startsWith(int start, String prefix) {
+		if (start + prefix.length() > length)
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buffer.get(start + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean equals(int start, int end, String value) {
+		return end - start == value.length() && startsWith(start, value);
+	}
+
+	// the trimmed text between start and end
+	private String string(int start, int end) {
+		while (start < end && isSpace(start))
+			start++;
+		end = trimEnd(start, end);
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, ASCII);
+	}
+
+	private String atomName(int start, int end, int nameStart) {
+		int from = nameStart;
+		while (from < end && isSpace(from))
+			from++;
+		int to = trimEnd(from, end);
+		if (to - from > 4 || to == from)
+			return string(from, to);
+		int key = 0;
+		for (int i = from; i < to; i++) {
+			key = (key << 8) | (buffer.get(i) & 0xff);
+		}
+		Integer packed = Integer.valueOf(key);
+		String name = names.get(packed);
+		if (name == null) {
+			name = string(from, to);
+			names.put(packed, name);
+		}
+		return name;
+	}
+
+	private float parseFloat(int start, int end) {
+		int i = start;
+		while (i < end && isSpace(i))
+			i++;
+		end = trimEnd(i, end);
+		boolean negative = false;
+		if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean fraction = false;
+		int numberStart = i;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					digits++;
+					if (fraction)
+						exponent--;
+				} else if (!fraction) {
+					exponent++;
+				}
+			} else if (b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if (i == numberStart || (fraction && i == numberStart + 1))
+			throw new NumberFormatException();
+		if (i < end) {
+			// an exponent, or something that isn't a number
+			byte b = buffer.get(i);
+			if (b != 'e' && b != 'E')
+				throw new NumberFormatException();
+			exponent += Integer.parseInt(string(i + 1, end));
+		}
+		double value;
+		if (exponent >= 0) {
+			value = exponent < POWERS_OF_TEN.length ? mantissa * POWERS_OF_TEN[exponent] : mantissa
+					* Math.pow(10, exponent);
+		} else {
+			value = -exponent < POWERS_OF_TEN.length ? mantissa / POWERS_OF_TEN[-exponent]
+					: mantissa / Math.pow(10, -exponent);
+		}
+		return (float) (negative ? -value : value);
+	}
+
+	/**
+	 * The models, residues and atoms read from a structure file
+	 */
+	public static class StructureFile {
+		private final File file;
+		private final List<ChimeraModel> models;
+		private final String[] atomNames;
+		private final ChimeraResidue[] atomResidues;
+		private final float[] coordinates;
+
+		StructureFile(File file, List<ChimeraModel> models, String[] atomNames,
+				ChimeraResidue[] atomResidues, float[] coordinates) {
+			this.file = file;
+			this.models = models;
+			this.atomNames = atomNames;
+			this.atomResidues = atomResidues;
+			this.coordinates = coordinates;
+		}
+
+		/**
+		 * Get the file the structure has been read from
+		 *
+		 * @return the file
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Get the models, one for a single structure or one sub-model for every model of an
+		 * ensemble
+		 *
+		 * @return the models
+		 */
+		public List<ChimeraModel> getModels() {
+			return models;
+		}
+
+		/**
+		 * Get the number of atoms
+		 *
+		 * @return the number of atoms in all models
+		 */
+		public int getAtomCount() {
+			return atomNames.length;
+		}
+
+		/**
+		 * Get the name of an atom
+		 *
+		 * @param atom
+		 *            the index of the atom
+		 * @return the name, e.g. <code>CA</code>
+		 */
+		public String getAtomName(int atom) {
+			return atomNames[atom];
+		}
+
+		/**
+		 * Get the residue of an atom
+		 *
+		 * @param atom
+		 *            the index of the atom
+		 * @return the residue
+		 */
+		public ChimeraResidue getResidue(int atom) {
+			return atomResidues[atom];
+		}
+
+		/**
+		 * Get a coordinate of an atom
+		 *
+		 * @param atom
+		 *            the index of the atom
+		 * @param axis
+		 *            0, 1 or 2 for x, y or z
+		 * @return the coordinate
+		 */
+		public float getCoordinate(int atom, int axis) {
+			return coordinates[atom * 3 + axis];
+		}
+	}
+}
@@ -48,6 +48,12 @@ public class StructureManager {
 	static final String[] defaultCommandKeys = { "ChimeraCommands", "ChimeraScript" };
 
 	private final String chimeraPathPropertyKey = "LastChimeraPath";
+	private final String chimeraTransportPropertyKey = "ChimeraTransport";
+	private final String chimeraTimeoutPropertyKey = "ChimeraCommandTimeout";
+	private final String chimeraPrelaunchPropertyKey = "ChimeraPrelaunch";
+	private final String chimeraWorkersPropertyKey = "ChimeraWorkers";
+	private final String chimeraRecordPropertyKey = "ChimeraRecordSession";
+	private final String chimeraReplayPropertyKey = "ChimeraReplaySession";
 
 	public enum ModelType {
 		PDB_MODEL, MODBASE_MODEL, SMILES
@@ -96,6 +102,15 @@ public class StructureManager {
 		rinManager = new RINManager(this);
 		chimSelectionList = new ArrayList<ChimeraStructuralObject>();
 		defaultChimeraPath = CytoUtils.getDefaultChimeraPath(registrar, chimeraPathPropertyKey);
+		// Timeout for Chimera commands in seconds
+		String timeout = CytoUtils.getProperty(registrar, chimeraTimeoutPropertyKey);
+		if (timeout != null && timeout.trim().length() > 0) {
+			try {
+				chimeraManager.setCommandTimeout((long) (Double.parseDouble(timeout.trim()) * 1000));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring invalid " + chimeraTimeoutPropertyKey + ": " + timeout);
+			}
+		}
 		appManager = registrar.getService(CyApplicationManager.class);
 	}
 
@@ -103,6 +118,23 @@ public class StructureManager {
 		return chimeraManager;
 	}
 
+	/**
+	 * Get the directory structureViz keeps its files in, inside the Cytoscape configuration
+	 * directory
+	 * 
+	 * @return the directory, which may not exist yet
+	 */
+	public synchronized File getConfigurationDirectory() {
+		if (configurationDirectory == null) {
+			CyApplicationConfiguration configuration = getService(CyApplicationConfiguration.class);
+			File cytoscapeDirectory = configuration == null ? new File(
+					System.getProperty("user.home"), "CytoscapeConfiguration") : configuration
+					.getConfigurationDirectoryLocation();
+			configurationDirectory = new File(cytoscapeDirectory, "structureViz");
+		}
+		return configurationDirectory;
+	}
+
 	public RINManager getRINManager() {
 		return rinManager;
 	}
@@ -357,6 +389,10 @@ public class StructureManager {
 	public void closeModel(ChimeraModel model) {
 		// close model in Chimera
 		chimeraManager.closeModel(model);
+		removeAssociations(model);
+	}
+
+	private void removeAssociations(ChimeraModel model) {
 		// remove all associations
 		if (currentChimMap.containsKey(model)) {
 			for (CyIdentifiable cyObj : model.getCyObjects().keySet()) {
@@ -838,17 +874,106 @@ public class StructureManager {
 	 * Dump and refresh all of our model/chain/residue info
 	 */
 	public void updateModels() {
+		updateModels(true);
+	}
+
+	/**
+	 * Bring our model/chain/residue info up to date after Chimera reported a change. Models that
+	 * have been closed are dropped. The colors and residue counts of all open models are queried
+	 * at once; only the models that have been opened or replaced, or whose number of residues has
+	 * changed, are listed again and associated with Cytoscape objects again.
+	 */
+	public void updateChangedModels() {
+		updateModels(false);
+	}
+
+	private void updateModels(boolean refreshAll) {
 		// Stop all of our listeners while we try to handle this
 		chimeraManager.stopListening();
 
 		// Get all of the open models
 		List<ChimeraModel> newModelList = chimeraManager.getModelList();
+		if (newModelList == null) {
+			// Chimera did not answer, keep what we have
+			chimeraManager.startListening();
+			return;
+		}
 
 		// Match them up -- assume that the model #'s haven't changed
+		Set<Integer> openModelKeys = new HashSet<Integer>();
+		List<ChimeraModel> changedModels = new ArrayList<ChimeraModel>();
+		// the models that are still open, which may have been changed in Chimera
+		List<ChimeraModel> keptModels = new ArrayList<ChimeraModel>();
 		for (ChimeraModel newModel : newModelList) {
-			// Get the color (for our navigator)
-			newModel.setModelColor(chimeraManager.getModelColor(newModel));
+			int modelNumber = newModel.getModelNumber();
+			int subModelNumber = newModel.getSubModelNumber();
+			openModelKeys.add(ChimUtils.makeModelKey(modelNumber, subModelNumber));
+			ChimeraModel oldModel = chimeraManager.getChimeraModel(modelNumber, subModelNumber);
+			if (oldModel != null) {
+				newModel.setModelType(oldModel.getModelType());
+				if (oldModel.getModelType() == ModelType.SMILES) {
+					newModel.setModelName(oldModel.getModelName());
+				}
+			}
+			// Chimera shortens the names of smiles models, so we can't compare those
+			if (!refreshAll
+					&& oldModel != null
+					&& (oldModel.getModelType() == ModelType.SMILES || oldModel.getModelName()
+							.equals(newModel.getModelName()))) {
+				keptModels.add(newModel);
+			} else {
+				changedModels.add(newModel);
+			}
+		}
+
+		// Drop the models that have been closed in Chimera
+		if (!refreshAll) {
+			for (ChimeraModel oldModel : new ArrayList<ChimeraModel>(chimeraManager.getChimeraModels())) {
+				if (!openModelKeys.contains(ChimUtils.makeModelKey(oldModel.getModelNumber(),
+						oldModel.getSubModelNumber()))) {
+					removeAssociations(oldModel);
+					chimeraManager.removeChimeraModel(oldModel.getModelNumber(),
+							oldModel.getSubModelNumber());
+				}
+			}
+		}
+
+		// Models that are still open are checked with one query for the colors and residue
+		// counts of all models, and listed again only if their number of residues changed
+		if (keptModels.size() > 0) {
+			Map<String, Map<Integer, String>> modelAttributes = chimeraManager
+					.getModelAttributes(Arrays.asList("color", "numResidues"));
+			if (modelAttributes == null) {
+				// Chimera did not answer, keep what we have
+				chimeraManager.startListening();
+				return;
+			}
+			for (ChimeraModel newModel : keptModels) {
+				Integer modelKey = ChimUtils.makeModelKey(newModel.getModelNumber(),
+						newModel.getSubModelNumber());
+				ChimeraModel oldModel = chimeraManager.getChimeraModel(newModel.getModelNumber(),
+						newModel.getSubModelNumber());
+				String color = modelAttributes.get("color").get(modelKey);
+				if (color != null) {
+					oldModel.setModelColor(ChimUtils.parseModelColor("color " + color));
+				}
+				String residueCount = modelAttributes.get("numResidues").get(modelKey);
+				if (oldModel.getModelType() != ModelType.SMILES
+						&& !hasResidueCount(oldModel, residueCount)) {
+					changedModels.add(newModel);
+				}
+			}
+		}
+
+		// Get the color (for our navigator) and the residue information of the new models
+		if (!chimeraManager.addModelInfo(changedModels)) {
+			// Chimera did not answer, keep the models we have
+			chimeraManager.startListening();
+			return;
+		}
 
+		Map<String, List<ChimeraModel>> modelsToAssociate = new HashMap<String, List<ChimeraModel>>();
+		for (ChimeraModel newModel : changedModels) {
 			// Get our model info
 			int modelNumber = newModel.getModelNumber();
 			int subModelNumber = newModel.getSubModelNumber();
@@ -856,12 +981,8 @@ public class StructureManager {
 			// If we already know about this model number, get the Structure,
 			// which tells us about the associated CyNode
 			if (chimeraManager.hasChimeraModel(modelNumber, subModelNumber)) {
+				// the old model stays visible until the new one replaces it below
 				ChimeraModel oldModel = chimeraManager.getChimeraModel(modelNumber, subModelNumber);
-				chimeraManager.removeChimeraModel(modelNumber, subModelNumber);
-				newModel.setModelType(oldModel.getModelType());
-				if (oldModel.getModelType() == ModelType.SMILES) {
-					newModel.setModelName(oldModel.getModelName());
-				}
 				// re-assign associations to cytoscape objects
 				Map<CyIdentifiable, CyNetwork> oldModelCyObjs = oldModel.getCyObjects();
 				for (CyIdentifiable cyObj : oldModelCyObjs.keySet()) {
@@ -882,11 +1003,11 @@ public class StructureManager {
 			}
 			// add new model to ChimeraManager
 			chimeraManager.addChimeraModel(modelNumber, subModelNumber, newModel);
-
-			// Get the residue information
-			if (newModel.getModelType() != ModelType.SMILES) {
-				chimeraManager.addResidues(newModel);
+			if (!modelsToAssociate.containsKey(newModel.getModelName())) {
+				modelsToAssociate.put(newModel.getModelName(), new ArrayList<ChimeraModel>());
 			}
+			modelsToAssociate.get(newModel.getModelName()).add(newModel);
+
 			for (CyIdentifiable cyObj : newModel.getCyObjects().keySet()) {
 				if (cyObj != null && cyObj instanceof CyNetwork) {
 					addStructureNetwork((CyNetwork) cyObj);
@@ -898,14 +1019,27 @@ public class StructureManager {
 			}
 		}
 
-		// associate all models with any node or network
-		aTask.associate();
+		// associate the new models with any node or network
+		if (refreshAll) {
+			aTask.associate();
+		} else if (modelsToAssociate.size() > 0) {
+			aTask.associate(modelsToAssociate);
+		}
 
 		// Restart all of our listeners
 		chimeraManager.startListening();
 		// Done
 	}
 
+	// Check whether Chimera reports the number of residues we have for a model
+	private static boolean hasResidueCount(ChimeraModel model, String residueCount) {
+		try {
+			return residueCount != null && model.getResidueCount() == Integer.parseInt(residueCount);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
 	public void launchModelNavigatorDialog() {
 		// TODO: [Optional] Use haveGUI flag
 		// if (!haveGUI) {
@@ -1250,6 +1384,115 @@ public class StructureManager {
 		CytoUtils.setDefaultChimeraPath(registrar, chimeraPathPropertyKey, path);
 	}
 
+	/**
+	 * Get the transport used to talk to Chimera, either {@link ChimeraManager#TRANSPORT_PIPE} (the
+	 * default) or {@link ChimeraManager#TRANSPORT_REST}.
+	 * 
+	 * @return the name of the transport
+	 */
+	public String getChimeraTransportProperty() {
+		String transport = CytoUtils.getProperty(registrar, chimeraTransportPropertyKey);
+		if (transport != null && transport.trim().equalsIgnoreCase(ChimeraManager.TRANSPORT_REST)) {
+			return ChimeraManager.TRANSPORT_REST;
+		}
+		return ChimeraManager.TRANSPORT_PIPE;
+	}
+
+	/**
+	 * Get the moment Chimera should be launched in the background, before it is needed: never
+	 * ({@link ChimeraManager#PRELAUNCH_NONE}, the default), when Cytoscape starts
+	 * ({@link ChimeraManager#PRELAUNCH_STARTUP}) or when the first network with structure
+	 * columns is loaded ({@link ChimeraManager#PRELAUNCH_NETWORK}).
+	 * 
+	 * @return the prelaunch mode
+	 */
+	public String getChimeraPrelaunchProperty() {
+		String prelaunch = CytoUtils.getProperty(registrar, chimeraPrelaunchPropertyKey);
+		if (prelaunch != null) {
+			prelaunch = prelaunch.trim().toLowerCase();
+			if (prelaunch.equals(ChimeraManager.PRELAUNCH_STARTUP)
+					|| prelaunch.equals(ChimeraManager.PRELAUNCH_NETWORK)) {
+				return prelaunch;
+			}
+		}
+		return ChimeraManager.PRELAUNCH_NONE;
+	}
+
+	/**
+	 * Get the number of headless Chimera workers for batch jobs. Defaults to one worker per
+	 * processor.
+	 * 
+	 * @return the number of workers
+	 */
+	public int getChimeraWorkersProperty() {
+		String workers = CytoUtils.getProperty(registrar, chimeraWorkersPropertyKey);
+		if (workers != null && workers.trim().length() > 0) {
+			try {
+				int count = Integer.parseInt(workers.trim());
+				if (count > 0) {
+					return count;
+				}
+			} catch (NumberFormatException e) {
+				// use the default
+			}
+			logger.warn("Ignoring invalid " + chimeraWorkersPropertyKey + ": " + workers);
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Get the file the communication with Chimera should be recorded in, see
+	 * {@link edu.ucsf.rbvi.structureViz2.internal.port.SessionRecorder}
+	 * 
+	 * @return the session log or <code>null</code> if nothing is recorded
+	 */
+	public File getChimeraRecordProperty() {
+		String record = CytoUtils.getProperty(registrar, chimeraRecordPropertyKey);
+		if (record == null || record.trim().length() == 0) {
+			return null;
+		}
+		return new File(record.trim());
+	}
+
+	/**
+	 * Get the session log that should be played back instead of launching Chimera, see
+	 * {@link edu.ucsf.rbvi.structureViz2.internal.port.SessionReplay}
+	 * 
+	 * @return the session log or <code>null</code> to launch Chimera
+	 */
+	public File getChimeraReplayProperty() {
+		String replay = CytoUtils.getProperty(registrar, chimeraReplayPropertyKey);
+		if (replay == null || replay.trim().length() == 0) {
+			return null;
+		}
+		return new File(replay.trim());
+	}
+
+	/**
+	 * Launch Chimera in the background if the prelaunch mode asks for it, so that the first task
+	 * that needs Chimera does not have to wait for it to start.
+	 * 
+	 * @param network
+	 *            the network that has just been loaded, or <code>null</code> at startup
+	 */
+	public void prelaunchChimera(CyNetwork network) {
+		if (chimeraManager.isChimeraLaunched()) {
+			return;
+		}
+		String prelaunch = getChimeraPrelaunchProperty();
+		if (network == null) {
+			if (!prelaunch.equals(ChimeraManager.PRELAUNCH_STARTUP)) {
+				return;
+			}
+		} else if (!prelaunch.equals(ChimeraManager.PRELAUNCH_NETWORK)
+				|| CytoUtils.getMatchingAttributes(network.getDefaultNodeTable(),
+						getCurrentStructureKeys(network)).size() == 0) {
+			return;
+		}
+		logger.info("Launching Chimera in the background");
+		chimeraManager.launchChimeraAsync(getChimeraPaths(network));
+	}
+
 	/**
 	 * Set the "active site" or "special" residues
 	 * 
@@ -1310,8 +1553,11 @@ public class StructureManager {
 		}
 
 		public void associate() {
+			associate(chimeraManager.getChimeraModelsMap());
+		}
+
+		public void associate(Map<String, List<ChimeraModel>> newModels) {
 			CyNetworkManager netManager = (CyNetworkManager) getService(CyNetworkManager.class);
-			Map<String, List<ChimeraModel>> newModels = chimeraManager.getChimeraModelsMap();
 			// iterate over all networks
 			for (CyNetwork network : netManager.getNetworkSet()) {
 				associateNetwork(network, newModels);
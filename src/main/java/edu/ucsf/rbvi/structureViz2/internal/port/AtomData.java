@@ -0,0 +1,214 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk numeric data about a set of atoms that Chimera wrote to a file instead of sending it as
+ * text over the pipe. The atoms are listed in a text index file (one atom spec per line), the
+ * values are packed little-endian 32 bit floats that are memory-mapped rather than parsed.
+ * Depending on the query the values are either the xyz coordinates of every atom or the upper
+ * triangle of the distance matrix between the atoms.
+ */
+public class AtomData {
+	private static final String COMMAND_PREFIX = "runscript \"";
+
+	private final List<String> atomSpecs;
+	private final FloatBuffer values;
+
+	AtomData(List<String> atomSpecs, FloatBuffer values) {
+		this.atomSpecs = atomSpecs;
+		this.values = values;
+	}
+
+	/**
+	 * Get the atoms the data is about
+	 * 
+	 * @return the atom specs, e.g. <code>#0:355.A@CA</code>
+	 */
+	public List<String> getAtomSpecs() {
+		return atomSpecs;
+	}
+
+	/**
+	 * Get the number of atoms
+	 * 
+	 * @return the number of atoms
+	 */
+	public int getAtomCount() {
+		return atomSpecs.size();
+	}
+
+	/**
+	 * Get a coordinate of an atom
+	 * 
+	 * @param atom
+	 *            the index of the atom
+	 * @param axis
+	 *            0, 1 or 2 for x, y or z
+	 * @return the coordinate
+	 */
+	public float getCoordinate(int atom, int axis) {
+		return values.get(atom * 3 + axis);
+	}
+
+	/**
+	 * Get the distance between two different atoms
+	 * 
+	 * @param atom1
+	 *            the index of the first atom
+	 * @param atom2
+	 *            the index of the second atom
+	 * @return the distance
+	 */
+	public float getDistance(int atom1, int atom2) {
+		if (atom1 > atom2) {
+			int tmp = atom1;
+			atom1 = atom2;
+			atom2 = tmp;
+		}
+		// Row i of the upper triangle starts after the i rows before it, which have
+		// n-1, n-2, ..., n-i entries
+		long n = atomSpecs.size();
+		long rowStart = atom1 * (2 * n - atom1 - 1) / 2;
+		return values.get((int) (rowStart + atom2 - atom1 - 1));
+	}
+
+	/**
+	 * Get the Chimera command that runs the script writing data about atoms. The script path is
+	 * quoted and the data path is URL-encoded, so that paths with spaces survive the parsing of
+	 * the command by Chimera; the script decodes the data path.
+	 * 
+	 * @param script
+	 *            the script that writes the data
+	 * @param mode
+	 *            <code>coords</code> or <code>distances</code>
+	 * @param dataFile
+	 *            the file to write the values to, the atom specs go to
+	 *            {@link #getIndexFile(File)}
+	 * @param spec
+	 *            the atoms to write the data for
+	 * @return the command
+	 */
+	public static String getCommand(File script, String mode, File dataFile, String spec) {
+		String dataPath;
+		try {
+			dataPath = URLEncoder.encode(dataFile.getPath(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always there
+			dataPath = dataFile.getPath();
+		}
+		return COMMAND_PREFIX + script.getPath() + "\" " + mode + " " + dataPath + " " + spec;
+	}
+
+	/**
+	 * Replace the paths of the script and the data file in a command made by
+	 * {@link #getCommand(File, String, File, String)}, which are different every time, so that
+	 * commands of different sessions can be compared
+	 * 
+	 * @param command
+	 *            the command
+	 * @return the command without paths, or the command itself if it doesn't run a script that
+	 *         writes data about atoms
+	 */
+	static String normalizeCommand(String command) {
+		String[] script = parseCommand(command);
+		if (script == null)
+			return command;
+		return COMMAND_PREFIX + "script\" " + script[1] + " data " + script[3];
+	}
+
+	/**
+	 * Split a command made by {@link #getCommand(File, String, File, String)}
+	 * 
+	 * @param command
+	 *            the command
+	 * @return the script path, the mode, the data path and the spec, or <code>null</code> if the
+	 *         command doesn't run a script that writes data about atoms
+	 */
+	static String[] parseCommand(String command) {
+		if (!command.startsWith(COMMAND_PREFIX))
+			return null;
+		int quote = command.indexOf('"', COMMAND_PREFIX.length());
+		if (quote < 0)
+			return null;
+		String[] args = command.substring(quote + 1).trim().split(" ", 3);
+		if (args.length < 2 || !(args[0].equals("coords") || args[0].equals("distances")))
+			return null;
+		try {
+			return new String[] { command.substring(COMMAND_PREFIX.length(), quote), args[0],
+					URLDecoder.decode(args[1], "UTF-8"), args.length > 2 ? args[2] : "" };
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always there
+			return null;
+		} catch (IllegalArgumentException e) {
+			// not encoded by getCommand
+			return null;
+		}
+	}
+
+	/**
+	 * Get the file the atom specs are written to
+	 * 
+	 * @param dataFile
+	 *            the file with the values
+	 * @return the index file next to it
+	 */
+	public static File getIndexFile(File dataFile) {
+		return new File(dataFile.getPath() + ".idx");
+	}
+
+	/**
+	 * Read the data written by Chimera
+	 * 
+	 * @param dataFile
+	 *            the file with the packed float values
+	 * @param indexFile
+	 *            the file with the atom specs
+	 * @param coordinates
+	 *            <code>true</code> if the file contains coordinates, <code>false</code> if it
+	 *            contains distances
+	 * @return the data or <code>null</code> if the files are incomplete
+	 */
+	public static AtomData read(File dataFile, File indexFile, boolean coordinates) throws IOException {
+		List<String> atomSpecs = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0)
+					atomSpecs.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+
+		long n = atomSpecs.size();
+		long expected = coordinates ? n * 3 : n * (n - 1) / 2;
+		RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			// A single mapping can't be larger than 2GB
+			if (channel.size() != expected * 4 || channel.size() > Integer.MAX_VALUE)
+				return null;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return new AtomData(atomSpecs, buffer.asFloatBuffer());
+		} finally {
+			// The mapping stays valid after the file is closed
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+/**
+ * A unit of work for a {@link ChimeraWorkerPool}, e.g. the residue network of one structure or
+ * one pair of an all-vs-all alignment. A job gets a worker to itself for as long as it runs, and
+ * the worker is reset afterwards, so jobs must not rely on anything earlier jobs opened.
+ */
+public interface ChimeraJob<T> {
+	/**
+	 * Do the work
+	 * 
+	 * @param worker
+	 *            the worker to send commands to
+	 * @return the result of the job
+	 */
+	public T run(ChimeraWorker worker) throws Exception;
+}
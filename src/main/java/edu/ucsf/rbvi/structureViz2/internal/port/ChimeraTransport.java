@@ -0,0 +1,40 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The channel used to send commands to a running Chimera and to get the replies back.
+ */
+public interface ChimeraTransport {
+
+	/**
+	 * Send commands to Chimera without waiting for the replies. Commands that are submitted
+	 * together are executed by Chimera in the given order.
+	 * 
+	 * @param commands
+	 *            the commands to send
+	 * @return the pending replies, in the same order as the commands
+	 * @throws IOException
+	 *             if the commands could not be sent
+	 */
+	public List<ReplyFuture> submit(List<String> commands) throws IOException;
+
+	/**
+	 * Send a command to Chimera whose reply is passed on to a stream while it is read.
+	 * 
+	 * @param command
+	 *            the command to send
+	 * @param stream
+	 *            the stream that gets the lines of the reply
+	 * @return the pending reply, which completes at the end of the reply
+	 * @throws IOException
+	 *             if the command could not be sent
+	 */
+	public ReplyFuture submit(String command, ReplyStream stream) throws IOException;
+
+	/**
+	 * Stop using this transport. Pending replies are completed with <code>null</code>.
+	 */
+	public void close();
+}
@@ -0,0 +1,194 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A headless Chimera process (<code>chimera --nogui --start ReadStdin</code>) used for batch
+ * jobs. Workers are independent of the interactive Chimera: they don't report model or selection
+ * changes, and nothing they do shows up in Cytoscape unless a job puts it there. A worker that
+ * doesn't answer a command within the timeout is stopped and can't be used anymore.
+ */
+public class ChimeraWorker {
+	private final int id;
+	private final Process process;
+	private final ListenerThreads listener;
+	private final ChimeraTransport transport;
+	private volatile long timeout = 0;
+	private volatile boolean hung = false;
+
+	private static Logger logger = LoggerFactory
+			.getLogger(edu.ucsf.rbvi.structureViz2.internal.port.ChimeraWorker.class);
+
+	/**
+	 * Start a new worker
+	 *
+	 * @param id
+	 *            the number of the worker in its pool
+	 * @param chimeraPath
+	 *            the path of the Chimera executable
+	 * @param stats
+	 *            the statistics to record the commands in
+	 */
+	public ChimeraWorker(int id, String chimeraPath, CommandStats stats) throws IOException {
+		this(id, new ProcessBuilder(chimeraPath, "--nogui", "--start", "ReadStdin").start(), stats);
+	}
+
+	/**
+	 * Use a running process as a worker, e.g. a {@link SessionReplay} or a mock Chimera in tests
+	 *
+	 * @param id
+	 *            the number of the worker in its pool
+	 * @param process
+	 *            the Chimera process
+	 * @param stats
+	 *            the statistics to record the commands in
+	 */
+	public ChimeraWorker(int id, Process process, CommandStats stats) {
+		this.id = id;
+		this.process = process;
+		// Workers don't listen to changes, so there is nothing to update
+		this.listener = new ListenerThreads(process, null, stats);
+		this.listener.setName("Chimera worker " + id);
+		this.listener.setDaemon(true);
+		this.listener.start();
+		this.transport = new PipeTransport(process, listener);
+		// Nobody reads the error output of a worker, but Chimera stops when the pipe is full
+		Thread errorReader = new Thread("Chimera worker " + id + " errors") {
+			public void run() {
+				readErrors();
+			}
+		};
+		errorReader.setDaemon(true);
+		errorReader.start();
+	}
+
+	private void readErrors() {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process
+					.getErrorStream()));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				logger.debug("Chimera worker " + id + ": " + line);
+			}
+		} catch (IOException e) {
+			// the process is gone
+		}
+	}
+
+	/**
+	 * Set the maximum time to wait for the reply to a command
+	 *
+	 * @param timeout
+	 *            the timeout in milliseconds, 0 to wait as long as it takes
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Get the number of this worker in its pool
+	 *
+	 * @return the number of the worker
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Check whether the Chimera process of this worker is still running
+	 *
+	 * @return <code>true</code> if the worker can take commands
+	 */
+	public boolean isAlive() {
+		if (hung)
+			return false;
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Send a command and wait for the reply
+	 *
+	 * @param command
+	 *            the command
+	 * @return the lines of the reply or <code>null</code> if Chimera did not answer
+	 */
+	public List<String> sendCommand(String command) throws IOException, InterruptedException {
+		return sendBatch(Collections.singletonList(command)).get(0);
+	}
+
+	/**
+	 * Send several commands back to back and wait for all replies
+	 *
+	 * @param commands
+	 *            the commands
+	 * @return one reply per command, <code>null</code> for commands Chimera did not answer
+	 * @throws IOException
+	 *             if the commands could not be sent or a reply did not arrive within the timeout
+	 */
+	public List<List<String>> sendBatch(List<String> commands) throws IOException,
+			InterruptedException {
+		List<ReplyFuture> pendingReplies = transport.submit(commands);
+		List<List<String>> replies = new ArrayList<List<String>>(pendingReplies.size());
+		for (ReplyFuture pendingReply : pendingReplies) {
+			try {
+				if (timeout > 0) {
+					replies.add(pendingReply.get(timeout, TimeUnit.MILLISECONDS));
+				} else {
+					replies.add(pendingReply.get());
+				}
+			} catch (ExecutionException e) {
+				replies.add(null);
+			} catch (TimeoutException e) {
+				// A worker that hangs is no use for later jobs either
+				hung = true;
+				for (ReplyFuture other : pendingReplies) {
+					other.cancel(true);
+				}
+				process.destroy();
+				throw new IOException("Chimera worker " + id + " did not answer "
+						+ pendingReply.getCommand() + " in " + timeout + " ms");
+			}
+		}
+		return replies;
+	}
+
+	/**
+	 * Close everything the last job opened, so that the next job starts from scratch
+	 *
+	 * @return the reply of Chimera or <code>null</code> if it did not answer
+	 */
+	public List<String> reset() throws IOException, InterruptedException {
+		return sendCommand("close session");
+	}
+
+	/**
+	 * Stop the Chimera process
+	 */
+	public void close() {
+		try {
+			if (isAlive()) {
+				transport.submit(Collections.singletonList("stop really"));
+			}
+		} catch (IOException e) {
+			// already gone
+		}
+		transport.close();
+		process.destroy();
+	}
+}
@@ -0,0 +1,208 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of headless Chimera workers that independent jobs are spread over, so that batch work
+ * like building the residue networks of many structures uses more than one core. Workers are
+ * started when the first job needs them and are reused for later jobs. A worker whose Chimera
+ * died is replaced by a new one.
+ */
+public class ChimeraWorkerPool {
+	private final List<String> chimeraPaths;
+	private final int size;
+	private final CommandStats stats;
+	private final ExecutorService executor;
+	private final BlockingQueue<ChimeraWorker> idleWorkers = new LinkedBlockingQueue<ChimeraWorker>();
+	private final List<ChimeraWorker> workers = new ArrayList<ChimeraWorker>();
+	private int nextId = 0;
+	private boolean closed = false;
+	private volatile long commandTimeout = 0;
+
+	private static Logger logger = LoggerFactory
+			.getLogger(edu.ucsf.rbvi.structureViz2.internal.port.ChimeraWorkerPool.class);
+
+	/**
+	 * Create a new pool. No Chimera is started until the first job is submitted.
+	 *
+	 * @param chimeraPaths
+	 *            the paths to try to start Chimera from
+	 * @param size
+	 *            the maximum number of workers
+	 */
+	public ChimeraWorkerPool(List<String> chimeraPaths, int size) {
+		this.chimeraPaths = new ArrayList<String>(chimeraPaths);
+		this.size = Math.max(1, size);
+		// the workers don't mix their commands into the statistics of the interactive Chimera
+		this.stats = new CommandStats();
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(this.size, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Chimera job " + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Get the maximum number of workers, i.e. the number of jobs that run at the same time
+	 *
+	 * @return the size of the pool
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Set the maximum time a worker may take to answer a command. A worker that takes longer is
+	 * stopped, the job fails and a new worker takes its place.
+	 *
+	 * @param timeout
+	 *            the timeout in milliseconds, 0 to wait as long as it takes
+	 */
+	public void setCommandTimeout(long timeout) {
+		this.commandTimeout = timeout;
+	}
+
+	/**
+	 * Get the statistics of the commands sent to the workers
+	 *
+	 * @return the statistics of all workers of this pool
+	 */
+	public CommandStats getCommandStats() {
+		return stats;
+	}
+
+	/**
+	 * Run a job on the next free worker
+	 *
+	 * @param job
+	 *            the job
+	 * @return the result of the job
+	 */
+	public <T> Future<T> submit(final ChimeraJob<T> job) {
+		return executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				ChimeraWorker worker = takeWorker();
+				try {
+					return job.run(worker);
+				} finally {
+					releaseWorker(worker);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run several jobs and wait for all of them
+	 *
+	 * @param jobs
+	 *            the jobs
+	 * @return the futures of the jobs in the same order, all of which are done
+	 */
+	public <T> List<Future<T>> invokeAll(List<? extends ChimeraJob<T>> jobs)
+			throws InterruptedException {
+		List<Future<T>> futures = new ArrayList<Future<T>>(jobs.size());
+		try {
+			for (ChimeraJob<T> job : jobs) {
+				futures.add(submit(job));
+			}
+			for (Future<T> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					// reported by the future itself
+				}
+			}
+			return futures;
+		} catch (InterruptedException e) {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+			throw e;
+		}
+	}
+
+	private ChimeraWorker takeWorker() throws IOException {
+		ChimeraWorker worker = idleWorkers.poll();
+		if (worker == null) {
+			// there are never more jobs running than the pool size, so we can start another one
+			worker = startWorker();
+		}
+		worker.setTimeout(commandTimeout);
+		return worker;
+	}
+
+	private void releaseWorker(ChimeraWorker worker) {
+		// Close whatever the job opened, a worker that can't do that is replaced
+		boolean reusable = false;
+		try {
+			reusable = worker.isAlive() && worker.reset() != null;
+		} catch (Exception e) {
+			logger.warn("Could not reset Chimera worker " + worker.getId() + ": " + e.getMessage());
+		}
+		synchronized (workers) {
+			if (!closed && reusable) {
+				idleWorkers.add(worker);
+				return;
+			}
+			workers.remove(worker);
+		}
+		worker.close();
+	}
+
+	private ChimeraWorker startWorker() throws IOException {
+		int id;
+		synchronized (workers) {
+			if (closed)
+				throw new IOException("Chimera worker pool has been closed");
+			id = nextId++;
+		}
+		IOException error = null;
+		for (String chimeraPath : chimeraPaths) {
+			try {
+				ChimeraWorker worker = new ChimeraWorker(id, chimeraPath, stats);
+				logger.info("Started Chimera worker " + id + " from " + chimeraPath);
+				synchronized (workers) {
+					workers.add(worker);
+				}
+				return worker;
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		throw error != null ? error : new IOException("No path to start Chimera from");
+	}
+
+	/**
+	 * Stop all workers. Running jobs are interrupted.
+	 */
+	public void close() {
+		List<ChimeraWorker> running;
+		synchronized (workers) {
+			closed = true;
+			running = new ArrayList<ChimeraWorker>(workers);
+			workers.clear();
+		}
+		executor.shutdownNow();
+		idleWorkers.clear();
+		for (ChimeraWorker worker : running) {
+			worker.close();
+		}
+	}
+}
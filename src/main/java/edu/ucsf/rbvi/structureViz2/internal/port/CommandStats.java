@@ -0,0 +1,250 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters for the traffic between Cytoscape and Chimera. For every command verb we keep the
+ * number of commands, the time Chimera needed to start answering, the time it took to read the
+ * reply and the size of the replies. Latencies are kept in histograms with power of two
+ * millisecond buckets, so recording a command takes constant time and memory. In addition we
+ * keep track of the number of commands waiting for a reply, the time callers spent waiting, and
+ * the time spent updating models and selections after Chimera notified us.
+ */
+public class CommandStats {
+	// Bucket i holds latencies below 2^i ms, the last bucket everything longer
+	static final int BUCKETS = 18;
+
+	private final Map<String, VerbStats> verbs = new TreeMap<String, VerbStats>();
+	private final Timer modelUpdates = new Timer();
+	private final Timer selectionUpdates = new Timer();
+	private final Timer callerWaits = new Timer();
+	private int queueDepth = 0;
+	private int maxQueueDepth = 0;
+	private long queueSamples = 0;
+	private long queueTotal = 0;
+	private long since = System.currentTimeMillis();
+
+	/**
+	 * Get the verb a command is counted under. This is the first word of the command, or the
+	 * first two words for <code>list</code> and <code>listen</code>, whose cost depends on what
+	 * is listed.
+	 *
+	 * @param command
+	 *            the command as sent to Chimera
+	 * @return the verb of the command
+	 */
+	public static String getVerb(String command) {
+		String[] words = command.trim().split("\\s+", 3);
+		if (words.length > 1 && (words[0].equals("list") || words[0].equals("listen"))) {
+			return words[0] + " " + words[1];
+		}
+		return words[0];
+	}
+
+	/**
+	 * Record the number of commands waiting for a reply at the time a command is sent
+	 *
+	 * @param depth
+	 *            the number of commands waiting for a reply
+	 */
+	public synchronized void queueDepth(int depth) {
+		queueDepth = depth;
+		if (depth > maxQueueDepth)
+			maxQueueDepth = depth;
+		queueSamples++;
+		queueTotal += depth;
+	}
+
+	/**
+	 * Record a command whose reply has been read completely.
+	 *
+	 * @param command
+	 *            the command as sent to Chimera
+	 * @param waitNanos
+	 *            the time between sending the command and the start of the reply
+	 * @param readNanos
+	 *            the time between the start and the end of the reply
+	 * @param lines
+	 *            the number of lines in the reply
+	 * @param bytes
+	 *            the number of bytes in the reply
+	 * @param failed
+	 *            <code>true</code> if Chimera did not answer the command
+	 */
+	public void commandCompleted(String command, long waitNanos, long readNanos, int lines,
+			long bytes, boolean failed) {
+		String verb = getVerb(command);
+		VerbStats stats;
+		synchronized (this) {
+			stats = verbs.get(verb);
+			if (stats == null) {
+				stats = new VerbStats();
+				verbs.put(verb, stats);
+			}
+		}
+		stats.add(waitNanos, readNanos, lines, bytes, failed);
+	}
+
+	/**
+	 * Record the time a caller waited for a reply
+	 *
+	 * @param nanos
+	 *            the time in nanoseconds
+	 */
+	public void callerWaited(long nanos) {
+		callerWaits.add(nanos);
+	}
+
+	/**
+	 * Record the time spent updating the models after Chimera reported a change
+	 *
+	 * @param nanos
+	 *            the time in nanoseconds
+	 */
+	public void modelsUpdated(long nanos) {
+		modelUpdates.add(nanos);
+	}
+
+	/**
+	 * Record the time spent updating the selection after Chimera reported a change
+	 *
+	 * @param nanos
+	 *            the time in nanoseconds
+	 */
+	public void selectionUpdated(long nanos) {
+		selectionUpdates.add(nanos);
+	}
+
+	/**
+	 * Forget everything recorded so far
+	 */
+	public synchronized void reset() {
+		verbs.clear();
+		modelUpdates.reset();
+		selectionUpdates.reset();
+		callerWaits.reset();
+		maxQueueDepth = queueDepth;
+		queueSamples = 0;
+		queueTotal = 0;
+		since = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get a human readable report of everything recorded so far
+	 *
+	 * @return the lines of the report
+	 */
+	public synchronized List<String> getReport() {
+		List<String> report = new ArrayList<String>();
+		double seconds = Math.max(1, System.currentTimeMillis() - since) / 1000.0;
+		long commands = 0;
+		for (VerbStats stats : verbs.values())
+			commands += stats.count;
+		report.add(String.format("%d commands in %.1f s (%.2f/s)", commands, seconds, commands
+				/ seconds));
+		report.add(String.format("%-20s %8s %6s %10s %10s %10s %10s %10s %10s %12s", "verb",
+				"count", "failed", "wait avg", "wait p95", "wait max", "read avg", "read max",
+				"lines", "bytes"));
+		for (Map.Entry<String, VerbStats> entry : verbs.entrySet()) {
+			VerbStats stats = entry.getValue();
+			synchronized (stats) {
+				report.add(String.format("%-20s %8d %6d %10s %10s %10s %10s %10s %10d %12d",
+						entry.getKey(), stats.count, stats.failed, millis(stats.wait.mean()),
+						"<" + stats.wait.percentile(0.95) + "ms", millis(stats.wait.max),
+						millis(stats.read.mean()), millis(stats.read.max), stats.lines,
+						stats.bytes));
+			}
+		}
+		report.add(String.format("queue depth: current %d, max %d, avg %.1f", queueDepth,
+				maxQueueDepth, queueTotal / (double) Math.max(1, queueSamples)));
+		report.add("waiting for replies: " + callerWaits);
+		report.add("model updates: " + modelUpdates);
+		report.add("selection updates: " + selectionUpdates);
+		return report;
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.1fms", nanos / 1000000.0);
+	}
+
+	private static int bucket(long nanos) {
+		long ms = nanos / 1000000;
+		int bucket = 64 - Long.numberOfLeadingZeros(ms);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	/**
+	 * Count, total, maximum and histogram of a duration
+	 */
+	static class Timer {
+		private final long[] histogram = new long[BUCKETS];
+		private long count = 0;
+		private long total = 0;
+		private long max = 0;
+
+		synchronized void add(long nanos) {
+			count++;
+			total += nanos;
+			if (nanos > max)
+				max = nanos;
+			histogram[bucket(nanos)]++;
+		}
+
+		synchronized void reset() {
+			count = 0;
+			total = 0;
+			max = 0;
+			for (int i = 0; i < histogram.length; i++)
+				histogram[i] = 0;
+		}
+
+		synchronized long mean() {
+			return total / Math.max(1, count);
+		}
+
+		/**
+		 * Get the upper bound in milliseconds of the bucket that contains the given fraction of
+		 * all durations
+		 */
+		synchronized long percentile(double fraction) {
+			long needed = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for (int i = 0; i < histogram.length - 1; i++) {
+				seen += histogram[i];
+				if (seen >= needed)
+					return 1L << i;
+			}
+			return 1L << (histogram.length - 1);
+		}
+
+		public synchronized String toString() {
+			return String.format("%d, total %s, avg %s, p95 <%dms, max %s", count, millis(total),
+					millis(mean()), percentile(0.95), millis(max));
+		}
+	}
+
+	static class VerbStats {
+		final Timer wait = new Timer();
+		final Timer read = new Timer();
+		long count = 0;
+		long failed = 0;
+		long lines = 0;
+		long bytes = 0;
+
+		synchronized void add(long waitNanos, long readNanos, int lines, long bytes,
+				boolean failed) {
+			count++;
+			if (failed) {
+				this.failed++;
+			} else {
+				wait.add(waitNanos);
+				read.add(readNanos);
+			}
+			this.lines += lines;
+			this.bytes += bytes;
+		}
+	}
+}
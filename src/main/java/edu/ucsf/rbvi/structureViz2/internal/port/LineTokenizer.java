@@ -0,0 +1,194 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+/**
+ * Splits a line of a Chimera reply into whitespace separated tokens without creating any
+ * objects. The tokens are kept as offsets into the line, and are only turned into Strings when
+ * asked for, so a parser can look at a line, and parse its numbers, before deciding whether it
+ * needs it at all. A tokenizer is meant to be reused for all lines of a reply by one thread.
+ */
+public class LineTokenizer {
+	// Exact powers of ten for the decimals we parse ourselves
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+			1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+
+	private CharSequence line = null;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int count = 0;
+
+	/**
+	 * Split a new line into tokens
+	 *
+	 * @param line
+	 *            the line to split
+	 * @return the number of tokens in the line
+	 */
+	public int reset(CharSequence line) {
+		this.line = line;
+		count = 0;
+		int length = line.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && Character.isWhitespace(line.charAt(i)))
+				i++;
+			if (i == length)
+				break;
+			int start = i;
+			while (i < length && !Character.isWhitespace(line.charAt(i)))
+				i++;
+			if (count == starts.length) {
+				int[] largerStarts = new int[count * 2];
+				int[] largerEnds = new int[count * 2];
+				System.arraycopy(starts, 0, largerStarts, 0, count);
+				System.arraycopy(ends, 0, largerEnds, 0, count);
+				starts = largerStarts;
+				ends = largerEnds;
+			}
+			starts[count] = start;
+			ends[count] = i;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of tokens in the current line
+	 *
+	 * @return the number of tokens
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * Get the offset of a token in the line
+	 *
+	 * @param token
+	 *            the index of the token
+	 * @return the offset of the first character of the token
+	 */
+	public int start(int token) {
+		return starts[token];
+	}
+
+	/**
+	 * Get the length of a token
+	 *
+	 * @param token
+	 *            the index of the token
+	 * @return the number of characters in the token
+	 */
+	public int length(int token) {
+		return ends[token] - starts[token];
+	}
+
+	/**
+	 * Get a token as a String
+	 *
+	 * @param token
+	 *            the index of the token
+	 * @return the token
+	 */
+	public String getString(int token) {
+		return line.subSequence(starts[token], ends[token]).toString();
+	}
+
+	/**
+	 * Compare a token to a String
+	 *
+	 * @param token
+	 *            the index of the token
+	 * @param value
+	 *            the String to compare with
+	 * @return <code>true</code> if the token consists of the same characters
+	 */
+	public boolean equals(int token, String value) {
+		int start = starts[token];
+		int length = ends[token] - start;
+		if (length != value.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(start + i) != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a token as a decimal integer
+	 *
+	 * @param token
+	 *            the index of the token
+	 * @return the value of the token
+	 * @throws NumberFormatException
+	 *             if the token is not an integer
+	 */
+	public int getInt(int token) {
+		int i = starts[token];
+		int end = ends[token];
+		boolean negative = false;
+		if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+			negative = line.charAt(i) == '-';
+			i++;
+		}
+		if (i == end)
+			throw new NumberFormatException("Not an integer: " + getString(token));
+		long value = 0;
+		for (; i < end; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9' || value > Integer.MAX_VALUE)
+				throw new NumberFormatException("Not an integer: " + getString(token));
+			value = value * 10 + (c - '0');
+		}
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)
+			throw new NumberFormatException("Not an integer: " + getString(token));
+		return (int) value;
+	}
+
+	/**
+	 * Parse a token as a floating point number. Plain decimals like the distances and overlaps
+	 * Chimera prints are parsed in place, anything else is handed to
+	 * {@link Double#parseDouble(String)}.
+	 *
+	 * @param token
+	 *            the index of the token
+	 * @return the value of the token
+	 * @throws NumberFormatException
+	 *             if the token is not a number
+	 */
+	public double getDouble(int token) {
+		int i = starts[token];
+		int end = ends[token];
+		boolean negative = false;
+		if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+			negative = line.charAt(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			char c = line.charAt(i);
+			if (c >= '0' && c <= '9') {
+				// more digits than a double holds exactly
+				if (++digits > 15)
+					return Double.parseDouble(getString(token));
+				mantissa = mantissa * 10 + (c - '0');
+				if (point)
+					scale++;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				// exponents, NaN, Infinity or garbage
+				return Double.parseDouble(getString(token));
+			}
+		}
+		if (digits == 0)
+			throw new NumberFormatException("Not a number: " + getString(token));
+		// at most 15 digits, so both the mantissa and the power of ten are exact
+		double value = mantissa / POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+}
@@ -1,13 +1,13 @@
 package edu.ucsf.rbvi.structureViz2.internal.port;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.cytoscape.work.TaskManager;
 import org.slf4j.Logger;
@@ -24,14 +24,19 @@ import edu.ucsf.rbvi.structureViz2.internal.tasks.ImportTrajectoryRINTaskFactory
  * Reply listener thread
  */
 public class ListenerThreads extends Thread {
+	static final String REST_SERVER_LINE = "REST server on host";
 	private InputStream readChan = null;
-	private BufferedReader lineReader = null;
+	private ReplyReader lineReader = null;
 	private Process chimera = null;
-	private Map<String, List<String>> replyLog = null;
+	private LinkedList<ReplyFuture> pendingReplies = null;
+	private long nextSequence = 0;
+	private volatile int restPort = -1;
+	private final CountDownLatch restPortRead = new CountDownLatch(1);
 	private Logger logger;
 	private StructureManager structureManager = null;
-	static boolean modelUpdaterRunning = false;
-	static boolean selectionUpdaterRunning = false;
+	private Updater updater = null;
+	private CommandStats stats = null;
+	private ReplyCache replyCache = null;
 
 	/**
 	 * Create a new listener thread to read the responses from Chimera
@@ -44,13 +49,47 @@ public class ListenerThreads extends Thread {
 	 *            a handle to the Chimera Object
 	 */
 	public ListenerThreads(Process chimera, StructureManager structureManager) {
+		this(chimera, structureManager, new CommandStats());
+	}
+
+	/**
+	 * Create a new listener thread to read the responses from Chimera
+	 * 
+	 * @param chimera
+	 *            a handle to the Chimera Process
+	 * @param structureManager
+	 *            the structure manager to update when Chimera reports changes
+	 * @param stats
+	 *            the statistics to record the commands and updates in
+	 */
+	public ListenerThreads(Process chimera, StructureManager structureManager, CommandStats stats) {
+		this(chimera, structureManager, stats, new ReplyCache());
+	}
+
+	/**
+	 * Create a new listener thread to read the responses from Chimera
+	 * 
+	 * @param chimera
+	 *            a handle to the Chimera Process
+	 * @param structureManager
+	 *            the structure manager to update when Chimera reports changes
+	 * @param stats
+	 *            the statistics to record the commands and updates in
+	 * @param replyCache
+	 *            the cached replies to invalidate when Chimera reports changes
+	 */
+	public ListenerThreads(Process chimera, StructureManager structureManager, CommandStats stats,
+			ReplyCache replyCache) {
 		this.chimera = chimera;
 		this.structureManager = structureManager;
-		replyLog = new HashMap<String, List<String>>();
-		// Get a line-oriented reader
+		this.stats = stats;
+		this.replyCache = replyCache;
+		pendingReplies = new LinkedList<ReplyFuture>();
+		// Get a line-oriented reader that works on the bytes Chimera sends
 		readChan = chimera.getInputStream();
-		lineReader = new BufferedReader(new InputStreamReader(readChan));
+		lineReader = new ReplyReader(readChan);
 		logger = LoggerFactory.getLogger(edu.ucsf.rbvi.structureViz2.internal.CyActivator.class);
+		updater = new Updater();
 	}
 
 	/**
@@ -58,42 +97,158 @@ public class ListenerThreads extends Thread {
 	 */
 	public void run() {
 		// System.out.println("ReplyLogListener running");
-		while (true) {
-			try {
-				chimeraRead();
-			} catch (IOException e) {
-				logger.warn("UCSF Chimera has exited: " + e.getMessage());
-				return;
+		updater.start();
+		try {
+			chimeraRead();
+		} catch (IOException e) {
+			logger.warn("UCSF Chimera has exited: " + e.getMessage());
+		}
+		// Nobody is going to answer anymore
+		failPendingReplies();
+		updater.shutdown();
+	}
+
+	/**
+	 * Register a command that is about to be sent to Chimera. Every command gets its own sequence
+	 * number, so identical commands sent by different threads each get their own reply. Chimera
+	 * reads its commands from a single pipe and answers them in order, so callers need to register
+	 * the command and write it to Chimera while holding the same lock, and before the reply can
+	 * arrive.
+	 * 
+	 * @param command
+	 *            the command that will be sent
+	 * @return the pending reply
+	 */
+	public ReplyFuture addPendingReply(String command) {
+		return addPendingReply(command, null);
+	}
+
+	/**
+	 * Register a command that is about to be sent to Chimera and whose reply should be passed on
+	 * line by line while it is read.
+	 * 
+	 * @param command
+	 *            the command that will be sent
+	 * @param stream
+	 *            the stream that gets the lines of the reply
+	 * @return the pending reply
+	 */
+	public ReplyFuture addPendingReply(String command, ReplyStream stream) {
+		synchronized (pendingReplies) {
+			ReplyFuture future = new ReplyFuture(nextSequence++, command, stream, stats);
+			pendingReplies.add(future);
+			stats.queueDepth(pendingReplies.size());
+			return future;
+		}
+	}
+
+	/**
+	 * Remove a pending reply, e.g. because the command could not be sent.
+	 * 
+	 * @param future
+	 *            the pending reply to remove
+	 */
+	public void removePendingReply(ReplyFuture future) {
+		synchronized (pendingReplies) {
+			pendingReplies.remove(future);
+		}
+		future.cancel(false);
+	}
+
+	/**
+	 * Find the oldest pending command with the same text as the reply Chimera started to send. An
+	 * echo that matches no pending command, e.g. because the command was sent from somewhere else,
+	 * doesn't affect the other pending commands: they keep waiting for their own reply until they
+	 * time out.
+	 */
+	private ReplyFuture takePendingReply(String command) {
+		ReplyFuture future = null;
+		synchronized (pendingReplies) {
+			Iterator<ReplyFuture> iter = pendingReplies.iterator();
+			while (iter.hasNext()) {
+				ReplyFuture pending = iter.next();
+				if (pending.getCommand().trim().equals(command.trim())) {
+					iter.remove();
+					future = pending;
+					break;
+				} else if (pending.isCancelled()) {
+					// the caller gave up waiting, a late reply is not matched anymore
+					iter.remove();
+				}
 			}
 		}
+		if (future == null) {
+			logger.warn("Got reply for a command we did not send: " + command);
+		}
+		return future;
 	}
 
-	public List<String> getResponse(String command) {
-		List<String> reply;
-		// System.out.println("getResponse: "+command);
-		while (!replyLog.containsKey(command)) {
-			try {
-				Thread.currentThread().sleep(100);
-			} catch (InterruptedException e) {
+	private void failPendingReplies() {
+		synchronized (pendingReplies) {
+			for (ReplyFuture future : pendingReplies) {
+				future.complete(null);
 			}
+			pendingReplies.clear();
 		}
+	}
+
+	/**
+	 * Get the statistics about the commands sent to Chimera and the updates they caused
+	 * 
+	 * @return the statistics
+	 */
+	public CommandStats getCommandStats() {
+		return stats;
+	}
 
-		synchronized (replyLog) {
-			reply = replyLog.get(command);
-			// System.out.println("getResponse ("+command+") = "+reply);
-			replyLog.remove(command);
+	/**
+	 * Handle a notification Chimera sent outside of a command reply. This is used for the lines read
+	 * from the Chimera output as well as for notifications that arrive through other transports.
+	 * 
+	 * @param line
+	 *            the line Chimera sent
+	 * @return <code>true</code> if the line was a notification
+	 */
+	public boolean handleNotification(String line) {
+		if (line.startsWith("ModelChanged: ")) {
+			replyCache.invalidate();
+			updater.modelsChanged();
+		} else if (line.startsWith("SelectionChanged: ")) {
+			replyCache.invalidateSelection();
+			updater.selectionChanged();
+		} else if (line.startsWith("Trajectory residue network info:")) {
+			(new NetworkUpdater(line)).start();
+		} else {
+			return false;
 		}
-		return reply;
+		return true;
+	}
+
+	/**
+	 * Wait until Chimera reports the port of its REST server. This is only used if Chimera has been
+	 * started with the RESTServer extension.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return the port or -1 if Chimera did not report a port in time
+	 */
+	public int getRestPort(long timeout, TimeUnit unit) throws InterruptedException {
+		if (!restPortRead.await(timeout, unit))
+			return -1;
+		return restPort;
 	}
 
-	public void clearResponse(String command) {
+	private void restServerRead(String line) {
+		// REST server on host 127.0.0.1 port 56789
+		String[] parts = line.trim().split("\\s+");
 		try {
-			Thread.currentThread().sleep(100);
-		} catch (InterruptedException e) {
+			restPort = Integer.parseInt(parts[parts.length - 1]);
+			restPortRead.countDown();
+		} catch (NumberFormatException e) {
+			logger.warn("Could not read REST server port from: " + line);
 		}
-		if (replyLog.containsKey(command))
-			replyLog.remove(command);
-		return;
 	}
 
 	/**
@@ -105,17 +260,14 @@ public class ListenerThreads extends Thread {
 		if (chimera == null)
 			return;
 
-		String line = null;
-		while ((line = lineReader.readLine()) != null) {
-			// System.out.println("From Chimera-->" + line);
-			if (line.startsWith("CMD")) {
-				chimeraCommandRead(line.substring(4));
-			} else if (line.startsWith("ModelChanged: ")) {
-				(new ModelUpdater()).start();
-			} else if (line.startsWith("SelectionChanged: ")) {
-				(new SelectionUpdater()).start();
-			} else if (line.startsWith("Trajectory residue network info:")) {
-				(new NetworkUpdater(line)).start();
+		while (lineReader.readLine()) {
+			// System.out.println("From Chimera-->" + lineReader.getLine());
+			if (lineReader.startsWith("CMD")) {
+				chimeraCommandRead(lineReader.substring(4));
+			} else if (lineReader.startsWith(REST_SERVER_LINE)) {
+				restServerRead(lineReader.getLine());
+			} else if (!lineReader.isEmpty()) {
+				handleNotification(lineReader.getLine());
 			}
 		}
 
@@ -127,82 +279,133 @@ public class ListenerThreads extends Thread {
 		// CMD command
 		// ........
 		// END
-		// We return the text in between
+		// We return the text in between, or pass it on line by line for streamed replies
+		ReplyFuture future = takePendingReply(command);
+		ReplyStream stream = null;
+		if (future != null) {
+			future.started();
+			stream = future.getStream();
+		}
 		List<String> reply = new ArrayList<String>();
 		boolean updateModels = false;
 		boolean updateSelection = false;
-		boolean importNetwork = false;
-		String line = null;
-
-		synchronized (replyLog) {
-			while ((line = lineReader.readLine()) != null) {
-				// System.out.println("From Chimera (" + command + ") -->" + line);
-				if (line.startsWith("CMD")) {
-					logger.warn("Got unexpected command from Chimera: " + line);
 
-				} else if (line.startsWith("END")) {
-					break;
+		// Only the lines that are part of the reply are turned into Strings
+		while (lineReader.readLine()) {
+			// System.out.println("From Chimera (" + command + ") -->" + lineReader.getLine());
+			if (lineReader.startsWith("CMD")) {
+				logger.warn("Got unexpected command from Chimera: " + lineReader.getLine());
+				continue;
+			} else if (lineReader.startsWith("END")) {
+				break;
+			}
+			// Cached replies are invalid right away, the updates can wait for the end of the reply
+			if (lineReader.startsWith("ModelChanged: ")) {
+				replyCache.invalidate();
+				updateModels = true;
+			} else if (lineReader.startsWith("SelectionChanged: ")) {
+				replyCache.invalidateSelection();
+				updateSelection = true;
+			} else if (lineReader.isEmpty()) {
+				continue;
+			} else {
+				if (future != null) {
+					future.lineRead(lineReader.bytesRead());
 				}
-				if (line.startsWith("ModelChanged: ")) {
-					updateModels = true;
-				} else if (line.startsWith("SelectionChanged: ")) {
-					updateSelection = true;
-				} else if (line.length() == 0) {
-					continue;
-				} else if (!line.startsWith("CMD")) {
-					reply.add(line);
-				} else if (line.startsWith("Trajectory residue network info:")) {
-					importNetwork = true;
+				if (stream != null) {
+					try {
+						stream.put(lineReader.getLine());
+					} catch (InterruptedException e) {
+						// keep reading so the next reply is not corrupted
+						stream.close();
+					}
+				} else {
+					reply.add(lineReader.getLine());
 				}
 			}
-			replyLog.put(command, reply);
+		}
+		if (future != null) {
+			future.complete(reply);
 		}
 		if (updateModels) {
-			(new ModelUpdater()).start();
+			updater.modelsChanged();
 		}
 		if (updateSelection) {
-			(new SelectionUpdater()).start();
-		}
-		if (importNetwork) {
-			(new NetworkUpdater(line)).start();
+			updater.selectionChanged();
 		}
 		return;
 	}
 
 	/**
-	 * Model updater thread
+	 * Updater thread. Runs the model and selection updates requested by Chimera one at a time.
+	 * Requests that arrive while an update is waiting are merged into it, and a request that
+	 * arrives while an update is running causes exactly one more update afterwards.
 	 */
-	class ModelUpdater extends Thread {
+	class Updater extends Thread {
+		private boolean modelsChanged = false;
+		private boolean selectionChanged = false;
+		private boolean stopped = false;
 
-		public ModelUpdater() {
+		public Updater() {
+			super("Chimera updater");
+			setDaemon(true);
 		}
 
-		public void run() {
-			if (ListenerThreads.modelUpdaterRunning) return;
-			ListenerThreads.modelUpdaterRunning = true;
-			structureManager.updateModels();
-			structureManager.modelChanged();
-			ListenerThreads.modelUpdaterRunning = false;
+		public synchronized void modelsChanged() {
+			modelsChanged = true;
+			notifyAll();
 		}
-	}
 
-	/**
-	 * Selection updater thread
-	 */
-	class SelectionUpdater extends Thread {
+		public synchronized void selectionChanged() {
+			selectionChanged = true;
+			notifyAll();
+		}
 
-		public SelectionUpdater() {
+		public synchronized void shutdown() {
+			stopped = true;
+			notifyAll();
 		}
 
 		public void run() {
-			if (ListenerThreads.selectionUpdaterRunning) return;
-			ListenerThreads.selectionUpdaterRunning = true;
-			try {
-				structureManager.chimeraSelectionChanged();
-			} catch (Exception e) {
-				logger.warn("Could not update selection", e);
+			while (true) {
+				boolean updateModels = false;
+				boolean updateSelection = false;
+				synchronized (this) {
+					while (!modelsChanged && !selectionChanged && !stopped) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (stopped)
+						return;
+					updateModels = modelsChanged;
+					updateSelection = selectionChanged;
+					modelsChanged = false;
+					selectionChanged = false;
+				}
+				// Models first, the selection refers to them
+				if (updateModels) {
+					long start = System.nanoTime();
+					try {
+						structureManager.updateChangedModels();
+						structureManager.modelChanged();
+					} catch (Exception e) {
+						logger.warn("Could not update models", e);
+					}
+					stats.modelsUpdated(System.nanoTime() - start);
+				}
+				if (updateSelection) {
+					long start = System.nanoTime();
+					try {
+						structureManager.chimeraSelectionChanged();
+					} catch (Exception e) {
+						logger.warn("Could not update selection", e);
+					}
+					stats.selectionUpdated(System.nanoTime() - start);
+				}
 			}
-			ListenerThreads.selectionUpdaterRunning = false;
 		}
 	}
 
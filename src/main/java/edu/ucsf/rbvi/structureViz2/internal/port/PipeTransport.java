@@ -0,0 +1,72 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Talks to Chimera through the stdin/stdout pipes of a Chimera process started with the ReadStdin
+ * extension. Commands are written to stdin and the replies are read by the {@link ListenerThreads}
+ * from stdout.
+ */
+public class PipeTransport implements ChimeraTransport {
+	private final Process chimera;
+	private final ListenerThreads listener;
+	private final Object sendLock = new Object();
+
+	/**
+	 * Create a new pipe transport
+	 * 
+	 * @param chimera
+	 *            the Chimera process
+	 * @param listener
+	 *            the thread that reads the replies from the Chimera process
+	 */
+	public PipeTransport(Process chimera, ListenerThreads listener) {
+		this.chimera = chimera;
+		this.listener = listener;
+	}
+
+	public List<ReplyFuture> submit(List<String> commands) throws IOException {
+		List<ReplyFuture> pendingReplies = new ArrayList<ReplyFuture>(commands.size());
+		// Register and write under the same lock so that the order of the
+		// pending replies matches the order in which Chimera sees the commands
+		synchronized (sendLock) {
+			try {
+				OutputStream out = chimera.getOutputStream();
+				for (String command : commands) {
+					pendingReplies.add(listener.addPendingReply(command));
+					// System.out.println("send command to chimera: " + command);
+					out.write(command.concat("\n").getBytes());
+				}
+				out.flush();
+			} catch (IOException e) {
+				for (ReplyFuture pendingReply : pendingReplies) {
+					listener.removePendingReply(pendingReply);
+				}
+				throw e;
+			}
+		}
+		return pendingReplies;
+	}
+
+	public ReplyFuture submit(String command, ReplyStream stream) throws IOException {
+		synchronized (sendLock) {
+			ReplyFuture pendingReply = listener.addPendingReply(command, stream);
+			try {
+				OutputStream out = chimera.getOutputStream();
+				out.write(command.concat("\n").getBytes());
+				out.flush();
+			} catch (IOException e) {
+				listener.removePendingReply(pendingReply);
+				throw e;
+			}
+			return pendingReply;
+		}
+	}
+
+	public void close() {
+		// The pending replies are failed by the listener once the process is gone
+	}
+}
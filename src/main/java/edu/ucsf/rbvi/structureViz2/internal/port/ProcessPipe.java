@@ -0,0 +1,84 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An in-memory pipe for the streams of a process that runs in the JVM, like
+ * {@link SessionReplay}. Unlike {@link java.io.PipedInputStream} it does not care which threads
+ * write to it, so any number of short-lived threads can send commands.
+ */
+class ProcessPipe {
+	private byte[] buffer = new byte[8192];
+	private int start = 0;
+	private int end = 0;
+	private boolean closed = false;
+
+	synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Pipe closed");
+		if (end + len > buffer.length) {
+			// compact and grow if needed
+			int size = end - start;
+			byte[] newBuffer = buffer;
+			if (size + len > buffer.length)
+				newBuffer = new byte[Math.max(buffer.length * 2, size + len)];
+			System.arraycopy(buffer, start, newBuffer, 0, size);
+			buffer = newBuffer;
+			start = 0;
+			end = size;
+		}
+		System.arraycopy(b, off, buffer, end, len);
+		end += len;
+		notifyAll();
+	}
+
+	synchronized int read(byte[] b, int off, int len) throws IOException {
+		while (start == end && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while reading");
+			}
+		}
+		if (start == end)
+			return -1;
+		int count = Math.min(len, end - start);
+		System.arraycopy(buffer, start, b, off, count);
+		start += count;
+		return count;
+	}
+
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	InputStream getInputStream() {
+		return new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return ProcessPipe.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				return ProcessPipe.this.read(b, off, len);
+			}
+		};
+	}
+
+	OutputStream getOutputStream() {
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				ProcessPipe.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				ProcessPipe.this.write(b, off, len);
+			}
+		};
+	}
+}
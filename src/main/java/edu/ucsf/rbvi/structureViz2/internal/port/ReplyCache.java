@@ -0,0 +1,150 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the replies to read-only Chimera queries like <code>list models</code> or
+ * <code>preset list</code>, so that asking the same question again does not cost a round trip.
+ * Replies are forgotten as soon as something may have changed them: all replies when Chimera
+ * reports a model change or when any other command is sent, and the replies to selection queries
+ * when Chimera reports a selection change. Since we only hear about these changes while we are
+ * listening to Chimera, the cache is only used while listening is switched on. Queries whose
+ * answer can change without any notification, like model colors, must not go through the cache.
+ *
+ * Every invalidation starts a new generation. A reply is only stored if no invalidation happened
+ * since the query was sent, so a reply that crossed a change notification is never cached.
+ */
+public class ReplyCache {
+	private final Map<String, List<String>> replies = new HashMap<String, List<String>>();
+	private final Map<String, List<String>> selectionReplies = new HashMap<String, List<String>>();
+	private long generation = 0;
+	private boolean enabled = false;
+	private long hits = 0;
+	private long misses = 0;
+	private long invalidations = 0;
+
+	/**
+	 * Check whether a command only reads information from Chimera. Commands that are not
+	 * read-only invalidate the cache when they are sent.
+	 *
+	 * @param command
+	 *            the command, possibly several commands separated by semicolons
+	 * @return <code>true</code> if none of the commands changes anything in Chimera
+	 */
+	public static boolean isReadOnly(String command) {
+		for (String part : command.split(";")) {
+			part = part.trim();
+			if (!(part.startsWith("list ") || part.startsWith("listen ")
+					|| part.equals("preset list"))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Switch the cache on or off. Switching it either way forgets all replies, since changes may
+	 * have gone unnoticed while it was off.
+	 *
+	 * @param enabled
+	 *            <code>true</code> to use the cache
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		invalidate();
+	}
+
+	/**
+	 * Get the current generation, to be passed to {@link #put(String, List, long, boolean)} when
+	 * the reply arrives
+	 *
+	 * @return the current generation
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Get a cached reply
+	 *
+	 * @param command
+	 *            the query
+	 * @return the reply or <code>null</code> if it has to be asked from Chimera
+	 */
+	public synchronized List<String> get(String command) {
+		List<String> reply = null;
+		if (enabled) {
+			reply = replies.get(command);
+			if (reply == null)
+				reply = selectionReplies.get(command);
+		}
+		if (reply != null)
+			hits++;
+		else
+			misses++;
+		return reply;
+	}
+
+	/**
+	 * Store a reply, unless the cache has been invalidated since the query was sent
+	 *
+	 * @param command
+	 *            the query
+	 * @param reply
+	 *            the reply Chimera sent
+	 * @param generation
+	 *            the generation at the time the query was sent
+	 * @param selection
+	 *            <code>true</code> if the reply depends on the current selection
+	 * @return the reply as stored, which can't be modified
+	 */
+	public synchronized List<String> put(String command, List<String> reply, long generation,
+			boolean selection) {
+		reply = Collections.unmodifiableList(reply);
+		if (enabled && generation == this.generation) {
+			if (selection)
+				selectionReplies.put(command, reply);
+			else
+				replies.put(command, reply);
+		}
+		return reply;
+	}
+
+	/**
+	 * Forget all replies, e.g. because models have been opened or closed
+	 */
+	public synchronized void invalidate() {
+		generation++;
+		invalidations++;
+		replies.clear();
+		selectionReplies.clear();
+	}
+
+	/**
+	 * Forget the replies that depend on the selection
+	 */
+	public synchronized void invalidateSelection() {
+		generation++;
+		invalidations++;
+		selectionReplies.clear();
+	}
+
+	/**
+	 * Reset the hit and miss counts
+	 */
+	public synchronized void resetStats() {
+		hits = 0;
+		misses = 0;
+		invalidations = 0;
+	}
+
+	public synchronized String toString() {
+		long queries = hits + misses;
+		return String.format("query cache: %d hits, %d misses (%.1f%% hits), %d invalidations, "
+				+ "%d replies cached", hits, misses, queries > 0 ? 100.0 * hits / queries : 0.0,
+				invalidations, replies.size() + selectionReplies.size());
+	}
+}
@@ -0,0 +1,176 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A pending reply to a command sent to Chimera. The listener thread completes the future as soon
+ * as it reads the END line of the corresponding CMD block, so callers wake up immediately instead
+ * of polling for the reply.
+ */
+public class ReplyFuture implements Future<List<String>> {
+	private final long sequence;
+	private final String command;
+	private final ReplyStream stream;
+	private final CommandStats stats;
+	private final long submitted = System.nanoTime();
+	private long started = 0;
+	private int lines = 0;
+	private long bytes = 0;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile List<String> reply = null;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Create a new pending reply
+	 *
+	 * @param sequence
+	 *            the sequence number of the command this reply belongs to
+	 * @param command
+	 *            the command this reply belongs to
+	 */
+	public ReplyFuture(long sequence, String command) {
+		this(sequence, command, null);
+	}
+
+	/**
+	 * Create a new pending reply whose lines are passed on to a stream while they are read. The
+	 * future itself completes with an empty list at the end of the reply.
+	 *
+	 * @param sequence
+	 *            the sequence number of the command this reply belongs to
+	 * @param command
+	 *            the command this reply belongs to
+	 * @param stream
+	 *            the stream that gets the lines of the reply or <code>null</code>
+	 */
+	public ReplyFuture(long sequence, String command, ReplyStream stream) {
+		this(sequence, command, stream, null);
+	}
+
+	/**
+	 * Create a new pending reply that reports its latency and size when it completes.
+	 *
+	 * @param sequence
+	 *            the sequence number of the command this reply belongs to
+	 * @param command
+	 *            the command this reply belongs to
+	 * @param stream
+	 *            the stream that gets the lines of the reply or <code>null</code>
+	 * @param stats
+	 *            the statistics to report to or <code>null</code>
+	 */
+	public ReplyFuture(long sequence, String command, ReplyStream stream, CommandStats stats) {
+		this.sequence = sequence;
+		this.command = command;
+		this.stream = stream;
+		this.stats = stats;
+	}
+
+	/**
+	 * Get the stream the lines of the reply are passed on to
+	 *
+	 * @return the stream or <code>null</code> if the reply is collected in a list
+	 */
+	public ReplyStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * Get the sequence number that identifies the command this reply belongs to. Sequence numbers
+	 * are unique for a Chimera session and increase in the order the commands are sent.
+	 *
+	 * @return the sequence number
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Get the command this reply belongs to
+	 *
+	 * @return the command as sent to Chimera
+	 */
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * Note that Chimera started to answer. Invoked by the thread reading the reply.
+	 */
+	void started() {
+		started = System.nanoTime();
+	}
+
+	/**
+	 * Count a line of the reply. Invoked by the thread reading the reply.
+	 *
+	 * @param length
+	 *            the number of bytes the line took up, including the line end
+	 */
+	void lineRead(int length) {
+		lines++;
+		bytes += length;
+	}
+
+	/**
+	 * Complete this reply. Invoked by the listener thread when the reply has been read, or with
+	 * <code>null</code> if Chimera went away before answering.
+	 *
+	 * @param reply
+	 *            the lines Chimera returned for the command
+	 */
+	void complete(List<String> reply) {
+		if (stats != null && !isDone()) {
+			long now = System.nanoTime();
+			long start = started > 0 ? started : now;
+			stats.commandCompleted(command, start - submitted, now - start, lines, bytes,
+					reply == null);
+		}
+		if (done.getCount() == 0)
+			return;
+		if (stream != null)
+			stream.finish();
+		this.reply = reply;
+		done.countDown();
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (done.getCount() == 0)
+			return false;
+		cancelled = true;
+		if (stream != null)
+			stream.close();
+		done.countDown();
+		return true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Wait for the reply.
+	 *
+	 * @return the lines in the Chimera reply or <code>null</code> if there was no reply
+	 */
+	public List<String> get() throws InterruptedException, ExecutionException {
+		done.await();
+		return reply;
+	}
+
+	public List<String> get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit))
+			throw new TimeoutException("No reply from Chimera for [" + sequence + "]: " + command);
+		return reply;
+	}
+}
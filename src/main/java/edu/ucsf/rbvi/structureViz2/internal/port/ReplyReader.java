@@ -0,0 +1,177 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the output of Chimera line by line straight from the bytes of the stream. Unlike a
+ * BufferedReader, the current line stays in the byte buffer of the reader until it is asked for
+ * as a String, so the protocol lines (CMD, END, notifications) and empty lines can be recognized
+ * without creating any objects, and lines that are needed are decoded in one step.
+ */
+public class ReplyReader {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream in;
+	private final Charset charset;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	// valid bytes in the buffer are [position, limit)
+	private int position = 0;
+	private int limit = 0;
+	// the current line is [lineStart, lineEnd), lineBytes includes the line end
+	private int lineStart = 0;
+	private int lineEnd = 0;
+	private int lineBytes = 0;
+	private String line = null;
+
+	/**
+	 * Create a new reader for the platform charset, as used by the Chimera pipes
+	 *
+	 * @param in
+	 *            the stream to read from
+	 */
+	public ReplyReader(InputStream in) {
+		this(in, Charset.defaultCharset());
+	}
+
+	/**
+	 * Create a new reader
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @param charset
+	 *            the charset the lines are decoded with
+	 */
+	public ReplyReader(InputStream in, Charset charset) {
+		this.in = in;
+		this.charset = charset;
+	}
+
+	/**
+	 * Advance to the next line
+	 *
+	 * @return <code>false</code> at the end of the stream
+	 */
+	public boolean readLine() throws IOException {
+		line = null;
+		int scanned = position;
+		while (true) {
+			for (int i = scanned; i < limit; i++) {
+				if (buffer[i] == '\n') {
+					setLine(i, i + 1);
+					return true;
+				}
+			}
+			// fill() may move the unread bytes, don't scan them again
+			int unread = limit - position;
+			if (!fill()) {
+				if (position == limit)
+					return false;
+				// last line without a line end
+				setLine(limit, limit);
+				return true;
+			}
+			scanned = position + unread;
+		}
+	}
+
+	private void setLine(int end, int next) {
+		lineStart = position;
+		lineEnd = end;
+		if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r')
+			lineEnd--;
+		lineBytes = next - position;
+		position = next;
+	}
+
+	/**
+	 * Read more bytes, moving the unread part to the front of the buffer or growing the buffer if
+	 * a single line does not fit
+	 */
+	private boolean fill() throws IOException {
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		} else if (limit == buffer.length) {
+			byte[] larger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, larger, 0, limit);
+			buffer = larger;
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read < 0)
+			return false;
+		limit += read;
+		return true;
+	}
+
+	/**
+	 * Get the length of the current line without the line end
+	 *
+	 * @return the number of bytes in the line
+	 */
+	public int length() {
+		return lineEnd - lineStart;
+	}
+
+	/**
+	 * Get the number of bytes the current line took up in the stream, including the line end
+	 *
+	 * @return the number of bytes read for the line
+	 */
+	public int bytesRead() {
+		return lineBytes;
+	}
+
+	/**
+	 * Check whether the current line is empty
+	 *
+	 * @return <code>true</code> if there is nothing but the line end
+	 */
+	public boolean isEmpty() {
+		return lineEnd == lineStart;
+	}
+
+	/**
+	 * Check whether the current line starts with an ASCII prefix, without decoding the line
+	 *
+	 * @param prefix
+	 *            the prefix
+	 * @return <code>true</code> if the line starts with the prefix
+	 */
+	public boolean startsWith(String prefix) {
+		int length = prefix.length();
+		if (length > lineEnd - lineStart)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (buffer[lineStart + i] != (byte) prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the current line
+	 *
+	 * @return the current line, decoded once and cached until the next line is read
+	 */
+	public String getLine() {
+		if (line == null)
+			line = new String(buffer, lineStart, lineEnd - lineStart, charset);
+		return line;
+	}
+
+	/**
+	 * Get the rest of the current line after some ASCII characters, e.g. the command after
+	 * <code>CMD </code>
+	 *
+	 * @param start
+	 *            the number of bytes to skip
+	 * @return the rest of the line
+	 */
+	public String substring(int start) {
+		start = Math.min(start, lineEnd - lineStart);
+		return new String(buffer, lineStart + start, lineEnd - lineStart - start, charset);
+	}
+}
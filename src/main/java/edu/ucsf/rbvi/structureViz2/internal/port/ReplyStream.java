@@ -0,0 +1,130 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The reply to a Chimera command, handed to the caller line by line while it is being read. Only
+ * a limited number of lines is buffered: if the caller falls behind, the thread reading the reply
+ * waits for it. Callers must therefore not wait for the reply to another Chimera command while
+ * they are consuming a stream, and should {@link #close()} a stream they don't read to the end.
+ */
+public class ReplyStream implements Iterator<String> {
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	// Marks the end of the reply in the queue
+	private static final String END = new String("END");
+
+	private static Logger logger = LoggerFactory
+			.getLogger(edu.ucsf.rbvi.structureViz2.internal.port.ReplyStream.class);
+
+	private final BlockingQueue<String> lines;
+	private volatile boolean closed = false;
+	private volatile long timeout = 0;
+	private String nextLine = null;
+
+	/**
+	 * Create a new reply stream that buffers up to {@link #DEFAULT_CAPACITY} lines
+	 */
+	public ReplyStream() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a new reply stream
+	 * 
+	 * @param capacity
+	 *            the number of lines that can be buffered before the reader has to wait
+	 */
+	public ReplyStream(int capacity) {
+		lines = new ArrayBlockingQueue<String>(capacity);
+	}
+
+	/**
+	 * Set the maximum time to wait for the next line. If no line arrives in time, the stream is
+	 * closed.
+	 * 
+	 * @param timeout
+	 *            the timeout in milliseconds, 0 to wait as long as it takes
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Add a line to the stream, waiting if the buffer is full. Lines added after the stream has
+	 * been closed are dropped.
+	 * 
+	 * @param line
+	 *            the line to add
+	 */
+	void put(String line) throws InterruptedException {
+		if (!closed)
+			lines.put(line);
+	}
+
+	/**
+	 * Mark the end of the reply
+	 */
+	void finish() {
+		try {
+			put(END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait for the next line of the reply.
+	 * 
+	 * @return <code>true</code> if there is another line, <code>false</code> at the end of the
+	 *         reply
+	 */
+	public boolean hasNext() {
+		if (nextLine == null && !closed) {
+			try {
+				if (timeout > 0) {
+					nextLine = lines.poll(timeout, TimeUnit.MILLISECONDS);
+					if (nextLine == null) {
+						logger.warn("No reply from Chimera in " + timeout + " ms, giving up");
+						close();
+					}
+				} else {
+					nextLine = lines.take();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+			}
+		}
+		return nextLine != null && nextLine != END;
+	}
+
+	public String next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		String line = nextLine;
+		nextLine = null;
+		return line;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stop reading the reply. The rest of the reply is skipped by the reader.
+	 */
+	public void close() {
+		closed = true;
+		lines.clear();
+		// wake up a consumer waiting for the next line
+		lines.offer(END);
+	}
+}
@@ -0,0 +1,211 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Talks to Chimera through the REST server extension (<code>chimera --start RESTServer</code>).
+ * Every thread that submits commands gets its own lane: its commands are sent one at a time, in
+ * the order they have been submitted, just like with the pipe transport. The lanes of different
+ * threads are served in parallel by a small pool of sender threads, each with its own keep-alive
+ * HTTP connection, so a long reply (say, to <code>findclash</code>) or a stalled
+ * {@link ReplyStream} only holds up the commands of the thread that sent it. Callers don't wait
+ * for the HTTP round trips.
+ */
+public class RestTransport implements ChimeraTransport {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The maximum number of requests that are sent to Chimera at the same time
+	 */
+	public static final int MAX_CONNECTIONS = 4;
+
+	private final String baseURL;
+	private final ListenerThreads listener;
+	private final CommandStats stats;
+	private final ThreadPoolExecutor senders;
+	// The lanes with commands that have not been sent yet, by submitting thread
+	private final Map<Thread, Lane> lanes = new HashMap<Thread, Lane>();
+	private long nextSequence = 0;
+	private volatile boolean closed = false;
+
+	private static Logger logger = LoggerFactory
+			.getLogger(edu.ucsf.rbvi.structureViz2.internal.port.RestTransport.class);
+
+	/**
+	 * Create a new REST transport
+	 * 
+	 * @param host
+	 *            the host the Chimera REST server listens on
+	 * @param port
+	 *            the port the Chimera REST server listens on
+	 * @param listener
+	 *            the listener that handles notifications that are part of a reply, or
+	 *            <code>null</code>
+	 */
+	public RestTransport(String host, int port, ListenerThreads listener) {
+		this.baseURL = "http://" + host + ":" + port + "/run?command=";
+		this.listener = listener;
+		this.stats = listener != null ? listener.getCommandStats() : null;
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.senders = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Chimera REST sender "
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.senders.allowCoreThreadTimeOut(true);
+	}
+
+	public List<ReplyFuture> submit(final List<String> commands) throws IOException {
+		final List<ReplyFuture> pendingReplies = new ArrayList<ReplyFuture>(commands.size());
+		// Number and queue the commands in one step, so that the sequence numbers match the
+		// order in which they are sent
+		synchronized (lanes) {
+			for (String command : commands) {
+				pendingReplies.add(new ReplyFuture(nextSequence++, command, null, stats));
+			}
+			execute(pendingReplies);
+		}
+		return pendingReplies;
+	}
+
+	public ReplyFuture submit(String command, ReplyStream stream) throws IOException {
+		synchronized (lanes) {
+			ReplyFuture pendingReply = new ReplyFuture(nextSequence++, command, stream, stats);
+			execute(Collections.singletonList(pendingReply));
+			return pendingReply;
+		}
+	}
+
+	// Must be called while holding the lock on lanes
+	private void execute(List<ReplyFuture> pendingReplies) throws IOException {
+		if (closed)
+			throw new IOException("REST transport has been closed");
+		Thread caller = Thread.currentThread();
+		Lane lane = lanes.get(caller);
+		if (lane != null) {
+			// The lane is being sent, it picks up the new commands when it gets to them
+			lane.queue.add(pendingReplies);
+			return;
+		}
+		lane = new Lane(caller);
+		lane.queue.add(pendingReplies);
+		try {
+			senders.execute(lane);
+		} catch (RejectedExecutionException e) {
+			throw new IOException("REST transport has been closed");
+		}
+		lanes.put(caller, lane);
+	}
+
+	public void close() {
+		// Let the senders drain the lanes: closed requests are completed without being sent
+		closed = true;
+		senders.shutdown();
+	}
+
+	/**
+	 * The commands of one submitting thread, sent one after the other
+	 */
+	private class Lane implements Runnable {
+		private final Thread caller;
+		// guarded by lanes
+		private final LinkedList<List<ReplyFuture>> queue = new LinkedList<List<ReplyFuture>>();
+
+		Lane(Thread caller) {
+			this.caller = caller;
+		}
+
+		public void run() {
+			while (true) {
+				List<ReplyFuture> pendingReplies;
+				synchronized (lanes) {
+					pendingReplies = queue.poll();
+					if (pendingReplies == null) {
+						lanes.remove(caller);
+						return;
+					}
+				}
+				for (ReplyFuture pendingReply : pendingReplies) {
+					send(pendingReply);
+				}
+			}
+		}
+	}
+
+	private void send(ReplyFuture pendingReply) {
+		if (pendingReply.isCancelled())
+			return;
+		if (closed) {
+			pendingReply.complete(null);
+			return;
+		}
+		try {
+			pendingReply.complete(sendCommand(pendingReply));
+		} catch (IOException e) {
+			logger.warn("Unable to execute command: " + pendingReply.getCommand() + " ("
+					+ e.getMessage() + ")");
+			pendingReply.complete(null);
+		}
+	}
+
+	private List<String> sendCommand(ReplyFuture pendingReply) throws IOException {
+		String command = pendingReply.getCommand();
+		ReplyStream stream = pendingReply.getStream();
+		URL url = new URL(baseURL + URLEncoder.encode(command, "UTF-8"));
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestProperty("Connection", "keep-alive");
+		List<String> reply = new ArrayList<String>();
+		InputStream in = connection.getInputStream();
+		pendingReply.started();
+		try {
+			// Read the reply while it is streamed, chunked or not
+			ReplyReader reader = new ReplyReader(in, UTF8);
+			while (reader.readLine()) {
+				if (reader.isEmpty())
+					continue;
+				String line = reader.getLine();
+				if (listener != null && listener.handleNotification(line))
+					continue;
+				pendingReply.lineRead(reader.bytesRead());
+				if (stream != null) {
+					try {
+						stream.put(line);
+					} catch (InterruptedException e) {
+						stream.close();
+						break;
+					}
+				} else {
+					reply.add(line);
+				}
+			}
+		} finally {
+			// Closing the stream after reading it completely keeps the connection alive
+			in.close();
+		}
+		return reply;
+	}
+}
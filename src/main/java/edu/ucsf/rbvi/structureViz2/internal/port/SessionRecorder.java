@@ -0,0 +1,264 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+/**
+ * Wraps a Chimera process and writes everything that goes through its pipes to a session log:
+ * the commands written to Chimera and every line Chimera sends back, i.e. the reply blocks and the
+ * notifications in between. Each entry is one line with the time in microseconds since the
+ * recording started, a direction and the text:
+ *
+ * <pre>
+ * 1520 &gt;list models
+ * 9874 &lt;CMD list models
+ * 9901 &lt;model id #0 type Molecule name 1crn
+ * 9910 &lt;END
+ * </pre>
+ *
+ * Chimera writes coordinates and distances to files instead of the pipe (see {@link AtomData}).
+ * These files are copied to the directory next to the log whose name ends with
+ * <code>.files</code>, and an entry after the reply gives their number:
+ *
+ * <pre>
+ * 10320 &lt;END
+ * 10320 +0
+ * </pre>
+ *
+ * The log can be fed back with {@link SessionReplay} to benchmark the plugin without Chimera.
+ * Only the pipes are recorded, so commands sent through the REST transport are missing.
+ */
+public class SessionRecorder extends Process {
+	static final String HEADER = "# structureViz Chimera session";
+	static final char SENT = '>';
+	static final char RECEIVED = '<';
+	static final char FILES = '+';
+
+	private final Process chimera;
+	private final Writer log;
+	private final File filesDirectory;
+	private final long startTime = System.nanoTime();
+	private final OutputStream stdin;
+	private final InputStream stdout;
+	private boolean closed = false;
+	// the command whose reply is being recorded and the number of saved data files
+	private String replyCommand = null;
+	private int savedFiles = 0;
+
+	/**
+	 * Start recording a Chimera process
+	 *
+	 * @param chimera
+	 *            the Chimera process
+	 * @param logFile
+	 *            the file to write the session to, an existing file is replaced
+	 */
+	public SessionRecorder(Process chimera, File logFile) throws IOException {
+		this.chimera = chimera;
+		this.filesDirectory = getFilesDirectory(logFile);
+		this.log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile), "UTF-8"));
+		this.log.write(HEADER + " recorded " + new Date() + "\n");
+		this.stdin = new RecordingOutputStream(chimera.getOutputStream());
+		this.stdout = new RecordingInputStream(chimera.getInputStream());
+	}
+
+	private synchronized void record(char direction, String line) {
+		if (closed)
+			return;
+		try {
+			log.write(Long.toString((System.nanoTime() - startTime) / 1000));
+			log.write(' ');
+			log.write(direction);
+			log.write(line);
+			log.write('\n');
+			if (direction == RECEIVED && line.startsWith("CMD ")) {
+				replyCommand = line.substring(4).trim();
+			} else if (direction == RECEIVED && line.equals("END")) {
+				// The plugin only reads the data files after it got the end of the reply
+				if (replyCommand != null)
+					saveDataFiles(replyCommand);
+				replyCommand = null;
+				// Make sure complete replies end up on disk even if Cytoscape is killed
+				log.flush();
+			}
+		} catch (IOException e) {
+			closed = true;
+		}
+	}
+
+	private void saveDataFiles(String command) throws IOException {
+		String[] script = AtomData.parseCommand(command);
+		if (script == null)
+			return;
+		File dataFile = new File(script[2]);
+		File indexFile = AtomData.getIndexFile(dataFile);
+		if (!dataFile.isFile() || !indexFile.isFile())
+			return;
+		try {
+			if (!filesDirectory.isDirectory() && !filesDirectory.mkdirs())
+				throw new IOException("Could not create " + filesDirectory);
+			copy(dataFile, getDataFile(filesDirectory, savedFiles));
+			copy(indexFile, AtomData.getIndexFile(getDataFile(filesDirectory, savedFiles)));
+		} catch (IOException e) {
+			// the reply itself is still recorded
+			return;
+		}
+		log.write(Long.toString((System.nanoTime() - startTime) / 1000));
+		log.write(' ');
+		log.write(FILES);
+		log.write(Integer.toString(savedFiles++));
+		log.write('\n');
+	}
+
+	static File getFilesDirectory(File logFile) {
+		return new File(logFile.getPath() + ".files");
+	}
+
+	static File getDataFile(File filesDirectory, int number) {
+		return new File(filesDirectory, number + ".bin");
+	}
+
+	static void copy(File from, File to) throws IOException {
+		Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private synchronized void closeLog() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			log.close();
+		} catch (IOException e) {
+			// nothing left to save
+		}
+	}
+
+	public OutputStream getOutputStream() {
+		return stdin;
+	}
+
+	public InputStream getInputStream() {
+		return stdout;
+	}
+
+	public InputStream getErrorStream() {
+		return chimera.getErrorStream();
+	}
+
+	public int waitFor() throws InterruptedException {
+		return chimera.waitFor();
+	}
+
+	public int exitValue() {
+		return chimera.exitValue();
+	}
+
+	public void destroy() {
+		chimera.destroy();
+		closeLog();
+	}
+
+	/**
+	 * Collects the bytes going through one of the pipes and records them line by line
+	 */
+	private class LineRecorder {
+		private final char direction;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		LineRecorder(char direction) {
+			this.direction = direction;
+		}
+
+		synchronized void add(byte[] b, int off, int len) {
+			int start = off;
+			for (int i = off; i < off + len; i++) {
+				if (b[i] == '\n') {
+					line.write(b, start, i - start);
+					flush();
+					start = i + 1;
+				}
+			}
+			line.write(b, start, off + len - start);
+		}
+
+		synchronized void flush() {
+			byte[] bytes = line.toByteArray();
+			int length = bytes.length;
+			if (length > 0 && bytes[length - 1] == '\r')
+				length--;
+			record(direction, new String(bytes, 0, length, Charset.defaultCharset()));
+			line.reset();
+		}
+	}
+
+	private class RecordingOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final LineRecorder recorder = new LineRecorder(SENT);
+
+		RecordingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			recorder.add(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	private class RecordingInputStream extends InputStream {
+		private final InputStream in;
+		private final LineRecorder recorder = new LineRecorder(RECEIVED);
+
+		RecordingInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0) {
+				recorder.add(b, off, read);
+			} else if (read < 0) {
+				// Chimera has exited
+				closeLog();
+			}
+			return read;
+		}
+
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		public void close() throws IOException {
+			in.close();
+			closeLog();
+		}
+	}
+}
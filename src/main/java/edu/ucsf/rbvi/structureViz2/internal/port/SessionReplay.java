@@ -0,0 +1,302 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plays back a session log written by {@link SessionRecorder} in place of a Chimera process. Every
+ * command the plugin sends is answered with the reply block recorded for the same command, and
+ * the notifications Chimera sent after that reply follow it. Commands are answered one after the
+ * other, like Chimera does, so the replay is deterministic and the time spent on the plugin side
+ * can be compared between runs.
+ *
+ * When the replay is paced, every reply takes as long as it took Chimera in the recorded session
+ * (not counting the time the command waited behind earlier ones), otherwise the replies are sent
+ * as fast as possible. Commands that are not in the log get an empty reply. Commands that make
+ * Chimera write data files are matched without the paths of the files, which differ from session
+ * to session, and the files saved with the log are copied to the paths of the replayed command.
+ */
+public class SessionReplay extends Process {
+	private final ProcessPipe stdin = new ProcessPipe();
+	private final ProcessPipe stdout = new ProcessPipe();
+	private final CountDownLatch exited = new CountDownLatch(1);
+	private final boolean paced;
+	private final File filesDirectory;
+	// the lines Chimera sent before the first reply, e.g. the REST port
+	private final List<RecordedLine> prologue = new ArrayList<RecordedLine>();
+	private final Map<String, LinkedList<RecordedReply>> replies = new HashMap<String, LinkedList<RecordedReply>>();
+	private Thread worker = null;
+	private volatile int replayed = 0;
+	private volatile int unmatched = 0;
+
+	private static Logger logger = LoggerFactory
+			.getLogger(edu.ucsf.rbvi.structureViz2.internal.port.SessionReplay.class);
+
+	/**
+	 * Read a session log
+	 *
+	 * @param logFile
+	 *            the log written by {@link SessionRecorder}
+	 * @param paced
+	 *            <code>true</code> to take as long as Chimera did for every reply
+	 */
+	public SessionReplay(File logFile, boolean paced) throws IOException {
+		this.paced = paced;
+		this.filesDirectory = SessionRecorder.getFilesDirectory(logFile);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+				logFile), "UTF-8"));
+		try {
+			read(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void read(BufferedReader reader) throws IOException {
+		Map<String, LinkedList<Long>> sendTimes = new HashMap<String, LinkedList<Long>>();
+		RecordedReply reply = null;
+		RecordedReply lastReply = null;
+		long lastReplyEnd = 0;
+		String line = null;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.startsWith("#") || line.length() == 0)
+				continue;
+			int space = line.indexOf(' ');
+			if (space < 0 || space + 1 >= line.length())
+				throw new IOException("Invalid session log entry in line " + lineNumber);
+			long time;
+			try {
+				time = Long.parseLong(line.substring(0, space));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid time in line " + lineNumber);
+			}
+			char direction = line.charAt(space + 1);
+			String text = line.substring(space + 2);
+			if (direction == SessionRecorder.SENT) {
+				String command = AtomData.normalizeCommand(text.trim());
+				LinkedList<Long> times = sendTimes.get(command);
+				if (times == null) {
+					times = new LinkedList<Long>();
+					sendTimes.put(command, times);
+				}
+				times.add(time);
+			} else if (direction == SessionRecorder.FILES) {
+				if (lastReply != null) {
+					try {
+						lastReply.savedFiles = Integer.parseInt(text.trim());
+					} catch (NumberFormatException e) {
+						throw new IOException("Invalid data file number in line " + lineNumber);
+					}
+				}
+			} else if (direction != SessionRecorder.RECEIVED) {
+				throw new IOException("Invalid direction in line " + lineNumber);
+			} else if (reply != null) {
+				reply.lines.add(new RecordedLine(text, time - reply.start));
+				if (text.equals("END")) {
+					lastReply = reply;
+					lastReplyEnd = time;
+					reply = null;
+				}
+			} else if (text.startsWith("CMD ")) {
+				String command = AtomData.normalizeCommand(text.substring(4).trim());
+				// Chimera started on the command when it was sent or when it was done with the
+				// previous one, whatever came last
+				long sent = lastReplyEnd;
+				LinkedList<Long> times = sendTimes.get(command);
+				if (times != null && !times.isEmpty())
+					sent = Math.max(sent, times.removeFirst());
+				reply = new RecordedReply(time, Math.max(0, time - sent));
+				reply.lines.add(new RecordedLine(text, 0));
+				LinkedList<RecordedReply> commandReplies = replies.get(command);
+				if (commandReplies == null) {
+					commandReplies = new LinkedList<RecordedReply>();
+					replies.put(command, commandReplies);
+				}
+				commandReplies.add(reply);
+			} else if (lastReply != null) {
+				// a notification, which follows the reply before it
+				lastReply.lines.add(new RecordedLine(text, time - lastReply.start));
+			} else {
+				prologue.add(new RecordedLine(text, time));
+			}
+		}
+	}
+
+	/**
+	 * Start answering the commands written to {@link #getOutputStream()}
+	 *
+	 * @return this replay
+	 */
+	public synchronized SessionReplay start() {
+		if (worker == null) {
+			worker = new Thread("Chimera session replay") {
+				public void run() {
+					try {
+						serve(stdin.getInputStream(), stdout.getOutputStream());
+					} catch (IOException e) {
+						// the pipes have been closed
+					} catch (InterruptedException e) {
+						// destroyed
+					}
+					logger.info("Replayed " + replayed + " Chimera commands, " + unmatched
+							+ " commands were not in the session log");
+					stdout.close();
+					exited.countDown();
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+		return this;
+	}
+
+	private void serve(InputStream in, OutputStream out) throws IOException, InterruptedException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		PrintWriter output = new PrintWriter(new OutputStreamWriter(out));
+		send(output, prologue, System.nanoTime());
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			String command = line.trim();
+			LinkedList<RecordedReply> commandReplies = replies.get(AtomData
+					.normalizeCommand(command));
+			RecordedReply reply = null;
+			if (commandReplies != null)
+				reply = commandReplies.poll();
+			if (reply != null) {
+				replayed++;
+				if (paced)
+					Thread.sleep(reply.serviceTime / 1000, (int) (reply.serviceTime % 1000) * 1000);
+				if (reply.savedFiles >= 0)
+					restoreDataFiles(command, reply.savedFiles);
+				// The echo has the paths of this command, not those of the recorded one
+				output.println("CMD " + command);
+				send(output, reply.lines.subList(1, reply.lines.size()), System.nanoTime());
+			} else if (command.startsWith("stop")) {
+				return;
+			} else {
+				unmatched++;
+				logger.warn("Command not in the Chimera session log: " + command);
+				output.println("CMD " + line);
+				output.println("END");
+				output.flush();
+			}
+		}
+	}
+
+	private void restoreDataFiles(String command, int number) {
+		File dataFile = new File(AtomData.parseCommand(command)[2]);
+		File savedFile = SessionRecorder.getDataFile(filesDirectory, number);
+		try {
+			SessionRecorder.copy(savedFile, dataFile);
+			SessionRecorder.copy(AtomData.getIndexFile(savedFile), AtomData.getIndexFile(dataFile));
+		} catch (IOException e) {
+			logger.warn("Could not restore the data files of " + command + ": " + e.getMessage());
+		}
+	}
+
+	private void send(PrintWriter output, List<RecordedLine> lines, long start)
+			throws InterruptedException {
+		for (RecordedLine line : lines) {
+			if (paced) {
+				long wait = line.offset * 1000 - (System.nanoTime() - start);
+				if (wait > 0) {
+					output.flush();
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+			}
+			output.println(line.text);
+		}
+		output.flush();
+	}
+
+	/**
+	 * Get the number of commands that have been answered from the log
+	 *
+	 * @return the number of replayed commands
+	 */
+	public int getReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * Get the number of commands that were not in the log
+	 *
+	 * @return the number of commands answered with an empty reply
+	 */
+	public int getUnmatched() {
+		return unmatched;
+	}
+
+	public OutputStream getOutputStream() {
+		return stdin.getOutputStream();
+	}
+
+	public InputStream getInputStream() {
+		return stdout.getInputStream();
+	}
+
+	public InputStream getErrorStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	public int waitFor() throws InterruptedException {
+		exited.await();
+		return 0;
+	}
+
+	public int exitValue() {
+		if (exited.getCount() > 0)
+			throw new IllegalThreadStateException("Chimera session replay is still running");
+		return 0;
+	}
+
+	public void destroy() {
+		stdin.close();
+		stdout.close();
+		exited.countDown();
+	}
+
+	private static class RecordedLine {
+		final String text;
+		// microseconds since the start of the reply
+		final long offset;
+
+		RecordedLine(String text, long offset) {
+			this.text = text;
+			this.offset = offset;
+		}
+	}
+
+	private static class RecordedReply {
+		// when Chimera started to answer and how long it worked on the command, in microseconds
+		final long start;
+		final long serviceTime;
+		final List<RecordedLine> lines = new ArrayList<RecordedLine>();
+		// the number of the data files saved with the log, if any
+		int savedFiles = -1;
+
+		RecordedReply(long start, long serviceTime) {
+			this.start = start;
+			this.serviceTime = serviceTime;
+		}
+	}
+}
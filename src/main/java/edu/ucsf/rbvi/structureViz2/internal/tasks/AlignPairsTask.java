@@ -0,0 +1,111 @@
+package edu.ucsf.rbvi.structureViz2.internal.tasks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ObservableTask;
+import org.cytoscape.work.ProvidesTitle;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.AlignManager;
+import edu.ucsf.rbvi.structureViz2.internal.model.CytoUtils;
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager;
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraWorkerPool;
+
+public class AlignPairsTask extends AbstractTask implements ObservableTask {
+
+	private StructureManager structureManager;
+
+	@Tunable(description = "Structures (PDB IDs or files)")
+	public String structures = "";
+
+	public Map<String, float[]> result;
+
+	private volatile List<Future<Map<String, float[]>>> futures = null;
+
+	public AlignPairsTask(StructureManager structureManager) {
+		this.structureManager = structureManager;
+		this.result = null;
+	}
+
+	@Override
+	public void run(TaskMonitor taskMonitor) throws Exception {
+		taskMonitor.setTitle("Aligning Structures in Chimera Workers");
+		List<String> structureList = new ArrayList<String>();
+		for (String structure : structures.split(",")) {
+			structure = structure.trim();
+			if (structure.length() > 0) {
+				structureList.add(structure);
+			}
+		}
+		if (structureList.size() < 2) {
+			taskMonitor.showMessage(TaskMonitor.Level.WARN, "Need at least two structures to align");
+			return;
+		}
+		ChimeraWorkerPool pool = structureManager.getChimeraManager().getWorkerPool();
+		taskMonitor.setStatusMessage("Aligning " + structureList.size() + " structures on "
+				+ pool.getSize() + " Chimera workers ...");
+		List<Future<Map<String, float[]>>> submitted = AlignManager.alignAllPairs(pool,
+				structureList);
+		futures = submitted;
+		Map<String, float[]> pairResults = new HashMap<String, float[]>();
+		for (int i = 0; i < submitted.size(); i++) {
+			if (cancelled) {
+				return;
+			}
+			taskMonitor.setProgress((double) i / submitted.size());
+			try {
+				pairResults.putAll(submitted.get(i).get());
+			} catch (ExecutionException e) {
+				taskMonitor.showMessage(TaskMonitor.Level.WARN, "Could not align some structures: "
+						+ e.getCause().getMessage());
+			}
+		}
+		// Report the pairs in the order of the structures
+		result = new LinkedHashMap<String, float[]>();
+		for (int i = 0; i < structureList.size(); i++) {
+			for (int j = i + 1; j < structureList.size(); j++) {
+				String pair = structureList.get(i) + "\t" + structureList.get(j);
+				if (pairResults.containsKey(pair)) {
+					result.put(pair, pairResults.get(pair));
+				}
+			}
+		}
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		List<Future<Map<String, float[]>>> submitted = futures;
+		if (submitted != null) {
+			for (Future<Map<String, float[]>> future : submitted) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	public Object getResults(Class expectedClass) {
+		if (expectedClass.equals(String.class) && result != null) {
+			List<String> lines = new ArrayList<String>();
+			for (Map.Entry<String, float[]> pair : result.entrySet()) {
+				float[] values = pair.getValue();
+				lines.add(pair.getKey() + "\t" + values[AlignManager.RMSD] + "\t"
+						+ values[AlignManager.SCORE] + "\t" + (int) values[AlignManager.PAIRS]);
+			}
+			return CytoUtils.join(lines, "\n");
+		}
+		return result;
+	}
+
+	@ProvidesTitle
+	public String getTitle() {
+		return "Align structures in Chimera workers";
+	}
+}
@@ -22,6 +22,7 @@ public class AlignStructuresTask extends AbstractTask {
 	private StructureManager structureManager;
 	private CyNetworkView netView;
 	private Map<String, CyIdentifiable> availableChimObjMap;
+	private volatile Thread taskThread = null;
 
 	@Tunable(description = "Structures to open for aligning")
 	public ListMultipleSelection<String> structurePairs = new ListMultipleSelection<String>("");
@@ -51,8 +52,17 @@ public class AlignStructuresTask extends AbstractTask {
 				structurePairs.getSelectedValues(), availableChimObjMap);
 		// open structures
 		taskMonitor.setStatusMessage("Opening structures ...");
-		if (!structureManager.openStructures(netView.getModel(), selectedChimeraObjNames,
-				ModelType.PDB_MODEL)) {
+		taskThread = Thread.currentThread();
+		boolean opened = false;
+		try {
+			opened = structureManager.openStructures(netView.getModel(), selectedChimeraObjNames,
+					ModelType.PDB_MODEL);
+		} finally {
+			taskThread = null;
+		}
+		if (cancelled) {
+			taskMonitor.setStatusMessage("Task cancelled.");
+		} else if (!opened) {
 			taskMonitor.setStatusMessage("Structures could not be opened. Task aborted.");
 		} else if (!structureManager.getChimeraManager().isChimeraLaunched()) {
 			taskMonitor.setStatusMessage("Chimera could not be launched.");
@@ -63,6 +73,13 @@ public class AlignStructuresTask extends AbstractTask {
 		}
 	}
 
+	@Override
+	public void cancel() {
+		super.cancel();
+		// Stop waiting for Chimera
+		structureManager.getChimeraManager().cancelCommands(taskThread);
+	}
+
 	private void initTunables() {
 		List<String> availableObjs = new ArrayList<String>(availableChimObjMap.keySet());
 		if (availableObjs.size() > 0) {
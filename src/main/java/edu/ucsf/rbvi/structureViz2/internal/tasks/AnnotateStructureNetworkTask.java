@@ -1,6 +1,8 @@
 package edu.ucsf.rbvi.structureViz2.internal.tasks;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.cytoscape.application.CyApplicationManager;
 import org.cytoscape.model.CyNetwork;
@@ -18,6 +20,7 @@ public class AnnotateStructureNetworkTask extends AbstractTask {
 	private StructureManager structureManager;
 	private RINManager rinManager;
 	private CyNetwork net;
+	private volatile Thread taskThread = null;
 
 	@Tunable(description = "Available residue attributes")
 	public ListMultipleSelection<String> residueAttributes = new ListMultipleSelection<String>("");
@@ -60,22 +63,42 @@ public class AnnotateStructureNetworkTask extends AbstractTask {
 		if (residueAttributes != null && residueAttributes.getSelectedValues().size() > 0) {
 			// System.out.println("Getting attribute data from Chimera ...");
 			taskMonitor.setStatusMessage("Getting attribute data from Chimera ...");
+			// Plain residue attributes are retrieved together in one batch
+			Map<String, String> attributes = new LinkedHashMap<String, String>();
+			taskThread = Thread.currentThread();
 			for (String resAttr : residueAttributes.getSelectedValues()) {
+				if (cancelled) {
+					return;
+				}
 				// System.out.println("Getting data for attribute " + resAttr + " ...");
-				taskMonitor.setStatusMessage("Getting data for attribute " + resAttr + " ...");
 				if (resAttr.equals("SecondaryStructure")) {
+					taskMonitor.setStatusMessage("Getting data for attribute " + resAttr + " ...");
 					rinManager.annotateSS(net);
 				} else if (resAttr.equals("Coordinates")) {
+					taskMonitor.setStatusMessage("Getting data for attribute " + resAttr + " ...");
 					rinManager.annotateCoord(net, "resCoord");
 				} else {
-					rinManager.annotate(net, resAttr, resAttr);
+					attributes.put(resAttr, resAttr);
 				}
 			}
+			if (attributes.size() > 0 && !cancelled) {
+				taskMonitor.setStatusMessage("Getting data for attributes " + attributes.keySet()
+						+ " ...");
+				rinManager.annotate(net, attributes);
+			}
 		} else {
 			// System.out.println("No input found, aborting...");
 			taskMonitor.setStatusMessage("No input found, aborting...");
 		}
 		} catch (Exception e) { e.printStackTrace(); }
+		finally { taskThread = null; }
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		// Stop waiting for Chimera
+		structureManager.getChimeraManager().cancelCommands(taskThread);
 	}
 
 	// TODO: [Optional] How could we return annotations?
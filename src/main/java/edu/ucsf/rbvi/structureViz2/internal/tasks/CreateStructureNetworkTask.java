@@ -117,6 +117,7 @@ public class CreateStructureNetworkTask extends AbstractTask {
 	private StructureManager structureManager;
 	private ChimeraManager chimeraManager;
 	private RINManager rinManager;
+	private volatile Thread taskThread = null;
 
 	public CreateStructureNetworkTask(StructureManager structureManager) {
 		this.structureManager = structureManager;
@@ -156,6 +157,23 @@ public class CreateStructureNetworkTask extends AbstractTask {
 	public void run(TaskMonitor taskMonitor) throws Exception {
 		taskMonitor.setTitle("Creating Residue Interaction Network");
 		taskMonitor.setStatusMessage("Creating network ...");
+		taskThread = Thread.currentThread();
+		try {
+			createNetwork(taskMonitor);
+		} finally {
+			taskThread = null;
+			chimeraManager.startListening();
+		}
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		// Stop waiting for Chimera
+		chimeraManager.cancelCommands(taskThread);
+	}
+
+	private void createNetwork(TaskMonitor taskMonitor) {
 		// Save selected nodes indexed by their name
 		Map<String, CyNode> nodeMap = new HashMap<String, CyNode>();
 		chimeraManager.stopListening();
@@ -169,39 +187,60 @@ public class CreateStructureNetworkTask extends AbstractTask {
 			taskMonitor.setStatusMessage("Adding hydrogens ...");
 			chimeraManager.sendChimeraCommand("addh hbond true", false);
 		}
+		if (cancelled) {
+			return;
+		}
 		if (includeContacts) {
 			taskMonitor.setStatusMessage("Getting contacts ...");
 			chimeraManager.stopListening();
 			rinManager.includeContacts(rin, nodeMap, getIncludeInteractions(), ignoreWater,
 					removeRedContacts, overlapCutoffContact, hbondAllowanceContact, bondSepContact);
 		}
+		if (cancelled) {
+			return;
+		}
 		if (includeClashes) {
 			taskMonitor.setStatusMessage("Getting clashes ...");
 			chimeraManager.stopListening();
 			rinManager.includeClashes(rin, nodeMap, getIncludeInteractions(), ignoreWater,
 					removeRedContacts, overlapCutoffClash, hbondAllowanceClash, bondSepClash);
 		}
+		if (cancelled) {
+			return;
+		}
 		if (includeHBonds) {
 			taskMonitor.setStatusMessage("Getting hydrogen bonds ...");
 			chimeraManager.stopListening();
 			rinManager.includeHBonds(rin, nodeMap, getIncludeInteractions(), ignoreWater,
 					removeRedContacts, addHydrogens, relaxHBonds, angleTolerance, distTolerance);
 		}
+		if (cancelled) {
+			return;
+		}
 		if (includeConnectivity) {
 			taskMonitor.setStatusMessage("Getting connectivity ...");
 			chimeraManager.stopListening();
 			rinManager.includeConnectivity(rin);
 		}
+		if (cancelled) {
+			return;
+		}
 		if (includeDistance) {
 			taskMonitor.setStatusMessage("Getting distances ...");
 			rinManager.includeDistances(rin, nodeMap, getIncludeInteractions(), ignoreWater,
 					removeRedContacts, distCutoff);
 		}
+		if (cancelled) {
+			return;
+		}
 		if (includeCombiEdges) {
 			taskMonitor.setStatusMessage("Adding combined edges ...");
 			rinManager.addCombinedEdges(rin);
 		}
 
+		if (cancelled) {
+			return;
+		}
 		taskMonitor.setStatusMessage("Registering network...");
 		// register network
 		CyNetworkManager cyNetworkManager = (CyNetworkManager) structureManager
@@ -213,7 +252,6 @@ public class CreateStructureNetworkTask extends AbstractTask {
 		// Activate structureViz for all of our nodes
 		structureManager.addStructureNetwork(rin);
 		finalizeNetwork(taskMonitor, rin);
-		chimeraManager.startListening();
 	}
 
 	private String getRINName() {
@@ -0,0 +1,82 @@
+package edu.ucsf.rbvi.structureViz2.internal.tasks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ObservableTask;
+import org.cytoscape.work.ProvidesTitle;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager;
+
+public class PreindexStructuresTask extends AbstractTask implements ObservableTask {
+
+	private StructureManager structureManager;
+
+	@Tunable(description = "Structure files or directories with structure files (comma separated)")
+	public String files = "";
+
+	@Tunable(description = "Number of files to read at the same time")
+	public int threads = Runtime.getRuntime().availableProcessors();
+
+	public String result;
+
+	public PreindexStructuresTask(StructureManager structureManager) {
+		this.structureManager = structureManager;
+		this.result = null;
+	}
+
+	@Override
+	public void run(TaskMonitor taskMonitor) throws Exception {
+		taskMonitor.setTitle("Indexing Structure Files");
+		List<File> fileList = new ArrayList<File>();
+		for (String path : files.split(",")) {
+			path = path.trim();
+			if (path.length() > 0) {
+				addStructureFiles(new File(path), fileList);
+			}
+		}
+		if (fileList.size() == 0) {
+			result = "No structure files found";
+			return;
+		}
+		taskMonitor.setStatusMessage("Reading " + fileList.size() + " structure files ...");
+		int stored = structureManager.getChimeraManager().getModelInfoCache()
+				.preindex(fileList, Math.max(1, threads));
+		result = "Indexed " + stored + " of " + fileList.size() + " structure files";
+		taskMonitor.setStatusMessage(result);
+	}
+
+	private void addStructureFiles(File file, List<File> fileList) {
+		if (!file.isDirectory()) {
+			fileList.add(file);
+			return;
+		}
+		File[] children = file.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			String name = child.getName().toLowerCase();
+			if (child.isFile()
+					&& (name.endsWith(".pdb") || name.endsWith(".ent") || name.endsWith(".cif") || name
+							.endsWith(".mmcif"))) {
+				fileList.add(child);
+			}
+		}
+	}
+
+	public Object getResults(Class expectedClass) {
+		return result;
+	}
+
+	@ProvidesTitle
+	public String getTitle() {
+		return "Index structure files";
+	}
+}
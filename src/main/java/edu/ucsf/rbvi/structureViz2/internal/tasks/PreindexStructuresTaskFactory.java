@@ -0,0 +1,21 @@
+package edu.ucsf.rbvi.structureViz2.internal.tasks;
+
+import org.cytoscape.work.AbstractTaskFactory;
+import org.cytoscape.work.TaskFactory;
+import org.cytoscape.work.TaskIterator;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager;
+
+public class PreindexStructuresTaskFactory extends AbstractTaskFactory implements TaskFactory {
+
+	private StructureManager structureManager;
+
+	public PreindexStructuresTaskFactory(StructureManager structureManager) {
+		this.structureManager = structureManager;
+	}
+
+	public TaskIterator createTaskIterator() {
+		return new TaskIterator(new PreindexStructuresTask(structureManager));
+	}
+
+}
@@ -0,0 +1,131 @@
+package edu.ucsf.rbvi.structureViz2.internal.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ObservableTask;
+import org.cytoscape.work.ProvidesTitle;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.CytoUtils;
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager;
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraJob;
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraWorker;
+import edu.ucsf.rbvi.structureViz2.internal.port.ChimeraWorkerPool;
+
+public class RunParallelTask extends AbstractTask implements ObservableTask {
+
+	private StructureManager structureManager;
+
+	@Tunable(description = "Structures (PDB IDs or files)")
+	public String structures = "";
+
+	@Tunable(description = "Commands to run on each structure")
+	public String commands = "";
+
+	@Tunable(description = "Command separator")
+	public String separator = ";";
+
+	public List<String> structureList;
+	public List<List<String>> result;
+
+	private volatile List<Future<List<String>>> futures = null;
+
+	public RunParallelTask(StructureManager structureManager) {
+		this.structureManager = structureManager;
+		this.structureList = null;
+		this.result = null;
+	}
+
+	@Override
+	public void run(TaskMonitor taskMonitor) throws Exception {
+		taskMonitor.setTitle("Running Commands in Chimera Workers");
+		structureList = split(structures, ",");
+		final List<String> commandList = split(commands, separator);
+		if (structureList.size() == 0) {
+			return;
+		}
+		ChimeraWorkerPool pool = structureManager.getChimeraManager().getWorkerPool();
+		taskMonitor.setStatusMessage("Running " + structureList.size() + " jobs on "
+				+ pool.getSize() + " Chimera workers ...");
+		// One job per structure: open it, then run the commands on it
+		List<Future<List<String>>> submitted = new ArrayList<Future<List<String>>>();
+		futures = submitted;
+		for (final String structure : structureList) {
+			submitted.add(pool.submit(new ChimeraJob<List<String>>() {
+				public List<String> run(ChimeraWorker worker) throws Exception {
+					List<String> batch = new ArrayList<String>();
+					batch.add("open " + structure);
+					batch.addAll(commandList);
+					List<String> output = new ArrayList<String>();
+					for (List<String> reply : worker.sendBatch(batch)) {
+						if (reply != null) {
+							output.addAll(reply);
+						}
+					}
+					return output;
+				}
+			}));
+		}
+		result = new ArrayList<List<String>>();
+		for (int i = 0; i < submitted.size(); i++) {
+			if (cancelled) {
+				return;
+			}
+			taskMonitor.setProgress((double) i / submitted.size());
+			try {
+				result.add(submitted.get(i).get());
+			} catch (ExecutionException e) {
+				taskMonitor.showMessage(TaskMonitor.Level.WARN, "Could not run commands on "
+						+ structureList.get(i) + ": " + e.getCause().getMessage());
+				result.add(null);
+			}
+		}
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		List<Future<List<String>>> submitted = futures;
+		if (submitted != null) {
+			for (Future<List<String>> future : submitted) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private List<String> split(String list, String delimiter) {
+		List<String> items = new ArrayList<String>();
+		for (String item : list.split(Pattern.quote(delimiter))) {
+			item = item.trim();
+			if (item.length() > 0) {
+				items.add(item);
+			}
+		}
+		return items;
+	}
+
+	public Object getResults(Class expectedClass) {
+		if (expectedClass.equals(String.class) && result != null) {
+			List<String> lines = new ArrayList<String>();
+			for (int i = 0; i < result.size(); i++) {
+				lines.add(structureList.get(i));
+				if (result.get(i) != null) {
+					lines.addAll(result.get(i));
+				}
+			}
+			return CytoUtils.join(lines, "\n");
+		}
+		return result;
+	}
+
+	@ProvidesTitle
+	public String getTitle() {
+		return "Run commands in Chimera workers";
+	}
+}
@@ -0,0 +1,69 @@
+package edu.ucsf.rbvi.structureViz2.internal.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ObservableTask;
+import org.cytoscape.work.ProvidesTitle;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.CytoUtils;
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager;
+
+public class SendBatchTask extends AbstractTask implements ObservableTask {
+
+	private StructureManager structureManager;
+
+	@Tunable(description = "Commands")
+	public String commands = "";
+
+	@Tunable(description = "Command separator")
+	public String separator = ";";
+
+	public List<String> commandList;
+	public List<List<String>> result;
+
+	public SendBatchTask(StructureManager structureManager) {
+		this.structureManager = structureManager;
+		this.commandList = null;
+		this.result = null;
+	}
+
+	@Override
+	public void run(TaskMonitor taskMonitor) throws Exception {
+		taskMonitor.setTitle("Sending Commands to Chimera");
+		commandList = new ArrayList<String>();
+		for (String command : commands.split(Pattern.quote(separator))) {
+			command = command.trim();
+			if (command.length() > 0) {
+				commandList.add(command);
+			}
+		}
+		if (commandList.size() == 0) {
+			return;
+		}
+		result = structureManager.getChimeraManager().sendChimeraBatch(commandList);
+	}
+
+	public Object getResults(Class expectedClass) {
+		if (expectedClass.equals(String.class) && result != null) {
+			List<String> lines = new ArrayList<String>();
+			for (int i = 0; i < commandList.size(); i++) {
+				lines.add(commandList.get(i));
+				if (result.get(i) != null) {
+					lines.addAll(result.get(i));
+				}
+			}
+			return CytoUtils.join(lines, "\n");
+		}
+		return result;
+	}
+
+	@ProvidesTitle
+	public String getTitle() {
+		return "Send commands to Chimera";
+	}
+}
@@ -0,0 +1,70 @@
+package edu.ucsf.rbvi.structureViz2.internal.tasks;
+
+import java.util.List;
+
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ObservableTask;
+import org.cytoscape.work.ProvidesTitle;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.CytoUtils;
+import edu.ucsf.rbvi.structureViz2.internal.model.ModelInfoCache;
+import edu.ucsf.rbvi.structureViz2.internal.model.SpecCache;
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager;
+import edu.ucsf.rbvi.structureViz2.internal.port.CommandStats;
+import edu.ucsf.rbvi.structureViz2.internal.port.ReplyCache;
+
+public class StatsTask extends AbstractTask implements ObservableTask {
+
+	private StructureManager structureManager;
+
+	@Tunable(description = "Reset the statistics after reporting them")
+	public boolean reset = false;
+
+	public List<String> report;
+
+	public StatsTask(StructureManager structureManager) {
+		this.structureManager = structureManager;
+		this.report = null;
+	}
+
+	@Override
+	public void run(TaskMonitor taskMonitor) throws Exception {
+		taskMonitor.setTitle("Chimera Command Statistics");
+		CommandStats stats = structureManager.getChimeraManager().getCommandStats();
+		ReplyCache replyCache = structureManager.getChimeraManager().getReplyCache();
+		SpecCache specCache = structureManager.getChimeraManager().getSpecCache();
+		report = stats.getReport();
+		report.add(replyCache.toString());
+		report.add(specCache.toString());
+		ModelInfoCache modelInfoCache = structureManager.getChimeraManager().getModelInfoCache();
+		report.add(modelInfoCache.toString());
+		CommandStats workerStats = structureManager.getChimeraManager().getWorkerCommandStats();
+		if (workerStats != null) {
+			report.add("Chimera workers:");
+			report.addAll(workerStats.getReport());
+		}
+		if (reset) {
+			stats.reset();
+			replyCache.resetStats();
+			specCache.resetStats();
+			modelInfoCache.resetStats();
+			if (workerStats != null) {
+				workerStats.reset();
+			}
+		}
+	}
+
+	public Object getResults(Class expectedClass) {
+		if (expectedClass.equals(String.class) && report != null) {
+			return CytoUtils.join(report, "\n");
+		}
+		return report;
+	}
+
+	@ProvidesTitle
+	public String getTitle() {
+		return "Chimera command statistics";
+	}
+}
@@ -0,0 +1,93 @@
+package edu.ucsf.rbvi.structureViz2.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsf.rbvi.structureViz2.internal.model.StructureManager.ModelType;
+
+public class ModelInfoCacheTest {
+	private File directory;
+	private ModelInfoCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("modelcache", "");
+		directory.delete();
+		cache = new ModelInfoCache(directory);
+	}
+
+	@After
+	public void tearDown() {
+		File[] entries = directory.listFiles();
+		if (entries != null) {
+			for (File entry : entries) {
+				entry.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static File getFixture(String name) throws Exception {
+		return new File(ModelInfoCacheTest.class.getResource(name).toURI());
+	}
+
+	@Test
+	public void preindexedStructuresHydrateOpenedModels() throws Exception {
+		File fragment = getFixture("fragment.pdb");
+		File ensemble = getFixture("ensemble.pdb");
+		assertEquals(2, cache.preindex(Arrays.asList(fragment, ensemble), 2));
+
+		// the models Chimera lists after opening the files, with their residue counts
+		List<ChimeraModel> models = Arrays.asList(new ChimeraModel("ensemble.pdb",
+				ModelType.PDB_MODEL, 4, 1), new ChimeraModel("ensemble.pdb", ModelType.PDB_MODEL,
+				4, 2));
+		Map<Integer, Integer> residueCounts = new HashMap<Integer, Integer>();
+		residueCounts.put(ChimUtils.makeModelKey(4, 1), 2);
+		residueCounts.put(ChimUtils.makeModelKey(4, 2), 2);
+		assertTrue(cache.hydrate(cache.getKey(ensemble.getPath(), ModelType.PDB_MODEL), models,
+				residueCounts));
+		assertEquals(2, models.get(1).getChains().iterator().next().getResidueCount());
+
+		// a different number of models is a miss
+		List<ChimeraModel> single = Arrays.asList(new ChimeraModel("ensemble.pdb",
+				ModelType.PDB_MODEL, 4, 0));
+		assertFalse(cache.hydrate(cache.getKey(ensemble.getPath(), ModelType.PDB_MODEL), single,
+				residueCounts));
+		assertEquals(0, single.get(0).getChains().size());
+	}
+
+	@Test
+	public void preindexedEntriesNeedMatchingResidueCounts() throws Exception {
+		File fragment = getFixture("fragment.pdb");
+		String key = cache.getKey(fragment.getPath(), ModelType.PDB_MODEL);
+		assertEquals(1, cache.preindex(Arrays.asList(fragment), 1));
+		Map<Integer, Integer> residueCounts = new HashMap<Integer, Integer>();
+
+		// Chimera did not report a count
+		ChimeraModel model = new ChimeraModel("fragment.pdb", ModelType.PDB_MODEL, 1, 0);
+		assertFalse(cache.hydrate(key, Arrays.asList(model), residueCounts));
+
+		// Chimera found a residue the reader doesn't have
+		residueCounts.put(ChimUtils.makeModelKey(1, 0), 6);
+		assertFalse(cache.hydrate(key, Arrays.asList(model), residueCounts));
+		assertEquals(0, model.getChains().size());
+
+		// Once Chimera listed the residues, its entry is used without counts
+		model.addChain("A").addResidue("1", "THR");
+		cache.store(key, Arrays.asList(model));
+		ChimeraModel reopened = new ChimeraModel("fragment.pdb", ModelType.PDB_MODEL, 1, 0);
+		assertTrue(cache.hydrate(key, Arrays.asList(reopened), null));
+		assertEquals(1, reopened.getResidueCount());
+	}
+}
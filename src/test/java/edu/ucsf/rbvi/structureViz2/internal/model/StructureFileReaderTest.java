@@ -0,0 +1,98 @@
+package edu.ucsf.rbvi.structureViz2.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StructureFileReaderTest {
+
+	private static File getFixture(String name) throws Exception {
+		return new File(StructureFileReaderTest.class.getResource(name).toURI());
+	}
+
+	// "chain index type" for every residue of a model
+	private static List<String> getResidues(ChimeraModel model) {
+		List<String> residues = new ArrayList<String>();
+		for (ChimeraChain chain : model.getChains()) {
+			for (ChimeraResidue residue : chain.getResidues()) {
+				residues.add(chain.getChainId() + " " + residue.getIndex() + " " + residue.getType());
+			}
+		}
+		return residues;
+	}
+
+	@Test
+	public void readPDB() throws Exception {
+		StructureFileReader.StructureFile structure = StructureFileReader.read(
+				getFixture("fragment.pdb"), 3);
+		List<ChimeraModel> models = structure.getModels();
+		assertEquals(1, models.size());
+		assertEquals("fragment.pdb", models.get(0).getModelName());
+		assertEquals(3, models.get(0).getModelNumber());
+		assertEquals(0, models.get(0).getSubModelNumber());
+		assertEquals(Arrays.asList("A 1 THR", "A 2 SER", "A 3A GLY", "B -1 CYS", "_ 201 HOH"),
+				getResidues(models.get(0)));
+
+		// the second alternate location of SER 2 is skipped
+		assertEquals(7, structure.getAtomCount());
+		assertEquals("CA", structure.getAtomName(3));
+		assertEquals("2", structure.getResidue(3).getIndex());
+		assertEquals(15.115f, structure.getCoordinate(3, 0), 0.0001f);
+		assertEquals("3A", structure.getResidue(4).getIndex());
+		assertEquals(-7.0f, structure.getCoordinate(5, 2), 0.0001f);
+		assertEquals("O", structure.getAtomName(6));
+		assertEquals("HOH", structure.getResidue(6).getType());
+	}
+
+	@Test
+	public void readEnsemble() throws Exception {
+		StructureFileReader.StructureFile structure = StructureFileReader.read(
+				getFixture("ensemble.pdb"), 0);
+		List<ChimeraModel> models = structure.getModels();
+		assertEquals(2, models.size());
+		for (int i = 0; i < models.size(); i++) {
+			assertEquals(0, models.get(i).getModelNumber());
+			assertEquals(i + 1, models.get(i).getSubModelNumber());
+			assertEquals(Arrays.asList("A 1 MET", "A 2 LYS"), getResidues(models.get(i)));
+		}
+		assertEquals(4, structure.getAtomCount());
+		assertEquals(2.0f, structure.getCoordinate(2, 0), 0.0001f);
+		assertEquals(8.0f, structure.getCoordinate(3, 0), 0.0001f);
+		// atoms point to the residues of their own model
+		assertEquals(2, structure.getResidue(3).getSubModelNumber());
+	}
+
+	@Test
+	public void readCIF() throws Exception {
+		StructureFileReader.StructureFile structure = StructureFileReader.read(
+				getFixture("fragment.cif"), 1);
+		List<ChimeraModel> models = structure.getModels();
+		assertEquals(2, models.size());
+		assertEquals(Arrays.asList("A 1 THR", "A 2 SER", "A 105B GLY"),
+				getResidues(models.get(0)));
+		assertEquals(Arrays.asList("A 1 THR"), getResidues(models.get(1)));
+		assertEquals(6, structure.getAtomCount());
+		// quoted values and rows that continue on the next line
+		assertEquals("C1'", structure.getAtomName(2));
+		assertEquals(3.0f, structure.getCoordinate(3, 2), 0.0001f);
+		assertEquals(4.338f, structure.getCoordinate(5, 2), 0.0001f);
+		assertEquals("105B", structure.getResidue(3).getIndex());
+	}
+
+	@Test
+	public void unreadableFilesAreNull() throws Exception {
+		List<StructureFileReader.StructureFile> structures = StructureFileReader.read(
+				Arrays.asList(getFixture("fragment.pdb"), new File("missing.pdb"),
+						getFixture("ensemble.pdb")), 5, 2);
+		assertEquals(3, structures.size());
+		assertEquals(5, structures.get(0).getModels().get(0).getModelNumber());
+		assertNull(structures.get(1));
+		assertEquals(7, structures.get(2).getModels().get(0).getModelNumber());
+	}
+}
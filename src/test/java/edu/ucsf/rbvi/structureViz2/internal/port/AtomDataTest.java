@@ -0,0 +1,47 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class AtomDataTest {
+
+	@Test
+	public void commandKeepsPathsWithSpaces() throws Exception {
+		File script = new File("/tmp/My Documents/structureViz1.py");
+		File dataFile = new File("/tmp/My Documents/structureViz2 +x.bin");
+		String command = AtomData.getCommand(script, "coords", dataFile, "#0:1-10 & sel");
+		assertEquals(Arrays.asList(script.getPath(), "coords", dataFile.getPath(),
+				"#0:1-10 & sel"), Arrays.asList(AtomData.parseCommand(command)));
+		// the data path is a single token for Chimera
+		assertEquals(-1, command.substring(command.indexOf("coords ") + 7, command.indexOf(" #0"))
+				.indexOf(' '));
+		assertNull(AtomData.parseCommand("runscript other.py coords out"));
+	}
+
+	@Test
+	public void readCoordinatesWrittenByChimera() throws Exception {
+		MockChimera mock = new MockChimera(0, 3).start();
+		mock.addModel("1crn");
+		ChimeraWorker chimera = new ChimeraWorker(0, mock, new CommandStats());
+		File dataFile = File.createTempFile("structureViz test", ".bin");
+		try {
+			chimera.sendCommand(AtomData.getCommand(new File("unused.py"), "coords", dataFile,
+					"#0"));
+			AtomData coords = AtomData.read(dataFile, AtomData.getIndexFile(dataFile), true);
+			assertEquals(3, coords.getAtomCount());
+			assertEquals(7.6f, coords.getCoordinate(2, 0), 0.001f);
+			assertEquals(Collections.singletonList("#0:1.A@CA"), coords.getAtomSpecs().subList(0,
+					1));
+		} finally {
+			chimera.close();
+			dataFile.delete();
+			AtomData.getIndexFile(dataFile).delete();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the throughput of the Chimera pipe against a {@link MockChimera}: commands sent one at
+ * a time, commands sent together and large replies. The mock takes a fixed time for every
+ * command, so the numbers show the overhead on the plugin side. Options:
+ * <code>--latency ms</code>, <code>--residues n</code>, <code>--models n</code> and
+ * <code>--commands n</code>.
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:slf4j-api.jar \
+ *     edu.ucsf.rbvi.structureViz2.internal.port.ChimeraBenchmark --latency 1 --residues 2000
+ * </pre>
+ */
+public class ChimeraBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		long latency = 1;
+		int residueCount = 1000;
+		int modelCount = 4;
+		int commandCount = 200;
+		List<String> options = Arrays.asList(args);
+		for (int i = 0; i + 1 < options.size(); i++) {
+			String value = options.get(i + 1);
+			if (options.get(i).equals("--latency"))
+				latency = Long.parseLong(value);
+			else if (options.get(i).equals("--residues"))
+				residueCount = Integer.parseInt(value);
+			else if (options.get(i).equals("--models"))
+				modelCount = Integer.parseInt(value);
+			else if (options.get(i).equals("--commands"))
+				commandCount = Integer.parseInt(value);
+		}
+
+		MockChimera mock = new MockChimera(latency, residueCount).start();
+		for (int i = 0; i < modelCount; i++) {
+			mock.addModel("model" + i);
+		}
+		CommandStats stats = new CommandStats();
+		ListenerThreads listener = new ListenerThreads(mock, null, stats);
+		listener.start();
+		PipeTransport transport = new PipeTransport(mock, listener);
+		try {
+			// warm up
+			run(transport, Collections.nCopies(commandCount, "list models"), false);
+
+			report("one at a time", commandCount, 0,
+					run(transport, Collections.nCopies(commandCount, "list models"), false));
+			report("together", commandCount, 0,
+					run(transport, Collections.nCopies(commandCount, "list models"), true));
+
+			List<String> residueCommands = new ArrayList<String>();
+			for (int i = 0; i < modelCount; i++) {
+				residueCommands.add("list residues spec #" + i);
+			}
+			long start = System.nanoTime();
+			int lines = 0;
+			for (ReplyFuture reply : transport.submit(residueCommands)) {
+				lines += reply.get().size();
+			}
+			report("residue lists", residueCommands.size(), lines, System.nanoTime() - start);
+		} finally {
+			transport.close();
+			mock.destroy();
+		}
+		for (String line : stats.getReport()) {
+			System.out.println(line);
+		}
+	}
+
+	private static long run(PipeTransport transport, List<String> commands, boolean together)
+			throws Exception {
+		long start = System.nanoTime();
+		if (together) {
+			for (ReplyFuture reply : transport.submit(commands)) {
+				reply.get();
+			}
+		} else {
+			for (String command : commands) {
+				transport.submit(Collections.singletonList(command)).get(0).get();
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, int commands, int lines, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-15s %6d commands %8d lines %8.1f ms %10.1f commands/s",
+				name, commands, lines, seconds * 1000, commands / seconds));
+	}
+}
@@ -0,0 +1,53 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Runs headless Chimera workers against a {@link MockChimera}
+ */
+public class ChimeraWorkerTest {
+
+	@Test
+	public void batchReplies() throws Exception {
+		MockChimera mock = new MockChimera(0, 10).start();
+		ChimeraWorker worker = new ChimeraWorker(0, mock, new CommandStats());
+		try {
+			worker.setTimeout(5000);
+			assertEquals(Arrays.asList(Collections.singletonList("Model 0 (1crn)"), Collections
+					.singletonList("model id #0 type Molecule name 1crn")), worker.sendBatch(Arrays
+					.asList("open 1crn", "list models")));
+			assertTrue(worker.isAlive());
+		} finally {
+			worker.close();
+		}
+	}
+
+	@Test
+	public void workerThatDoesNotAnswerIsStopped() throws Exception {
+		MockChimera mock = new MockChimera(2000, 10).start();
+		ChimeraWorker worker = new ChimeraWorker(0, mock, new CommandStats());
+		try {
+			worker.setTimeout(100);
+			long start = System.currentTimeMillis();
+			try {
+				worker.sendCommand("list models");
+				fail("the command should have timed out");
+			} catch (IOException e) {
+				// expected
+			}
+			assertTrue(System.currentTimeMillis() - start < 1500);
+			assertFalse(worker.isAlive());
+		} finally {
+			worker.close();
+		}
+	}
+}
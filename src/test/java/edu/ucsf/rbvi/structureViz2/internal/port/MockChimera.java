@@ -0,0 +1,562 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A stand-in for a Chimera process started with the ReadStdin extension. It speaks the same
+ * protocol as Chimera (every command is answered with a <code>CMD</code> line, the reply and an
+ * <code>END</code> line; <code>ModelChanged:</code> and <code>SelectionChanged:</code> are sent
+ * while listening) and produces synthetic replies for the commands structureViz uses most. This
+ * allows exercising the Chimera communication without a Chimera installation.
+ *
+ * The mock can be used in the same JVM by handing it to
+ * {@link edu.ucsf.rbvi.structureViz2.internal.model.ChimeraManager#connectChimera(Process)}, or
+ * as an executable through {@link #main(String[])}, which serves stdin/stdout:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes edu.ucsf.rbvi.structureViz2.internal.port.MockChimera \
+ *     --latency 5 --residues 500 --models 2
+ * </pre>
+ */
+public class MockChimera extends Process {
+	static final String[] RESIDUE_TYPES = { "ALA", "ARG", "ASN", "ASP", "CYS", "GLN", "GLU", "GLY",
+			"HIS", "ILE", "LEU", "LYS", "MET", "PHE", "PRO", "SER", "THR", "TRP", "TYR", "VAL" };
+	static final String[] RESIDUE_ATTRIBUTES = { "isHelix", "isSheet", "ribbonColor",
+			"areaSAS", "bfactor" };
+
+	private final ProcessPipe stdin = new ProcessPipe();
+	private final ProcessPipe stdout = new ProcessPipe();
+	private final CountDownLatch exited = new CountDownLatch(1);
+	private Thread worker = null;
+	private PrintWriter output = null;
+
+	private volatile long latency = 0;
+	private volatile int residueCount = 100;
+	private volatile int contactsPerResidue = 4;
+	private final Map<String, List<String>> cannedReplies = new LinkedHashMap<String, List<String>>();
+	private final TreeMap<Integer, String> models = new TreeMap<Integer, String>();
+	private final TreeSet<String> selection = new TreeSet<String>();
+	private boolean listenModels = false;
+	private boolean listenSelection = false;
+
+	/**
+	 * Create a new mock Chimera without any delay and with 100 residues per model
+	 */
+	public MockChimera() {
+	}
+
+	/**
+	 * Create a new mock Chimera
+	 *
+	 * @param latency
+	 *            the time in milliseconds every command takes
+	 * @param residueCount
+	 *            the number of residues in every model
+	 */
+	public MockChimera(long latency, int residueCount) {
+		this.latency = latency;
+		this.residueCount = residueCount;
+	}
+
+	/**
+	 * Start answering the commands written to {@link #getOutputStream()}
+	 *
+	 * @return this mock
+	 */
+	public synchronized MockChimera start() {
+		if (worker == null) {
+			worker = new Thread("Mock Chimera") {
+				public void run() {
+					try {
+						serve(stdin.getInputStream(), stdout.getOutputStream());
+					} catch (IOException e) {
+						// the pipes have been closed
+					}
+					stdout.close();
+					exited.countDown();
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+		return this;
+	}
+
+	/**
+	 * Set the time every command takes
+	 *
+	 * @param latency
+	 *            the latency in milliseconds
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Set the number of residues of the models opened from now on. This controls the size of the
+	 * residue, clash, H-bond and distance replies.
+	 *
+	 * @param residueCount
+	 *            the number of residues per model
+	 */
+	public void setResidueCount(int residueCount) {
+		this.residueCount = residueCount;
+	}
+
+	/**
+	 * Set the number of contacts and H-bonds reported for every residue
+	 *
+	 * @param contactsPerResidue
+	 *            the number of contacts per residue
+	 */
+	public void setContactsPerResidue(int contactsPerResidue) {
+		this.contactsPerResidue = contactsPerResidue;
+	}
+
+	/**
+	 * Answer every command starting with the given prefix with a fixed reply
+	 *
+	 * @param prefix
+	 *            the beginning of the commands
+	 * @param reply
+	 *            the reply lines
+	 */
+	public void addReply(String prefix, List<String> reply) {
+		synchronized (cannedReplies) {
+			cannedReplies.put(prefix, new ArrayList<String>(reply));
+		}
+	}
+
+	/**
+	 * Open a model as if it had been opened by the user in Chimera
+	 *
+	 * @param name
+	 *            the name of the model
+	 */
+	public void addModel(String name) {
+		synchronized (this) {
+			openModel(name);
+		}
+		if (listenModels)
+			notifyChimera("ModelChanged: model opened");
+	}
+
+	/**
+	 * Select residues as if they had been selected by the user in Chimera
+	 *
+	 * @param spec
+	 *            the residues to select, e.g. <code>#0:12-20</code>
+	 */
+	public void select(String spec) {
+		synchronized (this) {
+			selection.clear();
+			selection.addAll(getResidueSpecs(spec));
+		}
+		if (listenSelection)
+			notifyChimera("SelectionChanged: selection changed");
+	}
+
+	/**
+	 * Send a line outside of any command reply, e.g. a notification
+	 *
+	 * @param line
+	 *            the line to send
+	 */
+	public void notifyChimera(String line) {
+		synchronized (this) {
+			if (output != null) {
+				output.println(line);
+				output.flush();
+			}
+		}
+	}
+
+	/**
+	 * Answer the commands read from <code>in</code> on <code>out</code> until the input is closed
+	 * or Chimera is told to stop.
+	 *
+	 * @param in
+	 *            where the commands come from
+	 * @param out
+	 *            where the replies go to
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		synchronized (this) {
+			output = new PrintWriter(new OutputStreamWriter(out));
+		}
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			List<String> reply = new ArrayList<String>();
+			List<String> notifications = new ArrayList<String>();
+			boolean stop = false;
+			synchronized (this) {
+				for (String command : line.split(";")) {
+					command = command.trim();
+					if (command.startsWith("stop")) {
+						stop = true;
+					} else if (command.length() > 0) {
+						execute(command, reply, notifications);
+					}
+				}
+				output.println("CMD " + line);
+				for (String replyLine : reply) {
+					output.println(replyLine);
+				}
+				output.println("END");
+				for (String notification : notifications) {
+					output.println(notification);
+				}
+				output.flush();
+			}
+			if (stop)
+				return;
+		}
+	}
+
+	private void execute(String command, List<String> reply, List<String> notifications) {
+		synchronized (cannedReplies) {
+			for (String prefix : cannedReplies.keySet()) {
+				if (command.startsWith(prefix)) {
+					reply.addAll(cannedReplies.get(prefix));
+					return;
+				}
+			}
+		}
+		String[] args = command.split("\\s+");
+		if (command.startsWith("listen ") && args.length == 3) {
+			boolean start = args[1].equals("start");
+			if (args[2].startsWith("model"))
+				listenModels = start;
+			else if (args[2].startsWith("select"))
+				listenSelection = start;
+		} else if (command.startsWith("list models") && command.contains(" attribute ")) {
+			String attribute = args[args.length - 1];
+			String value = attribute.equals("numResidues") ? String.valueOf(residueCount)
+					: "0.824,0.706,0.549";
+			for (Integer model : models.keySet()) {
+				reply.add("model id #" + model + " type Molecule " + attribute + " " + value);
+			}
+		} else if (command.startsWith("list models")) {
+			for (Integer model : models.keySet()) {
+				reply.add(getModelLine(model));
+			}
+		} else if (command.startsWith("list model spec ")) {
+			Integer model = getModelNumber(args[3]);
+			if (model != null)
+				reply.add(getModelLine(model) + " color 0.824,0.706,0.549");
+		} else if (command.startsWith("list resattr")) {
+			for (String attribute : RESIDUE_ATTRIBUTES) {
+				reply.add("resattr " + attribute);
+			}
+		} else if (command.startsWith("list residue")) {
+			String attribute = args.length > 5 ? args[5] : null;
+			for (String residue : getResidueSpecs(args.length > 3 ? args[3] : "#*")) {
+				reply.add(getResidueLine(residue, attribute));
+			}
+		} else if (command.startsWith("list selection level molecule")) {
+			TreeSet<Integer> selectedModels = new TreeSet<Integer>();
+			for (String residue : selection) {
+				selectedModels.add(getModelNumber(residue));
+			}
+			for (Integer model : selectedModels) {
+				reply.add(getModelLine(model));
+			}
+		} else if (command.startsWith("list selection")) {
+			for (String residue : selection) {
+				reply.add(getResidueLine(residue, null));
+			}
+		} else if (command.startsWith("list distmat")) {
+			List<String> residues = getResidueSpecs(command.contains("&sel") ? "sel" : "#*");
+			for (int i = 0; i < residues.size(); i++) {
+				for (int j = i + 1; j < residues.size() && j <= i + contactsPerResidue; j++) {
+					reply.add("distmat " + residues.get(i) + "@CA " + residues.get(j) + "@CA "
+							+ String.format("%.3f", 3.8 * (j - i)));
+				}
+			}
+		} else if (command.startsWith("findclash")) {
+			reply.add("Allowed overlap: -0.4");
+			reply.add("H-bond overlap reduction: 0.4");
+			reply.add("Ignore contacts between atoms separated by 4 bonds or less");
+			List<String> contacts = new ArrayList<String>();
+			List<String> residues = getResidueSpecs("sel");
+			for (int i = 0; i < residues.size(); i++) {
+				for (int k = 1; k <= contactsPerResidue && i + k < residues.size(); k++) {
+					contacts.add(residues.get(i) + "@N " + residues.get(i + k) + "@O -0.394 3.454");
+				}
+			}
+			reply.add(contacts.size() + " contacts");
+			reply.add("atom1  atom2  overlap  distance");
+			reply.addAll(contacts);
+		} else if (command.startsWith("findhbond")) {
+			reply.add("Finding intermodel H-bonds");
+			reply.add("Finding intramodel H-bonds");
+			reply.add("H-bonds (donor, acceptor, hydrogen, D..A dist, D-H..A dist):");
+			List<String> residues = getResidueSpecs("sel");
+			for (int i = 0; i < residues.size(); i++) {
+				for (int k = 2; k < contactsPerResidue + 2 && i + k < residues.size(); k += 2) {
+					reply.add(residues.get(i) + "@N " + residues.get(i + k)
+							+ "@O no hydrogen 2.980 N/A");
+				}
+			}
+		} else if (AtomData.parseCommand(command) != null) {
+			// Only the bulk data script of ChimeraManager is supported
+			String[] script = AtomData.parseCommand(command);
+			writeAtomData(script[1], script[2], script[3]);
+		} else if (command.startsWith("open ")) {
+			String name = command.substring(5).trim();
+			name = name.substring(name.lastIndexOf('/') + 1).replaceFirst("^\\w+:", "");
+			int model = openModel(name);
+			reply.add("Model " + model + " (" + name + ")");
+			if (listenModels)
+				notifications.add("ModelChanged: model opened");
+		} else if (command.startsWith("close")) {
+			if (args.length > 1 && args[1].equals("session")) {
+				models.clear();
+				selection.clear();
+			} else if (args.length > 1) {
+				Integer model = getModelNumber(args[1]);
+				if (model != null)
+					models.remove(model);
+			} else {
+				models.clear();
+			}
+			if (listenModels)
+				notifications.add("ModelChanged: model closed");
+		} else if (args[0].equals("sel") || args[0].equals("select") || args[0].equals("~sel")
+				|| args[0].equals("~select")) {
+			List<String> residues = getResidueSpecs(args.length > 1 ? args[1] : "#*");
+			selection.clear();
+			if (!args[0].startsWith("~"))
+				selection.addAll(residues);
+			if (listenSelection)
+				notifications.add("SelectionChanged: selection changed");
+		}
+	}
+
+	/**
+	 * Write the files read by {@link AtomData}. Every residue has a single CA atom placed on a
+	 * zigzag line.
+	 */
+	private void writeAtomData(String mode, String out, String spec) {
+		List<String> residues = null;
+		if (spec.contains("sel"))
+			residues = getResidueSpecs("sel");
+		else if (spec.startsWith("#"))
+			residues = getResidueSpecs(spec);
+		else
+			residues = getResidueSpecs("#*");
+		int n = residues.size();
+		float[][] coords = new float[n][];
+		for (int i = 0; i < n; i++) {
+			coords[i] = new float[] { 3.8f * i, (i % 2) * 1.5f, 0.0f };
+		}
+		int count = mode.equals("coords") ? n * 3 : n * (n - 1) / 2;
+		ByteBuffer data = ByteBuffer.allocate(count * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < n; i++) {
+			if (mode.equals("coords")) {
+				data.putFloat(coords[i][0]).putFloat(coords[i][1]).putFloat(coords[i][2]);
+				continue;
+			}
+			for (int j = i + 1; j < n; j++) {
+				float dx = coords[i][0] - coords[j][0];
+				float dy = coords[i][1] - coords[j][1];
+				data.putFloat((float) Math.sqrt(dx * dx + dy * dy));
+			}
+		}
+		try {
+			FileOutputStream dataFile = new FileOutputStream(out);
+			try {
+				dataFile.write(data.array());
+			} finally {
+				dataFile.close();
+			}
+			PrintWriter index = new PrintWriter(new FileWriter(out + ".idx"));
+			try {
+				for (String residue : residues) {
+					index.println(residue + "@CA");
+				}
+			} finally {
+				index.close();
+			}
+		} catch (IOException e) {
+			// Chimera would print the traceback, the caller falls back to text
+		}
+	}
+
+	private int openModel(String name) {
+		int model = models.isEmpty() ? 0 : models.lastKey() + 1;
+		models.put(model, name + "\t" + residueCount);
+		return model;
+	}
+
+	private String getModelLine(int model) {
+		String name = models.get(model);
+		return "model id #" + model + " type Molecule name " + name.substring(0, name.indexOf('\t'));
+	}
+
+	private String getResidueLine(String residue, String attribute) {
+		int number = Integer.parseInt(residue.substring(residue.indexOf(':') + 1,
+				residue.indexOf('.')));
+		String type = RESIDUE_TYPES[number % RESIDUE_TYPES.length];
+		if (attribute == null)
+			return "residue id " + residue + " type " + type;
+		String value = null;
+		if (attribute.equals("isHelix"))
+			value = (number / 10) % 2 == 0 ? "True" : "False";
+		else if (attribute.equals("isSheet"))
+			value = (number / 10) % 2 == 1 ? "True" : "False";
+		else if (attribute.equals("ribbonColor"))
+			value = "0.824,0.706,0.549";
+		else
+			value = String.valueOf(number % 50);
+		return "residue id " + residue + " " + attribute + " " + value;
+	}
+
+	private Integer getModelNumber(String spec) {
+		if (!spec.startsWith("#"))
+			return null;
+		int end = 1;
+		while (end < spec.length() && Character.isDigit(spec.charAt(end)))
+			end++;
+		try {
+			Integer model = Integer.valueOf(spec.substring(1, end));
+			return models.containsKey(model) ? model : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the residues for the simple specs structureViz uses: <code>sel</code>, <code>#*</code>,
+	 * <code>#0</code>, <code>#0:12</code>, <code>#0:12-20</code> and lists of those separated by
+	 * spaces or commas.
+	 */
+	private List<String> getResidueSpecs(String spec) {
+		if (spec.equals("sel"))
+			return new ArrayList<String>(selection);
+		List<String> residues = new ArrayList<String>();
+		for (String part : spec.split("[\\s|]+")) {
+			if (part.equals("#*") || part.equals("#")) {
+				for (Integer model : models.keySet())
+					addResidues(residues, model, 1, getResidueCount(model));
+				continue;
+			}
+			Integer model = getModelNumber(part);
+			if (model == null)
+				continue;
+			int colon = part.indexOf(':');
+			if (colon < 0) {
+				addResidues(residues, model, 1, getResidueCount(model));
+				continue;
+			}
+			for (String range : part.substring(colon + 1).split(",")) {
+				range = range.replaceFirst("\\..*$", "");
+				String[] bounds = range.split("-");
+				try {
+					int start = Integer.parseInt(bounds[0]);
+					int end = bounds.length > 1 ? Integer.parseInt(bounds[1]) : start;
+					addResidues(residues, model, start, Math.min(end, getResidueCount(model)));
+				} catch (NumberFormatException e) {
+					// not a residue range we know about
+				}
+			}
+		}
+		return residues;
+	}
+
+	private int getResidueCount(int model) {
+		String name = models.get(model);
+		return Integer.parseInt(name.substring(name.indexOf('\t') + 1));
+	}
+
+	private void addResidues(List<String> residues, int model, int start, int end) {
+		for (int i = Math.max(start, 1); i <= end; i++) {
+			residues.add("#" + model + ":" + i + ".A");
+		}
+	}
+
+	public OutputStream getOutputStream() {
+		return stdin.getOutputStream();
+	}
+
+	public InputStream getInputStream() {
+		return stdout.getInputStream();
+	}
+
+	public InputStream getErrorStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	public int waitFor() throws InterruptedException {
+		exited.await();
+		return 0;
+	}
+
+	public int exitValue() {
+		if (exited.getCount() > 0)
+			throw new IllegalThreadStateException("Mock Chimera is still running");
+		return 0;
+	}
+
+	public void destroy() {
+		stdin.close();
+		stdout.close();
+		exited.countDown();
+	}
+
+	/**
+	 * Run the mock Chimera on stdin and stdout. Options: <code>--latency ms</code>,
+	 * <code>--residues n</code>, <code>--contacts n</code> and <code>--models n</code> (the
+	 * number of models that are open from the start).
+	 *
+	 * @param args
+	 *            the command line options
+	 */
+	public static void main(String[] args) throws IOException {
+		MockChimera mock = new MockChimera();
+		int modelCount = 0;
+		List<String> options = Arrays.asList(args);
+		for (int i = 0; i + 1 < options.size(); i++) {
+			String value = options.get(i + 1);
+			if (options.get(i).equals("--latency"))
+				mock.setLatency(Long.parseLong(value));
+			else if (options.get(i).equals("--residues"))
+				mock.setResidueCount(Integer.parseInt(value));
+			else if (options.get(i).equals("--contacts"))
+				mock.setContactsPerResidue(Integer.parseInt(value));
+			else if (options.get(i).equals("--models"))
+				modelCount = Integer.parseInt(value);
+		}
+		for (int i = 0; i < modelCount; i++) {
+			mock.addModel("mock" + i);
+		}
+		mock.serve(System.in, System.out);
+	}
+}
@@ -0,0 +1,99 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the pipe transport and the listener thread against a {@link MockChimera}
+ */
+public class PipeTransportTest {
+	private MockChimera mock;
+	private CommandStats stats;
+	private PipeTransport transport;
+
+	@Before
+	public void setUp() {
+		mock = new MockChimera(0, 200).start();
+		stats = new CommandStats();
+		ListenerThreads listener = new ListenerThreads(mock, null, stats);
+		listener.start();
+		transport = new PipeTransport(mock, listener);
+	}
+
+	@After
+	public void tearDown() {
+		transport.close();
+		mock.destroy();
+	}
+
+	@Test
+	public void repliesMatchTheirCommands() throws Exception {
+		List<ReplyFuture> replies = transport.submit(Arrays.asList("open 1crn", "open 2abc",
+				"list models", "list residues spec #1:3-5"));
+		assertEquals(Collections.singletonList("Model 0 (1crn)"),
+				replies.get(0).get(5, TimeUnit.SECONDS));
+		assertEquals(Collections.singletonList("Model 1 (2abc)"),
+				replies.get(1).get(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("model id #0 type Molecule name 1crn",
+				"model id #1 type Molecule name 2abc"), replies.get(2).get(5, TimeUnit.SECONDS));
+		assertEquals(3, replies.get(3).get(5, TimeUnit.SECONDS).size());
+		assertEquals("residue id #1:3.A type ASP", replies.get(3).get().get(0));
+	}
+
+	@Test
+	public void unexpectedReplyLeavesOlderCommandsPending() throws Exception {
+		mock.addModel("1crn");
+		transport.submit(Collections.singletonList("list models")).get(0).get(5, TimeUnit.SECONDS);
+		mock.setLatency(300);
+		List<ReplyFuture> replies = transport.submit(Arrays.asList("list residues spec #0:1",
+				"list models"));
+		// an echo that overtakes the reply to the older command
+		mock.notifyChimera("CMD list models\nEND");
+		assertEquals(Collections.singletonList("residue id #0:1.A type "
+				+ MockChimera.RESIDUE_TYPES[1 % MockChimera.RESIDUE_TYPES.length]), replies.get(0)
+				.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void separateSubmitsFromSeveralThreads() throws Exception {
+		mock.addModel("1crn");
+		Thread[] threads = new Thread[4];
+		final Throwable[] failure = new Throwable[1];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 1; i <= 50; i++) {
+							int residue = thread * 50 + i;
+							ReplyFuture reply = transport.submit(
+									Collections.singletonList("list residues spec #0:" + residue))
+									.get(0);
+							assertEquals(Collections.singletonList("residue id #0:" + residue
+									+ ".A type "
+									+ MockChimera.RESIDUE_TYPES[residue
+											% MockChimera.RESIDUE_TYPES.length]), reply.get(5,
+									TimeUnit.SECONDS));
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure[0] != null)
+			throw new AssertionError(failure[0]);
+	}
+}
@@ -0,0 +1,137 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the REST transport against an embedded HTTP server that answers like the Chimera REST
+ * server extension, with several threads handling requests.
+ */
+public class RestTransportTest {
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private RestTransport transport;
+	private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+	private final CountDownLatch finishClashes = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/run", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String query = exchange.getRequestURI().getRawQuery();
+				String command = URLDecoder.decode(query.substring(query.indexOf('=') + 1),
+						"UTF-8");
+				received.add(command);
+				// A slow first command lets later requests overtake it if they are sent in
+				// parallel
+				try {
+					if (command.equals("command 0")) {
+						Thread.sleep(200);
+					} else if (command.startsWith("findclash")) {
+						// A long computation, until the test lets it finish
+						finishClashes.await(10, TimeUnit.SECONDS);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				byte[] reply = ("reply to " + command + "\n").getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, reply.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(reply);
+				out.close();
+			}
+		});
+		serverThreads = Executors.newFixedThreadPool(4);
+		server.setExecutor(serverThreads);
+		server.start();
+		transport = new RestTransport("localhost", server.getAddress().getPort(), null);
+	}
+
+	@After
+	public void tearDown() {
+		finishClashes.countDown();
+		transport.close();
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+
+	@Test
+	public void separateSubmitsKeepTheirOrder() throws Exception {
+		List<String> commands = new ArrayList<String>();
+		List<ReplyFuture> pendingReplies = new ArrayList<ReplyFuture>();
+		for (int i = 0; i < 20; i++) {
+			String command = "command " + i;
+			commands.add(command);
+			pendingReplies.addAll(transport.submit(Collections.singletonList(command)));
+		}
+		for (int i = 0; i < commands.size(); i++) {
+			assertEquals(Collections.singletonList("reply to " + commands.get(i)), pendingReplies
+					.get(i).get(5, TimeUnit.SECONDS));
+			assertEquals(i, pendingReplies.get(i).getSequence());
+		}
+		assertEquals(commands, new ArrayList<String>(received));
+	}
+
+	@Test
+	public void commandsSubmittedTogetherKeepTheirOrder() throws Exception {
+		List<String> commands = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			commands.add("command " + i);
+		}
+		List<ReplyFuture> pendingReplies = transport.submit(commands);
+		for (int i = 0; i < commands.size(); i++) {
+			assertEquals(Collections.singletonList("reply to " + commands.get(i)), pendingReplies
+					.get(i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(commands, new ArrayList<String>(received));
+	}
+
+	@Test
+	public void slowReplyDoesNotDelayOtherThreads() throws Exception {
+		final ReplyFuture[] clashReply = new ReplyFuture[1];
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					clashReply[0] = transport.submit(
+							Collections.singletonList("findclash #0 test others")).get(0);
+				} catch (IOException e) {
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		// Wait until Chimera is working on the slow command
+		while (!received.contains("findclash #0 test others")) {
+			Thread.sleep(10);
+		}
+		ReplyFuture selection = transport.submit(Collections.singletonList("list selection"))
+				.get(0);
+		assertEquals(Collections.singletonList("reply to list selection"), selection.get(2,
+				TimeUnit.SECONDS));
+		assertFalse(clashReply[0].isDone());
+		finishClashes.countDown();
+		assertEquals(Collections.singletonList("reply to findclash #0 test others"),
+				clashReply[0].get(5, TimeUnit.SECONDS));
+	}
+}
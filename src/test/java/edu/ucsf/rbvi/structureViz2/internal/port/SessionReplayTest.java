@@ -0,0 +1,77 @@
+package edu.ucsf.rbvi.structureViz2.internal.port;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records a session with a {@link MockChimera} and replays it
+ */
+public class SessionReplayTest {
+	private File logFile;
+
+	@Before
+	public void setUp() throws Exception {
+		logFile = File.createTempFile("structureViz session", ".log");
+	}
+
+	@After
+	public void tearDown() {
+		File filesDirectory = SessionRecorder.getFilesDirectory(logFile);
+		File[] files = filesDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		filesDirectory.delete();
+		logFile.delete();
+	}
+
+	// Ask Chimera for the coordinates of the residues of a model, with new temporary files
+	private AtomData getCoordinates(ChimeraWorker chimera) throws Exception {
+		File script = File.createTempFile("structureViz", ".py");
+		File dataFile = File.createTempFile("structureViz", ".bin");
+		try {
+			chimera.sendCommand(AtomData.getCommand(script, "coords", dataFile, "#0"));
+			return AtomData.read(dataFile, AtomData.getIndexFile(dataFile), true);
+		} finally {
+			script.delete();
+			dataFile.deleteOnExit();
+			AtomData.getIndexFile(dataFile).delete();
+		}
+	}
+
+	@Test
+	public void dataFilesAreReplayed() throws Exception {
+		MockChimera mock = new MockChimera(0, 4).start();
+		ChimeraWorker recorded = new ChimeraWorker(0, new SessionRecorder(mock, logFile),
+				new CommandStats());
+		try {
+			recorded.sendCommand("open 1crn");
+			assertEquals(4, getCoordinates(recorded).getAtomCount());
+		} finally {
+			recorded.close();
+		}
+
+		SessionReplay replay = new SessionReplay(logFile, false).start();
+		ChimeraWorker replayed = new ChimeraWorker(0, replay, new CommandStats());
+		try {
+			replayed.setTimeout(5000);
+			assertEquals(Collections.singletonList("Model 0 (1crn)"), replayed
+					.sendCommand("open 1crn"));
+			AtomData coords = getCoordinates(replayed);
+			assertEquals(4, coords.getAtomCount());
+			assertEquals(11.4f, coords.getCoordinate(3, 0), 0.001f);
+			assertEquals(2, replay.getReplayed());
+			assertEquals(0, replay.getUnmatched());
+		} finally {
+			replayed.close();
+		}
+	}
+}